@@ -0,0 +1,708 @@
+package net.kenevans.ecg.md100a.cli;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import net.kenevans.ecg.md100a.model.BeatStatistics;
+import net.kenevans.ecg.md100a.model.ChecksumManifest;
+import net.kenevans.ecg.md100a.model.EcgFileScanner;
+import net.kenevans.ecg.md100a.model.EcgFileWriter;
+import net.kenevans.ecg.md100a.model.EcgFilterModel;
+import net.kenevans.ecg.md100a.model.EdfConverter;
+import net.kenevans.ecg.md100a.model.HeaderView;
+import net.kenevans.ecg.md100a.model.IConstants;
+import net.kenevans.ecg.md100a.model.NpyExporter;
+import net.kenevans.ecg.md100a.model.SampleArchive;
+import net.kenevans.ecg.md100a.model.Strip;
+import net.kenevans.ecg.md100a.model.StripMetadata;
+
+/**
+ * EcgCli is a command-line tool for processing .cEcg files without a
+ * display. The files can be given as names, directories, or patterns. The
+ * work is done on a pool of threads, and the results are written as CSV or
+ * JSON lines in the order of the files and strips. A file that fails gets a
+ * row with the error, and the other files are still processed.
+ */
+public class EcgCli implements IConstants
+{
+    private static final String USAGE = "Usage: java "
+        + EcgCli.class.getName()
+        + " command [options] files..."
+        + LS
+        + "Commands:"
+        + LS
+        + "  info      Header and integrity information for each file"
+        + LS
+        + "  analyze   Heart-beat statistics for each strip"
+        + LS
+        + "              --mode MODE    Data mode (default DEFAULT)"
+        + LS
+        + "  extract   Extract strips from one file"
+        + LS
+        + "              --dest FILE    File to write (required)"
+        + LS
+        + "              --strips SPEC  Strips, e.g. 1-3,5 (default all)"
+        + LS
+        + "              --id ID        Patient ID (default unchanged)"
+        + LS
+        + "  export    Convert each file"
+        + LS
+        + "              --type TYPE    npy, npy-mm, edf, or ecga (default npy)"
+        + LS
+        + "              --dest DIR     Directory for the output (default"
+        + " same as input)"
+        + LS
+        + "  verify    Check structure and checksum manifest of each file"
+        + LS
+        + "              --create       Write the checksum manifests instead"
+        + LS
+        + "Options:"
+        + LS
+        + "  -j N                Number of threads (default number of"
+        + " processors)"
+        + LS
+        + "  --format csv|jsonl  Output format (default csv)"
+        + LS
+        + "  --output FILE       Write the output to FILE instead of stdout"
+        + LS
+        + "Data modes: " + getDataModeNames();
+
+    private String command;
+    private List<String> fileArgs = new ArrayList<String>();
+    private int nThreads = Runtime.getRuntime().availableProcessors();
+    private RecordWriter.Format format = RecordWriter.Format.CSV;
+    private String outputName;
+    private EcgFilterModel.DataMode dataMode = EcgFilterModel.DataMode.DEFAULT;
+    private String dest;
+    private String stripSpec;
+    private String id;
+    private String type = "npy";
+    private boolean create;
+
+    /**
+     * Runs the tool with the given arguments.
+     * 
+     * @param args
+     * @return The exit status: 0 for success, 1 if any file failed, 2 for a
+     *         usage error.
+     */
+    public int run(String[] args) {
+        List<File> files;
+        try {
+            parseArgs(args);
+            files = FileGlob.expand(fileArgs);
+            if(files.isEmpty()) {
+                throw new IllegalArgumentException("No files found");
+            }
+        } catch(IllegalArgumentException ex) {
+            System.err.println(ex.getMessage());
+            System.err.println(USAGE);
+            return 2;
+        } catch(IOException ex) {
+            System.err.println(ex.getMessage());
+            return 2;
+        }
+
+        PrintStream out = System.out;
+        ExecutorService pool = null;
+        try {
+            if(outputName != null) {
+                out = new PrintStream(new FileOutputStream(outputName), false,
+                    "UTF-8");
+            }
+            pool = Executors.newFixedThreadPool(nThreads);
+            int nFailed;
+            if(command.equals("info")) {
+                nFailed = info(files, pool, out);
+            } else if(command.equals("analyze")) {
+                nFailed = analyze(files, pool, out);
+            } else if(command.equals("extract")) {
+                nFailed = extract(files, out);
+            } else if(command.equals("export")) {
+                nFailed = export(files, pool, out);
+            } else {
+                nFailed = verify(files, pool, out);
+            }
+            out.flush();
+            if(nFailed > 0) {
+                System.err.println(nFailed + " of " + files.size()
+                    + " files failed");
+                return 1;
+            }
+            return 0;
+        } catch(IOException ex) {
+            System.err.println(ex.getMessage());
+            return 1;
+        } finally {
+            if(pool != null) {
+                pool.shutdownNow();
+            }
+            if(out != System.out) {
+                out.close();
+            }
+        }
+    }
+
+    /**
+     * Parses the arguments.
+     * 
+     * @param args
+     * @throws IllegalArgumentException On an invalid argument.
+     */
+    private void parseArgs(String[] args) {
+        if(args.length == 0) {
+            throw new IllegalArgumentException("No command given");
+        }
+        command = args[0];
+        if(!(command.equals("info") || command.equals("analyze")
+            || command.equals("extract") || command.equals("export") || command
+            .equals("verify"))) {
+            throw new IllegalArgumentException("Invalid command: " + command);
+        }
+        String arg;
+        for(int i = 1; i < args.length; i++) {
+            arg = args[i];
+            if(arg.equals("-j")) {
+                try {
+                    nThreads = Integer.parseInt(getValue(args, ++i, arg));
+                } catch(NumberFormatException ex) {
+                    nThreads = 0;
+                }
+                if(nThreads < 1) {
+                    throw new IllegalArgumentException("Invalid value for -j");
+                }
+            } else if(arg.equals("--format")) {
+                String value = getValue(args, ++i, arg);
+                if(value.equalsIgnoreCase("csv")) {
+                    format = RecordWriter.Format.CSV;
+                } else if(value.equalsIgnoreCase("jsonl")
+                    || value.equalsIgnoreCase("json")) {
+                    format = RecordWriter.Format.JSONL;
+                } else {
+                    throw new IllegalArgumentException("Invalid format: "
+                        + value);
+                }
+            } else if(arg.equals("--output")) {
+                outputName = getValue(args, ++i, arg);
+            } else if(arg.equals("--mode")) {
+                String value = getValue(args, ++i, arg);
+                try {
+                    dataMode = EcgFilterModel.DataMode.valueOf(value
+                        .toUpperCase());
+                } catch(IllegalArgumentException ex) {
+                    throw new IllegalArgumentException("Invalid mode: "
+                        + value);
+                }
+            } else if(arg.equals("--dest")) {
+                dest = getValue(args, ++i, arg);
+            } else if(arg.equals("--strips")) {
+                stripSpec = getValue(args, ++i, arg);
+            } else if(arg.equals("--id")) {
+                id = getValue(args, ++i, arg);
+            } else if(arg.equals("--type")) {
+                type = getValue(args, ++i, arg).toLowerCase();
+                if(!(type.equals("npy") || type.equals("npy-mm")
+                    || type.equals("edf") || type.equals("ecga"))) {
+                    throw new IllegalArgumentException("Invalid type: "
+                        + type);
+                }
+            } else if(arg.equals("--create")) {
+                create = true;
+            } else if(arg.startsWith("-") && arg.length() > 1) {
+                throw new IllegalArgumentException("Invalid option: " + arg);
+            } else {
+                fileArgs.add(arg);
+            }
+        }
+        if(command.equals("extract")) {
+            if(dest == null) {
+                throw new IllegalArgumentException(
+                    "extract requires --dest FILE");
+            }
+            if(fileArgs.size() != 1) {
+                throw new IllegalArgumentException(
+                    "extract requires exactly one file");
+            }
+        }
+    }
+
+    private static String getValue(String[] args, int i, String option) {
+        if(i >= args.length) {
+            throw new IllegalArgumentException("No value for " + option);
+        }
+        return args[i];
+    }
+
+    private static String getDataModeNames() {
+        StringBuilder sb = new StringBuilder();
+        for(EcgFilterModel.DataMode mode : EcgFilterModel.dataModeList) {
+            if(sb.length() > 0) {
+                sb.append(", ");
+            }
+            sb.append(mode.name());
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Writes header and integrity information for each file.
+     * 
+     * @return The number of files that failed.
+     */
+    private int info(List<File> files, ExecutorService pool, PrintStream out)
+        throws IOException {
+        RecordWriter writer = new RecordWriter(out, format, "file", "status",
+            "headerStrips", "strips", "id", "name", "gender", "birthdate",
+            "firstTime", "lastTime", "error");
+        List<Future<Object[]>> futures = new ArrayList<Future<Object[]>>();
+        for(final File file : files) {
+            futures.add(pool.submit(new Callable<Object[]>() {
+                public Object[] call() {
+                    try {
+                        HeaderView header = HeaderView.read(file);
+                        EcgFileScanner.Result result = EcgFileScanner
+                            .scan(file);
+                        long[] offsets = result.getStripOffsets();
+                        StripMetadata first = null;
+                        StripMetadata last = null;
+                        if(offsets.length > 0) {
+                            FileInputStream fis = new FileInputStream(file);
+                            try {
+                                FileChannel channel = fis.getChannel();
+                                first = readMetadata(channel, 0,
+                                    offsets[0]);
+                                last = readMetadata(channel,
+                                    offsets.length - 1,
+                                    offsets[offsets.length - 1]);
+                            } finally {
+                                fis.close();
+                            }
+                        }
+                        return new Object[] {file.getPath(),
+                            result.isClean() ? "OK" : "DAMAGED",
+                            result.getHeaderNStrips(), offsets.length,
+                            header.getId(), header.getName(),
+                            header.getGender(), header.getBirthdate(),
+                            first == null ? null : formatTime(first),
+                            last == null ? null : formatTime(last), null};
+                    } catch(IOException ex) {
+                        return errorRow(file, 11, ex);
+                    }
+                }
+            }));
+        }
+        return writeRows(writer, files, futures, 11);
+    }
+
+    /**
+     * Writes heart-beat statistics for each strip.
+     * 
+     * @return The number of files that failed.
+     */
+    private int analyze(List<File> files, ExecutorService pool,
+        PrintStream out) throws IOException {
+        RecordWriter writer = new RecordWriter(out, format, "file", "strip",
+            "time", "deviceBpm", "diagnostic", "peaks", "meanBpm",
+            "sigmaBpm", "minBpm", "maxBpm", "rsaBaseLineBpm", "error");
+        final EcgFilterModel filterModel = new EcgFilterModel();
+        List<Future<List<Object[]>>> futures =
+            new ArrayList<Future<List<Object[]>>>();
+        for(final File file : files) {
+            futures.add(pool.submit(new Callable<List<Object[]>>() {
+                public List<Object[]> call() {
+                    return analyzeFile(file, filterModel);
+                }
+            }));
+        }
+        int nFailed = 0;
+        List<Object[]> rows;
+        for(int i = 0; i < files.size(); i++) {
+            rows = getRows(futures.get(i), files.get(i), 12);
+            for(Object[] row : rows) {
+                writer.write(row);
+            }
+            if(!rows.isEmpty() && rows.get(rows.size() - 1)[11] != null) {
+                nFailed++;
+            }
+        }
+        writer.flush();
+        return nFailed;
+    }
+
+    /**
+     * Gets the statistics for each strip of one file. The file is scanned,
+     * opened, read, and closed by the calling thread, so only the files being
+     * analyzed are open. An error ends the rows for the file with an error
+     * row.
+     */
+    private List<Object[]> analyzeFile(File file, EcgFilterModel filterModel) {
+        List<Object[]> rows = new ArrayList<Object[]>();
+        try {
+            EcgFileScanner.Result result = EcgFileScanner.scan(file);
+            if(!result.hasHeader()) {
+                throw new IOException("File is too short to have a header:"
+                    + LS + file.getPath());
+            }
+            long[] offsets = result.getStripOffsets();
+            FileInputStream fis = new FileInputStream(file);
+            try {
+                FileChannel channel = fis.getChannel();
+                ByteBuffer buffer = ByteBuffer.allocate(STRIP_LENGTH);
+                for(int i = 0; i < offsets.length; i++) {
+                    buffer.clear();
+                    EcgFileWriter.readFully(channel, buffer, offsets[i]);
+                    rows.add(analyzeStrip(file, i, buffer.array(),
+                        filterModel));
+                }
+            } finally {
+                fis.close();
+            }
+        } catch(IOException ex) {
+            rows.add(errorRow(file, 12, ex));
+        } catch(RuntimeException ex) {
+            rows.add(errorRow(file, 12, ex));
+        }
+        return rows;
+    }
+
+    /**
+     * Gets the statistics for one strip.
+     */
+    private Object[] analyzeStrip(File file, int index, byte[] bytes,
+        EcgFilterModel filterModel) throws IOException {
+        StripMetadata metadata = new StripMetadata(index, bytes, 0);
+        double[] vals = Strip.decodeData(bytes);
+        if(vals == null) {
+            throw new IOException("Could not decode strip " + (index + 1));
+        }
+        vals = dataMode.process(filterModel, vals);
+        BeatStatistics stats = BeatStatistics.compute(vals);
+        return new Object[] {file.getPath(), index + 1, formatTime(metadata),
+            metadata.getHeartRate(), metadata.getDiagnostic(),
+            stats.getNPeaks(), round(stats.getMeanBpm()),
+            round(stats.getSigmaBpm()), round(stats.getMinBpm()),
+            round(stats.getMaxBpm()),
+            stats.hasIntervals() ? round(stats.getRsaBaseLineBpm())
+                : Double.NaN, null};
+    }
+
+    /**
+     * Extracts strips from one file. The strips are numbered as the scanner
+     * finds them, as for info and analyze, so damaged files are extracted
+     * the same way they are reported.
+     * 
+     * @return The number of files that failed.
+     */
+    private int extract(List<File> files, PrintStream out) throws IOException {
+        RecordWriter writer = new RecordWriter(out, format, "file", "dest",
+            "strips", "error");
+        File file = files.get(0);
+        try {
+            HeaderView header = HeaderView.read(file);
+            long[] allOffsets = EcgFileScanner.scan(file).getStripOffsets();
+            List<Integer> stripList = parseStripSpec(stripSpec,
+                allOffsets.length);
+            long[] offsets = new long[stripList.size()];
+            for(int i = 0; i < offsets.length; i++) {
+                offsets[i] = allOffsets[stripList.get(i)];
+            }
+            EcgFileWriter.extractFile(file, new File(dest), id == null
+                ? header.getId() : id, offsets, null);
+            writer.write(file.getPath(), dest, offsets.length, null);
+            return 0;
+        } catch(IllegalArgumentException ex) {
+            writer.write(file.getPath(), dest, null, ex.getMessage());
+        } catch(IOException ex) {
+            writer.write(file.getPath(), dest, null, ex.getMessage());
+        }
+        return 1;
+    }
+
+    /**
+     * Converts each file.
+     * 
+     * @return The number of files that failed.
+     */
+    private int export(List<File> files, ExecutorService pool,
+        PrintStream out) throws IOException {
+        RecordWriter writer = new RecordWriter(out, format, "file", "dest",
+            "strips", "error");
+        List<Future<Object[]>> futures = new ArrayList<Future<Object[]>>();
+        for(final File file : files) {
+            futures.add(pool.submit(new Callable<Object[]>() {
+                public Object[] call() {
+                    File destFile = getExportFile(file);
+                    try {
+                        int nStrips;
+                        // Each file uses one thread
+                        if(type.equals("edf")) {
+                            nStrips = EdfConverter.exportEdf(file, destFile,
+                                1);
+                        } else if(type.equals("ecga")) {
+                            SampleArchive.write(file, destFile);
+                            SampleArchive archive = new SampleArchive(
+                                destFile);
+                            nStrips = archive.getNStrips();
+                            archive.close();
+                        } else {
+                            nStrips = NpyExporter.export(file, null, type
+                                .equals("npy") ? NpyExporter.Type.COUNTS
+                                : NpyExporter.Type.MM, destFile, 1);
+                        }
+                        return new Object[] {file.getPath(),
+                            destFile.getPath(), nStrips, null};
+                    } catch(IOException ex) {
+                        return errorRow(file, 4, ex);
+                    }
+                }
+            }));
+        }
+        return writeRows(writer, files, futures, 4);
+    }
+
+    /**
+     * Gets the file to write for the given file for export.
+     */
+    private File getExportFile(File file) {
+        String name = file.getName();
+        int dot = name.lastIndexOf('.');
+        if(dot > 0) {
+            name = name.substring(0, dot);
+        }
+        String ext;
+        if(type.equals("edf")) {
+            ext = EdfConverter.EDF_EXT;
+        } else if(type.equals("ecga")) {
+            ext = SampleArchive.ARCHIVE_EXT;
+        } else {
+            ext = ".npy";
+        }
+        File dir = dest == null ? file.getAbsoluteFile().getParentFile()
+            : new File(dest);
+        return new File(dir, name + ext);
+    }
+
+    /**
+     * Checks the structure and the checksum manifest of each file, or writes
+     * the manifests.
+     * 
+     * @return The number of files that failed.
+     */
+    private int verify(List<File> files, ExecutorService pool,
+        PrintStream out) throws IOException {
+        RecordWriter writer = new RecordWriter(out, format, "file",
+            "structure", "checksums", "error");
+        List<Future<Object[]>> futures = new ArrayList<Future<Object[]>>();
+        for(final File file : files) {
+            futures.add(pool.submit(new Callable<Object[]>() {
+                public Object[] call() {
+                    try {
+                        EcgFileScanner.Result result = EcgFileScanner
+                            .scan(file);
+                        String structure = result.isClean() ? "OK"
+                            : "DAMAGED";
+                        if(create) {
+                            ChecksumManifest.create(file, 1);
+                            return new Object[] {file.getPath(), structure,
+                                "CREATED", null};
+                        }
+                        if(!ChecksumManifest.getManifestFile(file).exists()) {
+                            return new Object[] {file.getPath(), structure,
+                                "NO MANIFEST", null};
+                        }
+                        List<String> differences = ChecksumManifest.verify(
+                            file, 1);
+                        StringBuilder sb = new StringBuilder();
+                        for(String difference : differences) {
+                            if(sb.length() > 0) {
+                                sb.append("; ");
+                            }
+                            sb.append(difference);
+                        }
+                        return new Object[] {file.getPath(), structure,
+                            differences.isEmpty() ? "OK" : "FAILED",
+                            differences.isEmpty() ? null : sb.toString()};
+                    } catch(IOException ex) {
+                        return errorRow(file, 4, ex);
+                    }
+                }
+            }));
+        }
+        int nFailed = 0;
+        Object[] row;
+        for(int i = 0; i < files.size(); i++) {
+            row = getRow(futures.get(i), files.get(i), 4);
+            writer.write(row);
+            if(!"OK".equals(row[1])
+                || !("OK".equals(row[2]) || "CREATED".equals(row[2]))) {
+                nFailed++;
+            }
+        }
+        writer.flush();
+        return nFailed;
+    }
+
+    /**
+     * Writes the rows in order and counts the ones with errors, which have a
+     * non-null last value.
+     */
+    private static int writeRows(RecordWriter writer, List<File> files,
+        List<Future<Object[]>> futures, int nColumns) throws IOException {
+        int nFailed = 0;
+        Object[] row;
+        for(int i = 0; i < files.size(); i++) {
+            row = getRow(futures.get(i), files.get(i), nColumns);
+            writer.write(row);
+            if(row[row.length - 1] != null) {
+                nFailed++;
+            }
+        }
+        writer.flush();
+        return nFailed;
+    }
+
+    /**
+     * Gets a row with the file name, the error message last, and nulls
+     * between.
+     */
+    private static Object[] errorRow(File file, int nColumns, Exception ex) {
+        Object[] row = new Object[nColumns];
+        row[0] = file.getPath();
+        row[nColumns - 1] = ex.getMessage();
+        return row;
+    }
+
+    /**
+     * Gets the row for a file, converting a failure of its task to an error
+     * row.
+     */
+    private static Object[] getRow(Future<Object[]> future, File file,
+        int nColumns) {
+        try {
+            return getResult(future);
+        } catch(IOException ex) {
+            return errorRow(file, nColumns, ex);
+        }
+    }
+
+    /**
+     * Gets the rows for a file, converting a failure of its task to an error
+     * row.
+     */
+    private static List<Object[]> getRows(Future<List<Object[]>> future,
+        File file, int nColumns) {
+        try {
+            return getResult(future);
+        } catch(IOException ex) {
+            List<Object[]> rows = new ArrayList<Object[]>(1);
+            rows.add(errorRow(file, nColumns, ex));
+            return rows;
+        }
+    }
+
+    private static <T> T getResult(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch(InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted");
+        } catch(ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            IOException ioEx = new IOException(cause.getMessage());
+            ioEx.initCause(cause);
+            throw ioEx;
+        }
+    }
+
+    private static StripMetadata readMetadata(FileChannel channel, int index,
+        long offset) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(StripMetadata.METADATA_LENGTH);
+        EcgFileWriter.readFully(channel, buffer, offset);
+        return new StripMetadata(index, buffer.array(), 0);
+    }
+
+    private static String formatTime(StripMetadata metadata) {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format.format(new Date(metadata.getTime()));
+    }
+
+    /**
+     * Rounds to 2 decimal places, keeping NaN.
+     */
+    private static double round(double val) {
+        if(Double.isNaN(val) || Double.isInfinite(val)) {
+            return val;
+        }
+        return Math.round(val * 100) / 100.;
+    }
+
+    /**
+     * Parses a strip specification like 1-3,5 into a sorted list of indices
+     * without duplicates. The strip numbers start at 1 and the indices at 0.
+     * 
+     * @param spec The specification or null for all the strips.
+     * @param nStrips The number of strips.
+     * @return
+     * @throws IllegalArgumentException If the specification is invalid.
+     */
+    static List<Integer> parseStripSpec(String spec, int nStrips) {
+        TreeSet<Integer> indices = new TreeSet<Integer>();
+        if(spec == null) {
+            for(int i = 0; i < nStrips; i++) {
+                indices.add(i);
+            }
+            return new ArrayList<Integer>(indices);
+        }
+        String[] startEnd;
+        int start, end;
+        for(String token : spec.replaceAll("\\s", "").split(",")) {
+            startEnd = token.split("-");
+            try {
+                if(startEnd.length == 1) {
+                    start = end = Integer.parseInt(startEnd[0]);
+                } else if(startEnd.length == 2) {
+                    start = Integer.parseInt(startEnd[0]);
+                    end = Integer.parseInt(startEnd[1]);
+                } else {
+                    throw new NumberFormatException();
+                }
+            } catch(NumberFormatException ex) {
+                throw new IllegalArgumentException(
+                    "Invalid strip specification: " + spec);
+            }
+            if(start < 1 || end > nStrips || start > end) {
+                throw new IllegalArgumentException("Invalid strips " + token
+                    + " for " + nStrips + " strips");
+            }
+            for(int i = start; i <= end; i++) {
+                indices.add(i - 1);
+            }
+        }
+        return new ArrayList<Integer>(indices);
+    }
+
+    /**
+     * @param args
+     */
+    public static void main(String[] args) {
+        System.exit(new EcgCli().run(args));
+    }
+
+}
@@ -0,0 +1,165 @@
+package net.kenevans.ecg.md100a.cli;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * FileGlob expands file name patterns, so patterns work the same on all
+ * platforms whether or not the shell expands them. In a pattern, * matches any
+ * characters except /, ? matches one character except /, and ** matches any
+ * number of directories. A directory with no pattern gives the .cEcg files in
+ * it.
+ */
+public class FileGlob
+{
+    /** The extension of the files found in a directory. */
+    public static final String ECG_EXT = ".cEcg";
+
+    private FileGlob() {
+    }
+
+    /**
+     * Expands the given arguments to a list of files, sorted by path in each
+     * argument.
+     * 
+     * @param args The file names or patterns.
+     * @return
+     * @throws IOException If a file that is not a pattern does not exist.
+     */
+    public static List<File> expand(List<String> args) throws IOException {
+        List<File> files = new ArrayList<File>();
+        for(String arg : args) {
+            files.addAll(expand(arg));
+        }
+        return files;
+    }
+
+    /**
+     * Expands the given file name or pattern.
+     * 
+     * @param arg
+     * @return
+     * @throws IOException If the argument is not a pattern and does not
+     *             exist.
+     */
+    public static List<File> expand(String arg) throws IOException {
+        List<File> files = new ArrayList<File>();
+        String path = arg.replace(File.separatorChar, '/');
+        int wildcard = firstWildcard(path);
+        if(wildcard < 0) {
+            File file = new File(arg);
+            if(file.isDirectory()) {
+                File[] children = file.listFiles();
+                if(children != null) {
+                    for(File child : children) {
+                        if(child.isFile()
+                            && child.getName().toLowerCase().endsWith(
+                                ECG_EXT.toLowerCase())) {
+                            files.add(child);
+                        }
+                    }
+                }
+            } else if(file.exists()) {
+                files.add(file);
+            } else {
+                throw new IOException("File not found: " + arg);
+            }
+            Collections.sort(files);
+            return files;
+        }
+
+        // The directory before the first wildcard is the base
+        int slash = path.lastIndexOf('/', wildcard);
+        File base = slash < 0 ? new File(".") : new File(slash == 0 ? "/"
+            : path.substring(0, slash));
+        String rest = path.substring(slash + 1);
+        Pattern pattern = Pattern.compile(toRegex(rest));
+        int maxDepth = rest.indexOf("**") >= 0 ? Integer.MAX_VALUE
+            : count(rest, '/');
+        walk(base, "", 0, maxDepth, pattern, files);
+        Collections.sort(files);
+        return files;
+    }
+
+    /**
+     * Converts a glob pattern to a regular expression.
+     * 
+     * @param glob
+     * @return
+     */
+    static String toRegex(String glob) {
+        StringBuilder sb = new StringBuilder();
+        char ch;
+        for(int i = 0; i < glob.length(); i++) {
+            ch = glob.charAt(i);
+            if(ch == '*') {
+                if(i + 1 < glob.length() && glob.charAt(i + 1) == '*') {
+                    i++;
+                    if(i + 1 < glob.length() && glob.charAt(i + 1) == '/') {
+                        // **/ matches zero or more directories
+                        i++;
+                        sb.append("(?:.*/)?");
+                    } else {
+                        sb.append(".*");
+                    }
+                } else {
+                    sb.append("[^/]*");
+                }
+            } else if(ch == '?') {
+                sb.append("[^/]");
+            } else if("\\.[]{}()+-^$|".indexOf(ch) >= 0) {
+                sb.append('\\').append(ch);
+            } else {
+                sb.append(ch);
+            }
+        }
+        return sb.toString();
+    }
+
+    private static void walk(File dir, String relative, int depth,
+        int maxDepth, Pattern pattern, List<File> files) {
+        File[] children = dir.listFiles();
+        if(children == null) {
+            return;
+        }
+        String name;
+        for(File child : children) {
+            name = relative + child.getName();
+            if(child.isDirectory()) {
+                if(depth < maxDepth) {
+                    walk(child, name + "/", depth + 1, maxDepth, pattern,
+                        files);
+                }
+            } else if(pattern.matcher(name).matches()) {
+                files.add(child);
+            }
+        }
+    }
+
+    private static int firstWildcard(String path) {
+        int star = path.indexOf('*');
+        int question = path.indexOf('?');
+        if(star < 0) {
+            return question;
+        }
+        if(question < 0) {
+            return star;
+        }
+        return Math.min(star, question);
+    }
+
+    private static int count(String string, char ch) {
+        int n = 0;
+        for(int i = 0; i < string.length(); i++) {
+            if(string.charAt(i) == ch) {
+                n++;
+            }
+        }
+        return n;
+    }
+
+}
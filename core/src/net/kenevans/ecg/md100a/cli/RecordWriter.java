@@ -0,0 +1,151 @@
+package net.kenevans.ecg.md100a.cli;
+
+import java.io.PrintStream;
+
+/**
+ * RecordWriter writes records with a fixed set of columns as CSV or as JSON
+ * lines. Numbers are written as is, and other values as strings. NaN and
+ * infinite values are written as empty in CSV and as null in JSON.
+ */
+public class RecordWriter
+{
+    /**
+     * Format is the output format.
+     */
+    public static enum Format {
+        CSV, JSONL
+    };
+
+    private PrintStream out;
+    private Format format;
+    private String[] columns;
+
+    /**
+     * RecordWriter constructor. For CSV the column names are written at once.
+     * 
+     * @param out
+     * @param format
+     * @param columns The column names.
+     */
+    public RecordWriter(PrintStream out, Format format, String... columns) {
+        this.out = out;
+        this.format = format;
+        this.columns = columns;
+        if(format == Format.CSV) {
+            StringBuilder sb = new StringBuilder();
+            for(int i = 0; i < columns.length; i++) {
+                if(i > 0) {
+                    sb.append(',');
+                }
+                sb.append(csvValue(columns[i]));
+            }
+            out.println(sb.toString());
+        }
+    }
+
+    /**
+     * Writes a record.
+     * 
+     * @param values The values in the same order as the columns.
+     */
+    public void write(Object... values) {
+        if(values.length != columns.length) {
+            throw new IllegalArgumentException("Got " + values.length
+                + " values for " + columns.length + " columns");
+        }
+        StringBuilder sb = new StringBuilder();
+        if(format == Format.CSV) {
+            for(int i = 0; i < values.length; i++) {
+                if(i > 0) {
+                    sb.append(',');
+                }
+                sb.append(csvValue(values[i]));
+            }
+        } else {
+            sb.append('{');
+            for(int i = 0; i < values.length; i++) {
+                if(i > 0) {
+                    sb.append(", ");
+                }
+                sb.append(jsonString(columns[i])).append(": ");
+                sb.append(jsonValue(values[i]));
+            }
+            sb.append('}');
+        }
+        out.println(sb.toString());
+    }
+
+    /**
+     * Flushes the output.
+     */
+    public void flush() {
+        out.flush();
+    }
+
+    private static boolean isFinite(Object value) {
+        if(value instanceof Double || value instanceof Float) {
+            double val = ((Number)value).doubleValue();
+            return !Double.isNaN(val) && !Double.isInfinite(val);
+        }
+        return true;
+    }
+
+    private static String csvValue(Object value) {
+        if(value == null || !isFinite(value)) {
+            return "";
+        }
+        if(value instanceof Number) {
+            return value.toString();
+        }
+        String string = value.toString();
+        if(string.indexOf(',') >= 0 || string.indexOf('"') >= 0
+            || string.indexOf('\n') >= 0 || string.indexOf('\r') >= 0) {
+            return "\"" + string.replace("\"", "\"\"") + "\"";
+        }
+        return string;
+    }
+
+    private static String jsonValue(Object value) {
+        if(value == null || !isFinite(value)) {
+            return "null";
+        }
+        if(value instanceof Number || value instanceof Boolean) {
+            return value.toString();
+        }
+        return jsonString(value.toString());
+    }
+
+    private static String jsonString(String string) {
+        StringBuilder sb = new StringBuilder("\"");
+        char ch;
+        for(int i = 0; i < string.length(); i++) {
+            ch = string.charAt(i);
+            switch(ch) {
+            case '"':
+                sb.append("\\\"");
+                break;
+            case '\\':
+                sb.append("\\\\");
+                break;
+            case '\n':
+                sb.append("\\n");
+                break;
+            case '\r':
+                sb.append("\\r");
+                break;
+            case '\t':
+                sb.append("\\t");
+                break;
+            default:
+                if(ch < 0x20) {
+                    sb.append(String.format("\\u%04x", (int)ch));
+                } else {
+                    sb.append(ch);
+                }
+            }
+        }
+        sb.append('"');
+        return sb.toString();
+    }
+
+}
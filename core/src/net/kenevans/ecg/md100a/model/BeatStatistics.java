@@ -0,0 +1,156 @@
+package net.kenevans.ecg.md100a.model;
+
+/**
+ * BeatStatistics holds statistics about the heart beats in a strip, found
+ * from the R peaks. The rates are in beats per minute.
+ */
+public class BeatStatistics implements IConstants
+{
+    private int[] peakIndices;
+    private double meanBpm = Double.NaN;
+    private double sigmaBpm = Double.NaN;
+    private double maxBpm = Double.NaN;
+    private double minBpm = Double.NaN;
+    /** The index in peakIndices of the peak ending the shortest interval. */
+    private int maxIndex = -1;
+    /** The index in peakIndices of the peak ending the longest interval. */
+    private int minIndex = -1;
+    /** The RSA base line interval in samples. */
+    private double rsaBaseLine = Double.NaN;
+
+    /**
+     * BeatStatistics constructor.
+     * 
+     * @param peakIndices The indices of the R peaks.
+     */
+    public BeatStatistics(int[] peakIndices) {
+        this.peakIndices = peakIndices;
+        int nPeaks = peakIndices.length;
+        if(nPeaks < 2) {
+            return;
+        }
+        int nIntervals = nPeaks - 1;
+        rsaBaseLine = Strip.getAveragePeakInterval(peakIndices,
+            RSA_AVG_OUTLIER_FRACTION);
+        double max = -Double.MAX_VALUE;
+        double min = Double.MAX_VALUE;
+        double sum = 0.0;
+        double sumsq = 0.0;
+        double val;
+        for(int i = 1; i < nPeaks; i++) {
+            val = 60. / INDEX_TO_SEC / (peakIndices[i] - peakIndices[i - 1]);
+            if(val > max) {
+                max = val;
+                maxIndex = i;
+            }
+            if(val < min) {
+                min = val;
+                minIndex = i;
+            }
+            sum += val;
+            sumsq += val * val;
+        }
+        maxBpm = max;
+        minBpm = min;
+        meanBpm = sum / nIntervals;
+        sigmaBpm = Math.sqrt((sumsq - nIntervals * meanBpm * meanBpm)
+            / (nIntervals - 1));
+    }
+
+    /**
+     * Finds the R peaks in the given values and gets the statistics for them.
+     * 
+     * @param vals The values, processed as desired.
+     * @return
+     */
+    public static BeatStatistics compute(double[] vals) {
+        return new BeatStatistics(Strip.getPeakIndices(vals));
+    }
+
+    /**
+     * @return If there are at least two peaks, so the rates are defined.
+     */
+    public boolean hasIntervals() {
+        return peakIndices.length > 1;
+    }
+
+    /**
+     * @return The value of peakIndices.
+     */
+    public int[] getPeakIndices() {
+        return peakIndices;
+    }
+
+    /**
+     * @return The number of R peaks.
+     */
+    public int getNPeaks() {
+        return peakIndices.length;
+    }
+
+    /**
+     * @return The number of intervals between R peaks.
+     */
+    public int getNIntervals() {
+        return Math.max(0, peakIndices.length - 1);
+    }
+
+    /**
+     * @return The mean rate.
+     */
+    public double getMeanBpm() {
+        return meanBpm;
+    }
+
+    /**
+     * @return The standard deviation of the rate.
+     */
+    public double getSigmaBpm() {
+        return sigmaBpm;
+    }
+
+    /**
+     * @return The maximum rate.
+     */
+    public double getMaxBpm() {
+        return maxBpm;
+    }
+
+    /**
+     * @return The time in sec of the peak ending the shortest interval.
+     */
+    public double getMaxBpmTime() {
+        return maxIndex < 0 ? Double.NaN : peakIndices[maxIndex]
+            * INDEX_TO_SEC;
+    }
+
+    /**
+     * @return The minimum rate.
+     */
+    public double getMinBpm() {
+        return minBpm;
+    }
+
+    /**
+     * @return The time in sec of the peak ending the longest interval.
+     */
+    public double getMinBpmTime() {
+        return minIndex < 0 ? Double.NaN : peakIndices[minIndex]
+            * INDEX_TO_SEC;
+    }
+
+    /**
+     * @return The RSA base line interval in samples.
+     */
+    public double getRsaBaseLine() {
+        return rsaBaseLine;
+    }
+
+    /**
+     * @return The RSA base line as a rate.
+     */
+    public double getRsaBaseLineBpm() {
+        return 60. / INDEX_TO_SEC / rsaBaseLine;
+    }
+
+}
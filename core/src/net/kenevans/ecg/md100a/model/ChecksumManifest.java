@@ -0,0 +1,379 @@
+package net.kenevans.ecg.md100a.model;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+
+/**
+ * ChecksumManifest holds a CRC-32 for the header, for each strip, and for any
+ * trailing bytes after the last strip of a .cEcg file. The checksums are
+ * computed in parallel over the file, which is memory mapped a window of
+ * strips at a time, so files larger than 2 GB can be checked. The manifest
+ * is kept in a text file next to the .cEcg file and can be used later to
+ * verify that the file has not changed. The strip checksums can also be used
+ * as content keys, since strips with the same bytes have the same checksum.
+ */
+public class ChecksumManifest implements IConstants
+{
+    /** The extension added to the file name to get the manifest file name. */
+    public static final String MANIFEST_EXT = ".crc32";
+    /** The first line of a manifest file. */
+    private static final String MANIFEST_TITLE = "# MD100A ECG checksum manifest";
+
+    private long length;
+    private long headerChecksum;
+    private long[] stripChecksums;
+    /** The checksum of the trailing bytes or -1 if it is not known. */
+    private long tailChecksum;
+
+    private ChecksumManifest(long length, long headerChecksum,
+        long[] stripChecksums, long tailChecksum) {
+        this.length = length;
+        this.headerChecksum = headerChecksum;
+        this.stripChecksums = stripChecksums;
+        this.tailChecksum = tailChecksum;
+    }
+
+    /**
+     * Gets the CRC-32 of the given bytes. This can be used as a content key
+     * for a strip. Equal keys mean the contents are almost certainly equal.
+     * 
+     * @param bytes
+     * @return
+     */
+    public static long checksum(byte[] bytes) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length);
+        return crc.getValue();
+    }
+
+    /**
+     * Computes the manifest for the given file using a pool of nThreads
+     * threads. Each thread checksums a contiguous range of strips, mapping
+     * EcgFileScanner.WINDOW_STRIPS strips of it at a time. Bytes at the end
+     * that are too few to be a strip get a checksum of their own.
+     * 
+     * @param file
+     * @param nThreads The number of threads to use.
+     * @return
+     * @throws IOException
+     */
+    public static ChecksumManifest compute(File file, int nThreads)
+        throws IOException {
+        FileInputStream fis = new FileInputStream(file);
+        try {
+            final FileChannel channel = fis.getChannel();
+            long length = channel.size();
+            if(length < HEADER_LENGTH) {
+                throw new IOException("File is too short to have a header:"
+                    + LS + file.getPath());
+            }
+            int nStrips = (int)((length - HEADER_LENGTH) / STRIP_LENGTH);
+            final long[] stripChecksums = new long[nStrips];
+
+            ByteBuffer headerBuffer = ByteBuffer.allocate(HEADER_LENGTH);
+            EcgFileWriter.readFully(channel, headerBuffer, 0);
+            long headerChecksum = checksum(headerBuffer.array());
+            long tailStart = HEADER_LENGTH + (long)nStrips * STRIP_LENGTH;
+            ByteBuffer tailBuffer = ByteBuffer
+                .allocate((int)(length - tailStart));
+            EcgFileWriter.readFully(channel, tailBuffer, tailStart);
+            long tailChecksum = checksum(tailBuffer.array());
+
+            if(nThreads < 1) {
+                nThreads = 1;
+            }
+            int chunk = (nStrips + nThreads - 1) / nThreads;
+            ExecutorService pool = Executors.newFixedThreadPool(nThreads);
+            try {
+                List<Future<Void>> futures = new ArrayList<Future<Void>>();
+                for(int start = 0; start < nStrips; start += chunk) {
+                    final int first = start;
+                    final int end = Math.min(start + chunk, nStrips);
+                    futures.add(pool.submit(new Callable<Void>() {
+                        public Void call() throws IOException {
+                            // Each thread has its own windows and array
+                            byte[] bytes = new byte[STRIP_LENGTH];
+                            CRC32 crc = new CRC32();
+                            ByteBuffer window;
+                            int n;
+                            for(int i = first; i < end; i += n) {
+                                n = Math.min(EcgFileScanner.WINDOW_STRIPS,
+                                    end - i);
+                                window = channel.map(
+                                    FileChannel.MapMode.READ_ONLY,
+                                    HEADER_LENGTH + (long)i * STRIP_LENGTH,
+                                    (long)n * STRIP_LENGTH);
+                                for(int j = 0; j < n; j++) {
+                                    window.get(bytes);
+                                    crc.reset();
+                                    crc.update(bytes, 0, bytes.length);
+                                    stripChecksums[i + j] = crc.getValue();
+                                }
+                            }
+                            return null;
+                        }
+                    }));
+                }
+                for(Future<Void> future : futures) {
+                    EcgFileWriter.waitFor(future);
+                }
+            } finally {
+                pool.shutdownNow();
+            }
+            return new ChecksumManifest(length, headerChecksum,
+                stripChecksums, tailChecksum);
+        } finally {
+            fis.close();
+        }
+    }
+
+    /**
+     * Gets the manifest file for the given .cEcg file.
+     * 
+     * @param file
+     * @return
+     */
+    public static File getManifestFile(File file) {
+        return new File(file.getPath() + MANIFEST_EXT);
+    }
+
+    /**
+     * Writes the manifest to the given file.
+     * 
+     * @param manifestFile
+     * @throws IOException
+     */
+    public void write(File manifestFile) throws IOException {
+        PrintWriter out = new PrintWriter(new FileWriter(manifestFile));
+        try {
+            out.println(MANIFEST_TITLE);
+            out.println("length " + length);
+            out.println("header " + toHex(headerChecksum));
+            for(int i = 0; i < stripChecksums.length; i++) {
+                out.println("strip " + (i + 1) + " "
+                    + toHex(stripChecksums[i]));
+            }
+            out.println("tail " + toHex(tailChecksum));
+            if(out.checkError()) {
+                throw new IOException("Error writing "
+                    + manifestFile.getPath());
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Reads a manifest from the given file. Manifests written before the tail
+     * line was added are read with the tail checksum unknown.
+     * 
+     * @param manifestFile
+     * @return
+     * @throws IOException
+     */
+    public static ChecksumManifest read(File manifestFile) throws IOException {
+        BufferedReader in = new BufferedReader(new FileReader(manifestFile));
+        long length = -1;
+        long headerChecksum = -1;
+        long tailChecksum = -1;
+        List<Long> stripChecksums = new ArrayList<Long>();
+        int lineNum = 0;
+        String line;
+        String[] tokens;
+        try {
+            while((line = in.readLine()) != null) {
+                lineNum++;
+                line = line.trim();
+                if(line.length() == 0 || line.startsWith("#")) {
+                    continue;
+                }
+                tokens = line.split("\\s+");
+                if(tokens[0].equals("length") && tokens.length == 2) {
+                    length = Long.parseLong(tokens[1]);
+                } else if(tokens[0].equals("header") && tokens.length == 2) {
+                    headerChecksum = Long.parseLong(tokens[1], 16);
+                } else if(tokens[0].equals("strip")
+                    && tokens.length == 3
+                    && Integer.parseInt(tokens[1]) == stripChecksums.size()
+                        + 1) {
+                    stripChecksums.add(Long.parseLong(tokens[2], 16));
+                } else if(tokens[0].equals("tail") && tokens.length == 2) {
+                    tailChecksum = Long.parseLong(tokens[1], 16);
+                } else {
+                    throw new IOException("Invalid line " + lineNum + " in "
+                        + manifestFile.getPath() + ":" + LS + line);
+                }
+            }
+        } catch(NumberFormatException ex) {
+            throw new IOException("Invalid number at line " + lineNum
+                + " in " + manifestFile.getPath());
+        } finally {
+            in.close();
+        }
+        if(length < 0 || headerChecksum < 0) {
+            throw new IOException("Incomplete manifest:" + LS
+                + manifestFile.getPath());
+        }
+        long[] checksums = new long[stripChecksums.size()];
+        for(int i = 0; i < checksums.length; i++) {
+            checksums[i] = stripChecksums.get(i);
+        }
+        return new ChecksumManifest(length, headerChecksum, checksums,
+            tailChecksum);
+    }
+
+    /**
+     * Compares this manifest, which is the expected one, with the given one.
+     * 
+     * @param actual
+     * @return A list of the differences, which is empty if they are the same.
+     */
+    public List<String> compare(ChecksumManifest actual) {
+        List<String> differences = new ArrayList<String>();
+        if(length != actual.length) {
+            differences.add("Length is " + actual.length + ", expected "
+                + length);
+        }
+        if(headerChecksum != actual.headerChecksum) {
+            differences.add("Header checksum differs");
+        }
+        int n = Math.min(stripChecksums.length, actual.stripChecksums.length);
+        for(int i = 0; i < n; i++) {
+            if(stripChecksums[i] != actual.stripChecksums[i]) {
+                differences.add("Strip " + (i + 1) + " checksum differs");
+            }
+        }
+        if(stripChecksums.length != actual.stripChecksums.length) {
+            differences.add("Found " + actual.stripChecksums.length
+                + " strips, expected " + stripChecksums.length);
+        }
+        if(length == actual.length && tailChecksum >= 0
+            && actual.tailChecksum >= 0
+            && tailChecksum != actual.tailChecksum) {
+            differences.add("Trailing bytes checksum differs");
+        }
+        return differences;
+    }
+
+    /**
+     * Computes and writes the manifest for the given file to its manifest
+     * file.
+     * 
+     * @param file
+     * @param nThreads The number of threads to use.
+     * @return The manifest.
+     * @throws IOException
+     */
+    public static ChecksumManifest create(File file, int nThreads)
+        throws IOException {
+        ChecksumManifest manifest = compute(file, nThreads);
+        manifest.write(getManifestFile(file));
+        return manifest;
+    }
+
+    /**
+     * Verifies the given file against its manifest file.
+     * 
+     * @param file
+     * @param nThreads The number of threads to use.
+     * @return A list of the differences, which is empty if the file is
+     *         unchanged.
+     * @throws IOException
+     */
+    public static List<String> verify(File file, int nThreads)
+        throws IOException {
+        ChecksumManifest expected = read(getManifestFile(file));
+        return expected.compare(compute(file, nThreads));
+    }
+
+    private static String toHex(long checksum) {
+        return String.format("%08x", checksum);
+    }
+
+    /**
+     * @return The length of the file.
+     */
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     * @return The checksum of the header.
+     */
+    public long getHeaderChecksum() {
+        return headerChecksum;
+    }
+
+    /**
+     * @return The checksum of the trailing bytes or -1 if it is not known.
+     */
+    public long getTailChecksum() {
+        return tailChecksum;
+    }
+
+    /**
+     * @return The number of strips with checksums.
+     */
+    public int getNStrips() {
+        return stripChecksums.length;
+    }
+
+    /**
+     * Gets the checksum of the given strip, which can be used as a content key.
+     * 
+     * @param index The index of the strip.
+     * @return
+     */
+    public long getStripChecksum(int index) {
+        return stripChecksums[index];
+    }
+
+    /**
+     * Creates or verifies the manifests for the given files.
+     * 
+     * @param args create|verify followed by the files.
+     */
+    public static void main(String[] args) {
+        if(args.length < 2
+            || !(args[0].equals("create") || args[0].equals("verify"))) {
+            System.out.println("Usage: " + ChecksumManifest.class.getName()
+                + " create|verify file...");
+            return;
+        }
+        int nThreads = Runtime.getRuntime().availableProcessors();
+        for(int i = 1; i < args.length; i++) {
+            File file = new File(args[i]);
+            try {
+                if(args[0].equals("create")) {
+                    ChecksumManifest manifest = create(file, nThreads);
+                    System.out.println(file.getPath() + ": "
+                        + manifest.getNStrips() + " strips");
+                } else {
+                    List<String> differences = verify(file, nThreads);
+                    System.out.println(file.getPath() + ": "
+                        + (differences.isEmpty() ? "OK" : "FAILED"));
+                    for(String difference : differences) {
+                        System.out.println("  " + difference);
+                    }
+                }
+            } catch(IOException ex) {
+                System.out.println(file.getPath() + ": " + ex.getMessage());
+            }
+        }
+    }
+
+}
@@ -0,0 +1,247 @@
+package net.kenevans.ecg.md100a.model;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * CodecBenchmark compares parsing with LittleEndianDataInputStream to parsing
+ * with LittleEndianCodec for the header, the strip metadata, and the strip
+ * waveforms of a file. Run it with the file name as an argument. It uses
+ * FILE_PATH if there is no argument.
+ */
+public class CodecBenchmark implements IConstants
+{
+    /** The number of warm-up passes before timing. */
+    private static final int N_WARMUP = 100;
+    /** The number of timed passes. */
+    private static final int N_PASSES = 200;
+
+    /** Used so the JIT cannot eliminate the work. */
+    private static long sink;
+
+    /**
+     * Parses the header fields the way the Header constructor used to.
+     * 
+     * @param data
+     * @throws IOException
+     */
+    private static void parseHeaderWithStream(byte[] data) throws IOException {
+        LittleEndianDataInputStream dis = new LittleEndianDataInputStream(
+            new ByteArrayInputStream(data));
+        sink += dis.readInt();
+        byte[] stringData;
+        for(Header.Field field : Header.Field.values()) {
+            if(field == Header.Field.N_STRIPS) {
+                continue;
+            }
+            stringData = new byte[field.getLength()];
+            dis.readFully(stringData);
+            sink += getStringWithStream(stringData).length();
+        }
+    }
+
+    /**
+     * Gets a string the way EcgFileModel.getString used to.
+     * 
+     * @param bytes
+     * @return
+     * @throws IOException
+     */
+    private static String getStringWithStream(byte[] bytes)
+        throws IOException {
+        String string = "";
+        LittleEndianDataInputStream dis = new LittleEndianDataInputStream(
+            new ByteArrayInputStream(bytes));
+        char ch = 0;
+        try {
+            while(true) {
+                ch = dis.readChar();
+                if(ch == 0) {
+                    break;
+                }
+                string += ch;
+            }
+        } catch(EOFException ex) {
+            // Do nothing
+        }
+        return string;
+    }
+
+    /**
+     * Parses the header fields with the codec.
+     * 
+     * @param data
+     */
+    private static void parseHeaderWithCodec(byte[] data) {
+        ByteBuffer buffer = LittleEndianCodec.wrap(data);
+        sink += buffer.getInt(Header.Field.N_STRIPS.getOffset());
+        for(Header.Field field : Header.Field.values()) {
+            if(field == Header.Field.N_STRIPS) {
+                continue;
+            }
+            sink += Header.getField(buffer, 0, field).length();
+        }
+    }
+
+    /**
+     * Reads the metadata shorts of all the strips with a stream.
+     * 
+     * @param data
+     * @param nStrips
+     * @throws IOException
+     */
+    private static void parseMetadataWithStream(byte[] data, int nStrips)
+        throws IOException {
+        LittleEndianDataInputStream dis;
+        for(int i = 0; i < nStrips; i++) {
+            dis = new LittleEndianDataInputStream(new ByteArrayInputStream(
+                data, HEADER_LENGTH + i * STRIP_LENGTH, STRIP_LENGTH));
+            for(int j = 0; j < StripMetadata.METADATA_LENGTH / 2; j++) {
+                sink += dis.readShort();
+            }
+        }
+    }
+
+    /**
+     * Reads the metadata shorts of all the strips with the codec.
+     * 
+     * @param data
+     * @param nStrips
+     */
+    private static void parseMetadataWithCodec(byte[] data, int nStrips) {
+        ByteBuffer buffer = LittleEndianCodec.wrap(data);
+        int start;
+        for(int i = 0; i < nStrips; i++) {
+            start = HEADER_LENGTH + i * STRIP_LENGTH;
+            for(int j = 0; j < StripMetadata.METADATA_LENGTH; j += 2) {
+                sink += buffer.getShort(start + j);
+            }
+        }
+    }
+
+    /**
+     * Decodes the waveforms of all the strips with a stream the way
+     * Strip.getDataAsBytes used to.
+     * 
+     * @param strips
+     * @throws IOException
+     */
+    @SuppressWarnings("deprecation")
+    private static void decodeWithStream(Strip[] strips) throws IOException {
+        double[] vals;
+        for(Strip strip : strips) {
+            vals = new double[STRIP_N_DATA_VALS];
+            LittleEndianDataInputStream dis = new LittleEndianDataInputStream(
+                new ByteArrayInputStream(strip.getData()));
+            dis.skipBytes(STRIP_DATA_START);
+            for(int seg = 0; seg < STRIP_N_DATA_SEGMENTS; seg++) {
+                strip.readSegmentBytes(dis, vals, seg * SEGMENT_N_DATA_VALS);
+            }
+            sink += (long)vals[vals.length - 1];
+        }
+    }
+
+    /**
+     * Decodes the waveforms of all the strips with the array decoder.
+     * 
+     * @param strips
+     */
+    private static void decodeWithCodec(Strip[] strips) {
+        double[] vals;
+        for(Strip strip : strips) {
+            vals = Strip.decodeData(strip.getData());
+            sink += (long)vals[vals.length - 1];
+        }
+    }
+
+    /**
+     * Prints the result of a benchmark.
+     * 
+     * @param name
+     * @param nanos The total time for all the passes.
+     * @param nOps The number of operations in one pass.
+     * @param nBytes The number of bytes processed in one pass.
+     */
+    private static void report(String name, long nanos, int nOps, long nBytes) {
+        double nsPerOp = (double)nanos / N_PASSES / nOps;
+        double mbPerSec = (double)nBytes * N_PASSES / nanos * 1.e9 / 1.e6;
+        System.out.println(String.format("%-20s %12.1f ns/op %10.1f MB/s",
+            name, nsPerOp, mbPerSec));
+    }
+
+    /**
+     * @param args The file name, or none to use FILE_PATH.
+     */
+    public static void main(String[] args) {
+        String fileName = args.length > 0 ? args[0] : FILE_PATH;
+        System.out.println("Starting " + CodecBenchmark.class.getName());
+        System.out.println(fileName);
+        try {
+            byte[] data = EcgFileModel.openFile(fileName);
+            byte[] headerData = Arrays.copyOf(data, HEADER_LENGTH);
+            int nStrips = (data.length - HEADER_LENGTH) / STRIP_LENGTH;
+            Strip[] strips = new Strip[nStrips];
+            for(int i = 0; i < nStrips; i++) {
+                int offset = HEADER_LENGTH + i * STRIP_LENGTH;
+                strips[i] = new Strip(Arrays.copyOfRange(data, offset, offset
+                    + STRIP_LENGTH));
+            }
+            long stripBytes = (long)nStrips * STRIP_LENGTH;
+            System.out.println("nStrips=" + nStrips);
+            System.out.println();
+
+            long start;
+            long[] nanos = new long[6];
+            for(int pass = -N_WARMUP; pass < N_PASSES; pass++) {
+                boolean timed = pass >= 0;
+                start = System.nanoTime();
+                parseHeaderWithStream(headerData);
+                if(timed) {
+                    nanos[0] += System.nanoTime() - start;
+                }
+                start = System.nanoTime();
+                parseHeaderWithCodec(headerData);
+                if(timed) {
+                    nanos[1] += System.nanoTime() - start;
+                }
+                start = System.nanoTime();
+                parseMetadataWithStream(data, nStrips);
+                if(timed) {
+                    nanos[2] += System.nanoTime() - start;
+                }
+                start = System.nanoTime();
+                parseMetadataWithCodec(data, nStrips);
+                if(timed) {
+                    nanos[3] += System.nanoTime() - start;
+                }
+                start = System.nanoTime();
+                decodeWithStream(strips);
+                if(timed) {
+                    nanos[4] += System.nanoTime() - start;
+                }
+                start = System.nanoTime();
+                decodeWithCodec(strips);
+                if(timed) {
+                    nanos[5] += System.nanoTime() - start;
+                }
+            }
+            report("Header stream", nanos[0], 1, HEADER_LENGTH);
+            report("Header codec", nanos[1], 1, HEADER_LENGTH);
+            report("Metadata stream", nanos[2], nStrips,
+                (long)nStrips * StripMetadata.METADATA_LENGTH);
+            report("Metadata codec", nanos[3], nStrips,
+                (long)nStrips * StripMetadata.METADATA_LENGTH);
+            report("Decode stream", nanos[4], nStrips, stripBytes);
+            report("Decode codec", nanos[5], nStrips, stripBytes);
+            System.out.println("(" + sink + ")");
+        } catch(IOException ex) {
+            ex.printStackTrace();
+        }
+        System.out.println();
+        System.out.println("All Done");
+    }
+
+}
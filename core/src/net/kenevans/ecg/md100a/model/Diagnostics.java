@@ -0,0 +1,84 @@
+package net.kenevans.ecg.md100a.model;
+
+/**
+ * Diagnostics reports errors from the model classes to a pluggable sink, so
+ * the model does not depend on any user interface. The default sink prints
+ * to System.err. An application with a user interface installs its own sink,
+ * for example one that shows dialogs.
+ */
+public class Diagnostics
+{
+    /**
+     * Sink receives the error messages.
+     */
+    public static interface Sink
+    {
+        /**
+         * Reports an error.
+         * 
+         * @param msg
+         */
+        void errMsg(String msg);
+
+        /**
+         * Reports an exception.
+         * 
+         * @param msg
+         * @param ex
+         */
+        void excMsg(String msg, Exception ex);
+    }
+
+    /** A sink that prints to System.err. */
+    public static final Sink CONSOLE_SINK = new Sink() {
+        public void errMsg(String msg) {
+            System.err.println(msg);
+        }
+
+        public void excMsg(String msg, Exception ex) {
+            System.err.println(msg);
+            System.err.println(ex);
+        }
+    };
+
+    private static volatile Sink sink = CONSOLE_SINK;
+
+    private Diagnostics() {
+    }
+
+    /**
+     * Reports an error to the current sink.
+     * 
+     * @param msg
+     */
+    public static void errMsg(String msg) {
+        sink.errMsg(msg);
+    }
+
+    /**
+     * Reports an exception to the current sink.
+     * 
+     * @param msg
+     * @param ex
+     */
+    public static void excMsg(String msg, Exception ex) {
+        sink.excMsg(msg, ex);
+    }
+
+    /**
+     * @return The current sink.
+     */
+    public static Sink getSink() {
+        return sink;
+    }
+
+    /**
+     * Sets the sink. Null restores the default, which prints to System.err.
+     * 
+     * @param sink The new sink.
+     */
+    public static void setSink(Sink sink) {
+        Diagnostics.sink = sink == null ? CONSOLE_SINK : sink;
+    }
+
+}
@@ -0,0 +1,227 @@
+package net.kenevans.ecg.md100a.model;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * EcgFileMerger merges several .cEcg files into one file with the strips in
+ * time order and duplicate strips removed. Only the strip metadata is read.
+ * The strips are copied from the inputs to the output with channel to channel
+ * transfers and are never decoded.
+ */
+public class EcgFileMerger implements IConstants
+{
+    /** Orders metadata by time, keeping the original order for equal times. */
+    static final Comparator<StripMetadata> TIME_COMPARATOR =
+        new Comparator<StripMetadata>() {
+            public int compare(StripMetadata m1, StripMetadata m2) {
+                long t1 = m1.getTime();
+                long t2 = m2.getTime();
+                if(t1 != t2) {
+                    return t1 < t2 ? -1 : 1;
+                }
+                return m1.getIndex() - m2.getIndex();
+            }
+        };
+
+    /**
+     * Cursor keeps the position in the sorted metadata for one input.
+     */
+    private static class Cursor
+    {
+        int fileIndex;
+        StripMetadata[] metadata;
+        int next;
+
+        StripMetadata current() {
+            return metadata[next];
+        }
+    }
+
+    /**
+     * Merges the strips from the given files into the output file. The
+     * strips in each input are sorted by time, and the inputs are then merged
+     * with a k-way merge. A strip with the same time, diagnostic, and heart
+     * rate as one already written is dropped. The header is taken from the
+     * first input with nStrips changed. The output is deleted if it is not
+     * finished.
+     * 
+     * @param inputs The files to merge.
+     * @param output The file to write. Must not be one of the inputs.
+     * @return The number of strips written.
+     * @throws IOException
+     */
+    public static int merge(File[] inputs, File output) throws IOException {
+        if(inputs.length == 0) {
+            throw new IOException("There are no files to merge");
+        }
+        for(File input : inputs) {
+            if(input.getCanonicalFile().equals(output.getCanonicalFile())) {
+                throw new IOException("Cannot merge a file into itself:" + LS
+                    + output.getPath());
+            }
+        }
+        FileInputStream[] streams = new FileInputStream[inputs.length];
+        FileChannel[] channels = new FileChannel[inputs.length];
+        try {
+            PriorityQueue<Cursor> queue = new PriorityQueue<Cursor>(
+                inputs.length, new Comparator<Cursor>() {
+                    public int compare(Cursor c1, Cursor c2) {
+                        int res = TIME_COMPARATOR.compare(c1.current(),
+                            c2.current());
+                        if(res == 0) {
+                            res = c1.fileIndex - c2.fileIndex;
+                        }
+                        return res;
+                    }
+                });
+            for(int i = 0; i < inputs.length; i++) {
+                streams[i] = new FileInputStream(inputs[i]);
+                channels[i] = streams[i].getChannel();
+                Cursor cursor = new Cursor();
+                cursor.fileIndex = i;
+                cursor.metadata = StripMetadata.read(channels[i],
+                    inputs[i].getPath());
+                // Sort is stable
+                Arrays.sort(cursor.metadata, TIME_COMPARATOR);
+                if(cursor.metadata.length > 0) {
+                    queue.add(cursor);
+                }
+            }
+
+            // Use the header from the first file
+            ByteBuffer headerBuffer = ByteBuffer.allocate(HEADER_LENGTH);
+            EcgFileWriter.readFully(channels[0], headerBuffer, 0);
+
+            FileOutputStream fos = new FileOutputStream(output);
+            boolean done = false;
+            try {
+                FileChannel dest = fos.getChannel();
+                // Write the header now and fix nStrips at the end
+                headerBuffer.rewind();
+                while(headerBuffer.hasRemaining()) {
+                    dest.write(headerBuffer);
+                }
+
+                int nStrips = 0;
+                // The strips written with the same time as the last one
+                List<StripMetadata> sameTime = new ArrayList<StripMetadata>();
+                long lastTime = Long.MIN_VALUE;
+                // The run of consecutive strips from one file to transfer
+                int runFile = -1;
+                int runStart = -1;
+                int runLength = 0;
+                while(!queue.isEmpty()) {
+                    Cursor cursor = queue.poll();
+                    StripMetadata metadata = cursor.current();
+                    cursor.next++;
+                    if(cursor.next < cursor.metadata.length) {
+                        queue.add(cursor);
+                    }
+
+                    // Check for duplicates
+                    long time = metadata.getTime();
+                    if(time != lastTime) {
+                        sameTime.clear();
+                        lastTime = time;
+                    }
+                    boolean duplicate = false;
+                    for(StripMetadata written : sameTime) {
+                        if(written.isSameStrip(metadata)) {
+                            duplicate = true;
+                            break;
+                        }
+                    }
+                    if(duplicate) {
+                        continue;
+                    }
+                    sameTime.add(metadata);
+                    nStrips++;
+
+                    // Extend the run or transfer it and start a new one
+                    int index = metadata.getIndex();
+                    if(cursor.fileIndex == runFile
+                        && index == runStart + runLength) {
+                        runLength++;
+                        continue;
+                    }
+                    if(runLength > 0) {
+                        EcgFileWriter.transferFully(channels[runFile],
+                            HEADER_LENGTH + (long)runStart * STRIP_LENGTH,
+                            (long)runLength * STRIP_LENGTH, dest);
+                    }
+                    runFile = cursor.fileIndex;
+                    runStart = index;
+                    runLength = 1;
+                }
+                if(runLength > 0) {
+                    EcgFileWriter.transferFully(channels[runFile],
+                        HEADER_LENGTH + (long)runStart * STRIP_LENGTH,
+                        (long)runLength * STRIP_LENGTH, dest);
+                }
+
+                // Fix the header
+                byte[] countData = new byte[4];
+                LittleEndianCodec.putInt(nStrips, countData, 0);
+                EcgFileWriter.writeFully(dest, ByteBuffer.wrap(countData),
+                    Header.Field.N_STRIPS.getOffset());
+                fos.close();
+                done = true;
+                return nStrips;
+            } finally {
+                if(!done) {
+                    try {
+                        fos.close();
+                    } catch(IOException ex) {
+                        // Do nothing
+                    }
+                    output.delete();
+                }
+            }
+        } finally {
+            for(FileInputStream stream : streams) {
+                if(stream != null) {
+                    try {
+                        stream.close();
+                    } catch(IOException ex) {
+                        // Do nothing
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Merges files from the command line.
+     * 
+     * @param args The output file followed by the files to merge.
+     */
+    public static void main(String[] args) {
+        if(args.length < 2) {
+            System.out.println("Usage: " + EcgFileMerger.class.getName()
+                + " output input1 [input2 ...]");
+            return;
+        }
+        File[] inputs = new File[args.length - 1];
+        for(int i = 1; i < args.length; i++) {
+            inputs[i - 1] = new File(args[i]);
+        }
+        try {
+            int nStrips = merge(inputs, new File(args[0]));
+            System.out.println("Wrote " + nStrips + " strips to " + args[0]);
+        } catch(IOException ex) {
+            ex.printStackTrace();
+        }
+        System.out.println("All Done");
+    }
+
+}
@@ -1,16 +1,14 @@
 package net.kenevans.ecg.md100a.model;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.DataOutputStream;
 import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
-
-import net.kenevans.core.utils.Utils;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
 
 /*
  * Created on Jun 24, 2012
@@ -29,51 +27,94 @@ public class EcgFileModel implements IConstants
     Header header;
     private Strip[] strips;
     private int nStrips;
+    private boolean cancelled;
+
+    /**
+     * LoadListener is notified as the strips are made, so a user interface
+     * can show them before the whole file is loaded.
+     */
+    public static interface LoadListener
+    {
+        /**
+         * Called when the header has been read and the strips found.
+         * 
+         * @param header
+         * @param nStrips The number of strips that will be made.
+         */
+        void headerLoaded(Header header, int nStrips);
+
+        /**
+         * Called after each strip is made.
+         * 
+         * @param strip
+         * @param index
+         * @return Whether to continue. Returning false cancels the loading.
+         */
+        boolean stripLoaded(Strip strip, int index);
+    }
 
     public EcgFileModel(String fileName) {
+        this(fileName, null);
+    }
+
+    /**
+     * EcgFileModel constructor that reports its progress.
+     * 
+     * @param fileName
+     * @param listener The listener or null. If it cancels, the model has
+     *            only the strips made so far.
+     */
+    public EcgFileModel(String fileName, LoadListener listener) {
         this.fileName = fileName;
         try {
             this.data = openFile(fileName);
             byte[] headerBytes = getHeaderBytes(data);
             header = new Header(headerBytes);
+            // Find the strips, which may not agree with the header if the
+            // file is damaged
+            EcgFileScanner.Result result = EcgFileScanner.scan(
+                LittleEndianCodec.wrap(data), fileName);
+            long[] offsets = result.getStripOffsets();
+            if(!result.isClean()) {
+                Diagnostics.errMsg("The file is damaged. Only the "
+                    + offsets.length + " strips found will be used." + LS
+                    + LS + result.getInfo());
+            }
             // Make the strips
-            nStrips = header.getNStrips();
+            nStrips = offsets.length;
             strips = new Strip[nStrips];
+            if(listener != null) {
+                listener.headerLoaded(header, nStrips);
+            }
             for(int i = 0; i < nStrips; i++) {
-                strips[i] = new Strip(getStripBytes(i, data));
+                strips[i] = new Strip(getStripBytes((int)offsets[i], data),
+                    offsets[i]);
+                if(listener != null && !listener.stripLoaded(strips[i], i)) {
+                    cancelled = true;
+                    nStrips = i + 1;
+                    strips = Arrays.copyOf(strips, nStrips);
+                    break;
+                }
             }
         } catch(Exception ex) {
             ex.printStackTrace();
-            Utils.excMsg("Error reading " + fileName, ex);
+            Diagnostics.excMsg("Error reading " + fileName, ex);
         }
     }
 
     private byte[] getHeaderBytes(byte[] data) throws IOException {
-        int len = HEADER_LENGTH;
-        byte[] bytes = new byte[len];
-        ByteArrayInputStream bais = new ByteArrayInputStream(data);
-        LittleEndianDataInputStream dis = new LittleEndianDataInputStream(bais);
-        dis.readFully(bytes);
-        dis.close();
-        return bytes;
+        if(data.length < HEADER_LENGTH) {
+            throw new EOFException("File is too short to have a header");
+        }
+        return Arrays.copyOfRange(data, 0, HEADER_LENGTH);
     }
 
-    private byte[] getStripBytes(int nStrip, byte[] data) throws IOException {
-        int len = STRIP_LENGTH;
-        byte[] bytes = new byte[len];
-        ByteArrayInputStream bais = new ByteArrayInputStream(data);
-        LittleEndianDataInputStream dis = new LittleEndianDataInputStream(bais);
-        dis.skip(HEADER_LENGTH);
-        // Skip over the others
-        for(int i = 0; i < nStrip; i++) {
-            dis.skip(STRIP_LENGTH);
+    private byte[] getStripBytes(int start, byte[] data) throws IOException {
+        if(data.length < start + STRIP_LENGTH) {
+            throw new EOFException("File is too short to have a strip at "
+                + start);
         }
-        // System.out.println("data.length=" + data.length + LS +
-        // "STRIP_LENGTH="
-        // + STRIP_LENGTH + LS + "dis.available()=" + dis.available());
-        dis.readFully(bytes);
-        dis.close();
-        return bytes;
+        return Arrays.copyOfRange(data, start, start + STRIP_LENGTH);
     }
 
     private String getInfo() {
@@ -100,61 +141,52 @@ public class EcgFileModel implements IConstants
     }
 
     /**
-     * Reads the file using a LittleEndianDataInputStream.
+     * Reads the file using a FileChannel.
      * 
      * @param fileName
      * @return The bytes in the file.
      * @throws IOException
      */
     public static byte[] openFile(String fileName) throws IOException {
-        File file = new File(fileName);
-        int len = (int)file.length();
-        byte[] data = new byte[len];
-        FileInputStream fis = new FileInputStream(file);
-        LittleEndianDataInputStream dis = new LittleEndianDataInputStream(fis);
-        dis.readFully(data);
-        dis.close();
-        return data;
+        FileInputStream fis = new FileInputStream(fileName);
+        try {
+            FileChannel channel = fis.getChannel();
+            byte[] data = new byte[(int)channel.size()];
+            EcgFileWriter.readFully(channel, ByteBuffer.wrap(data), 0);
+            return data;
+        } finally {
+            fis.close();
+        }
     }
 
     /**
-     * Writes the file using the given bytes.
+     * Writes the file using the given bytes. Use EcgFileWriter to write a file
+     * without first assembling it in memory.
      * 
      * @param file
      * @param saveData
      * @throws IOException
      */
     public static void saveFile(File file, byte[] saveData) throws IOException {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        DataOutputStream dos = new DataOutputStream(baos);
-        dos.write(saveData);
-        dos.close();
-        // Write it to the file (This CTOR does not append)
+        // Write it directly to the file (This CTOR does not append)
         OutputStream os = new FileOutputStream(file);
-        baos.writeTo(os);
-        os.close();
-    }
-
-    public static String getString(byte[] bytes) throws IOException {
-        String string = "";
-        ByteArrayInputStream bais = new ByteArrayInputStream(bytes);
-        LittleEndianDataInputStream dis = new LittleEndianDataInputStream(bais);
-        // Didn't work
-        // string = dis.readUTF();
-        char ch = 0;
         try {
-            while(true) {
-                ch = dis.readChar();
-                if(ch == 0) {
-                    break;
-                }
-                string += Character.toString(ch);
-            }
-        } catch(EOFException e) {
-            // Do nothing
+            os.write(saveData);
+        } finally {
+            os.close();
         }
-        dis.close();
-        return string;
+    }
+
+    /**
+     * Gets a UTF-16LE string from the given array. The string ends at the
+     * first null or at the end of the array.
+     * 
+     * @param bytes The array to use.
+     * @return The string.
+     */
+    public static String getString(byte[] bytes) {
+        return LittleEndianCodec.getString(ByteBuffer.wrap(bytes), 0,
+            bytes.length);
     }
 
     /**
@@ -166,66 +198,51 @@ public class EcgFileModel implements IConstants
      * @param start The index of the array to start inserting.
      * @param maxBytes The maximum number of bytes to write into the array
      *            including the two bytes for the null at the end. Must be even.
+     * @see LittleEndianCodec#putString(String, ByteBuffer, int, int)
      */
     public static void insertString(String string, byte[] bytes, int start,
         int maxBytes) {
-        int maxLen = maxBytes / 2 - 1;
-        int i;
-        char ch;
-        int index = start;
-        for(i = 0; i < string.length(); i++) {
-            if(i >= maxLen) {
-                break;
-            }
-            ch = string.charAt(i);
-            insertChar(ch, bytes, index);
-            index += 2;
-        }
-        // Write the null
-        insertChar((char)0, bytes, index);
-        index += 2;
+        LittleEndianCodec.putString(string, ByteBuffer.wrap(bytes), start,
+            maxBytes);
     }
 
     /**
-     * Inserts the given char into the given array. Does not check for overflow.
+     * Inserts the given char into the given array.
      * 
      * @param val The char to insert.
      * @param bytes The array in which to insert it.
      * @param start The index of the array to start inserting.
+     * @deprecated Use LittleEndianCodec.putChar.
      */
+    @Deprecated
     public static void insertChar(char val, byte[] bytes, int start) {
-        int index = start;
-        bytes[index++] = (byte)(val & 0xff);
-        bytes[index++] = (byte)((val >> 8) & 0xff);
+        LittleEndianCodec.putChar(val, bytes, start);
     }
 
     /**
-     * Inserts the given short into the given array. Does not check for
-     * overflow.
+     * Inserts the given short into the given array.
      * 
      * @param val The short to insert.
      * @param bytes The array in which to insert it.
      * @param start The index of the array to start inserting.
+     * @deprecated Use LittleEndianCodec.putShort.
      */
+    @Deprecated
     public static void insertShort(short val, byte[] bytes, int start) {
-        int index = start;
-        bytes[index++] = (byte)(val & 0xff);
-        bytes[index++] = (byte)((val >> 8) & 0xff);
+        LittleEndianCodec.putShort(val, bytes, start);
     }
 
     /**
-     * Inserts the given int into the given array. Does not check for overflow.
+     * Inserts the given int into the given array.
      * 
      * @param val The int to insert.
      * @param bytes The array in which to insert it.
      * @param start The index of the array to start inserting.
+     * @deprecated Use LittleEndianCodec.putInt.
      */
+    @Deprecated
     public static void insertInt(int val, byte[] bytes, int start) {
-        int index = start;
-        bytes[index++] = (byte)(val & 0xff);
-        bytes[index++] = (byte)((val >> 8) & 0xff);
-        bytes[index++] = (byte)((val >> 16) & 0xff);
-        bytes[index++] = (byte)((val >> 24) & 0xff);
+        LittleEndianCodec.putInt(val, bytes, start);
     }
 
     /**
@@ -263,6 +280,13 @@ public class EcgFileModel implements IConstants
         return nStrips;
     }
 
+    /**
+     * @return If the loading was cancelled by the LoadListener.
+     */
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
     /**
      * @param args
      */
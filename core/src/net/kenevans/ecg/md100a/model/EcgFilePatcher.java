@@ -0,0 +1,183 @@
+package net.kenevans.ecg.md100a.model;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * EcgFilePatcher changes header fields or single strips of an existing .cEcg
+ * file in place. Only the bytes involved are read and written, with
+ * positional channel reads and writes, however large the file is. The header
+ * is read once and kept, and each field is written as it is set. The header
+ * fields are written with the same layout Header.getData() uses. Nothing is
+ * memory mapped, so the file is not locked after it is closed.
+ */
+public class EcgFilePatcher implements IConstants
+{
+    private File file;
+    private RandomAccessFile raf;
+    private FileChannel channel;
+    /** A copy of the header, kept up to date with the fields written. */
+    private ByteBuffer headerBuffer;
+    private int nStrips;
+
+    /**
+     * EcgFilePatcher constructor. Opens the file for reading and writing.
+     * 
+     * @param file The file to patch.
+     * @throws IOException
+     */
+    public EcgFilePatcher(File file) throws IOException {
+        this.file = file;
+        raf = new RandomAccessFile(file, "rw");
+        try {
+            channel = raf.getChannel();
+            if(channel.size() < HEADER_LENGTH) {
+                throw new IOException("File is too short to have a header:"
+                    + LS + file.getPath());
+            }
+            headerBuffer = LittleEndianCodec.wrap(new byte[HEADER_LENGTH]);
+            EcgFileWriter.readFully(channel, headerBuffer, 0);
+            nStrips = headerBuffer.getInt(Header.Field.N_STRIPS.getOffset());
+            if(nStrips < 0
+                || channel.size() < HEADER_LENGTH + (long)nStrips
+                    * STRIP_LENGTH) {
+                throw new IOException("The header specifies " + nStrips
+                    + " strips, but the file is too short:" + LS
+                    + file.getPath());
+            }
+        } catch(IOException ex) {
+            raf.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * Gets the value of a string field in the header.
+     * 
+     * @param field The Field. Should not be N_STRIPS.
+     * @return The value.
+     */
+    public String getField(Header.Field field) {
+        return Header.getField(headerBuffer, 0, field);
+    }
+
+    /**
+     * Sets the value of a string field in the header. The string is truncated
+     * if it is too long for the field.
+     * 
+     * @param field The Field. Cannot be N_STRIPS.
+     * @param value The new value.
+     * @throws IOException
+     */
+    public void setField(Header.Field field, String value) throws IOException {
+        if(field == Header.Field.N_STRIPS) {
+            throw new IOException("The number of strips cannot be patched");
+        }
+        byte[] fieldData = new byte[field.getLength()];
+        LittleEndianCodec.putString(value, LittleEndianCodec.wrap(fieldData), 0,
+            field.getLength());
+        EcgFileWriter.writeFully(channel, ByteBuffer.wrap(fieldData), field
+            .getOffset());
+        headerBuffer.position(field.getOffset());
+        headerBuffer.put(fieldData);
+    }
+
+    /**
+     * Gets the bytes for a strip.
+     * 
+     * @param index The index of the strip.
+     * @return The STRIP_LENGTH bytes of the strip.
+     * @throws IOException
+     */
+    public byte[] getStripData(int index) throws IOException {
+        byte[] stripData = new byte[STRIP_LENGTH];
+        EcgFileWriter.readFully(channel, ByteBuffer.wrap(stripData),
+            getStripPosition(index));
+        return stripData;
+    }
+
+    /**
+     * Replaces the bytes for a strip and forces them to the device.
+     * 
+     * @param index The index of the strip.
+     * @param stripData The new bytes. Must be STRIP_LENGTH long.
+     * @throws IOException
+     */
+    public void replaceStrip(int index, byte[] stripData) throws IOException {
+        if(stripData.length != STRIP_LENGTH) {
+            throw new IOException("Invalid strip length " + stripData.length
+                + ", should be " + STRIP_LENGTH);
+        }
+        EcgFileWriter.writeFully(channel, ByteBuffer.wrap(stripData),
+            getStripPosition(index));
+        channel.force(true);
+    }
+
+    /**
+     * Replaces the waveform of a strip with a flat line at 0 mm, keeping the
+     * strip header, and forces it to the device.
+     * 
+     * @param index The index of the strip.
+     * @throws IOException
+     */
+    public void redactStrip(int index) throws IOException {
+        long position = getStripPosition(index) + STRIP_DATA_START;
+        byte[] waveform = new byte[STRIP_N_DATA_BYTES];
+        for(int seg = 0; seg < STRIP_N_DATA_SEGMENTS; seg++) {
+            // The first value of each segment is 512 (0 mm) and the
+            // differences after that are 0
+            waveform[seg * SEGMENT_LENGTH] = 2;
+        }
+        EcgFileWriter.writeFully(channel, ByteBuffer.wrap(waveform),
+            position);
+        channel.force(true);
+    }
+
+    /**
+     * Gets the position of the given strip in the file.
+     * 
+     * @param index
+     * @return
+     * @throws IOException If there is no such strip.
+     */
+    private long getStripPosition(int index) throws IOException {
+        if(index < 0 || index >= nStrips) {
+            throw new IOException("Invalid strip index " + index + " for "
+                + file.getPath());
+        }
+        return HEADER_LENGTH + (long)index * STRIP_LENGTH;
+    }
+
+    /**
+     * Writes the changes to the header to the device.
+     * 
+     * @throws IOException
+     */
+    public void force() throws IOException {
+        channel.force(true);
+    }
+
+    /**
+     * Writes the changes to the header to the device and closes the file.
+     * 
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        try {
+            force();
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * @return The value of nStrips.
+     */
+    public int getNStrips() {
+        return nStrips;
+    }
+
+}
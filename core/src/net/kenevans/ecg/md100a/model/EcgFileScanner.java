@@ -0,0 +1,515 @@
+package net.kenevans.ecg.md100a.model;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * EcgFileScanner checks the structure of a .cEcg file without decoding the
+ * waveforms. It checks the file length against the number of strips in the
+ * header and checks that each strip has the 0x55AA marker before its data.
+ * After a damaged region it resynchronizes on the next marker that starts a
+ * strip with a plausible date and time. It reports which strips can be
+ * recovered and can copy them to a new file. If all the strips the header
+ * specifies are found, anything after them, such as the strips left by an
+ * interrupted EcgFileWriter.appendStrips, is reported as trailing bytes and
+ * not as strips.<br>
+ * <br>
+ * For an undamaged file only two bytes per strip are examined. The search for
+ * the marker in a damaged region examines eight bytes at a time. A file is
+ * mapped a window of WINDOW_STRIPS strips at a time, so files larger than
+ * 2 GB can be scanned.
+ */
+public class EcgFileScanner implements IConstants
+{
+    /** The offset of the 0x55AA marker from the start of a strip. */
+    public static final int MARKER_OFFSET = STRIP_DATA_START - 2;
+    private static final byte MARKER_FIRST = 0x55;
+    private static final byte MARKER_SECOND = (byte)0xAA;
+    /** The number of strips in a window of a file mapped by scan. */
+    public static final int WINDOW_STRIPS = 1024;
+    private static final long WINDOW_LENGTH = (long)WINDOW_STRIPS
+        * STRIP_LENGTH;
+
+    /** A long with each byte equal to MARKER_FIRST. */
+    private static final long MARKER_FIRST_WORD = 0x5555555555555555L;
+    /** A long with each byte equal to 1. */
+    private static final long LOW_BITS = 0x0101010101010101L;
+    /** A long with the high bit of each byte set. */
+    private static final long HIGH_BITS = 0x8080808080808080L;
+
+    /** Range of years accepted when resynchronizing. */
+    private static final int MIN_YEAR = 1990;
+    private static final int MAX_YEAR = 2099;
+
+    /**
+     * Result holds the result of a scan.
+     */
+    public static class Result
+    {
+        private String name;
+        private long fileLength;
+        private boolean hasHeader;
+        private int headerNStrips = -1;
+        private List<Long> stripOffsets = new ArrayList<Long>();
+        private List<long[]> damagedRegions = new ArrayList<long[]>();
+        private long trailingBytes;
+
+        private Result(String name, long fileLength) {
+            this.name = name;
+            this.fileLength = fileLength;
+        }
+
+        /**
+         * Determines if the file has a header and a marker in each of the
+         * strips the header specifies. There may be trailing bytes after
+         * them, which are not part of the file.
+         * 
+         * @return
+         */
+        public boolean isClean() {
+            return hasHeader() && damagedRegions.isEmpty()
+                && stripOffsets.size() == headerNStrips;
+        }
+
+        /**
+         * @return If the file is long enough to have a header.
+         */
+        public boolean hasHeader() {
+            return hasHeader;
+        }
+
+        /**
+         * @return The length the file should have according to the header or
+         *         -1 if there is no header.
+         */
+        public long getExpectedLength() {
+            if(!hasHeader()) {
+                return -1;
+            }
+            return HEADER_LENGTH + (long)headerNStrips * STRIP_LENGTH;
+        }
+
+        /**
+         * @return The offsets in the file of the strips that can be recovered.
+         */
+        public long[] getStripOffsets() {
+            long[] offsets = new long[stripOffsets.size()];
+            for(int i = 0; i < offsets.length; i++) {
+                offsets[i] = stripOffsets.get(i);
+            }
+            return offsets;
+        }
+
+        /**
+         * @return The number of strips that can be recovered.
+         */
+        public int getNRecoverable() {
+            return stripOffsets.size();
+        }
+
+        /**
+         * @return The damaged regions as {start, end} pairs of file offsets,
+         *         with end exclusive.
+         */
+        public List<long[]> getDamagedRegions() {
+            return damagedRegions;
+        }
+
+        /**
+         * @return The number of bytes after the last strip found. These are
+         *         too few to be a strip, or they come after all the strips the
+         *         header specifies.
+         */
+        public long getTrailingBytes() {
+            return trailingBytes;
+        }
+
+        /**
+         * @return The value of headerNStrips or -1 if there is no header.
+         */
+        public int getHeaderNStrips() {
+            return headerNStrips;
+        }
+
+        /**
+         * @return The value of fileLength.
+         */
+        public long getFileLength() {
+            return fileLength;
+        }
+
+        /**
+         * Gets a description of the result.
+         * 
+         * @return
+         */
+        public String getInfo() {
+            StringBuilder sb = new StringBuilder();
+            sb.append("File: " + name + LS);
+            sb.append("Length: " + fileLength + " bytes" + LS);
+            if(!hasHeader()) {
+                sb.append("The file is too short to have a header" + LS);
+                return sb.toString();
+            }
+            sb.append("Strips in header: " + headerNStrips + " (expected "
+                + getExpectedLength() + " bytes)" + LS);
+            sb.append("Recoverable strips: " + stripOffsets.size() + LS);
+            sb.append("Damaged regions: " + damagedRegions.size() + LS);
+            for(long[] region : damagedRegions) {
+                sb.append("  " + region[0] + "-" + region[1] + " ("
+                    + (region[1] - region[0]) + " bytes)" + LS);
+            }
+            if(trailingBytes > 0) {
+                sb.append("Trailing bytes after the strips: " + trailingBytes
+                    + LS);
+            }
+            sb.append(isClean() ? "OK" : "DAMAGED");
+            sb.append(LS);
+            return sb.toString();
+        }
+    }
+
+    /**
+     * Scans the given file.
+     * 
+     * @param file
+     * @return
+     * @throws IOException
+     */
+    public static Result scan(File file) throws IOException {
+        FileInputStream fis = new FileInputStream(file);
+        try {
+            return scan(new Window(fis.getChannel()), file.getPath());
+        } finally {
+            fis.close();
+        }
+    }
+
+    /**
+     * Scans the contents of a file in the given buffer, from 0 to its limit.
+     * 
+     * @param buffer The buffer. Its position is not changed.
+     * @param name The name of the file to use in messages.
+     * @return
+     */
+    public static Result scan(ByteBuffer buffer, String name) {
+        try {
+            return scan(new Window(buffer), name);
+        } catch(IOException ex) {
+            // Does not happen, since nothing is read past the limit
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Scans the contents of a file through the given Window.
+     * 
+     * @param window
+     * @param name The name of the file to use in messages.
+     * @return
+     * @throws IOException
+     */
+    private static Result scan(Window window, String name) throws IOException {
+        long length = window.length;
+        Result result = new Result(name, length);
+        if(length < HEADER_LENGTH) {
+            return result;
+        }
+        result.hasHeader = true;
+        int index = window.map(0, HEADER_LENGTH);
+        result.headerNStrips = window.buffer.getInt(index
+            + Header.Field.N_STRIPS.getOffset());
+
+        long pos = HEADER_LENGTH;
+        long next;
+        while(pos <= length - STRIP_LENGTH) {
+            if(result.damagedRegions.isEmpty()
+                && result.stripOffsets.size() == result.headerNStrips) {
+                // Anything after the strips in the header is not part of
+                // the file
+                break;
+            }
+            if(hasMarker(window, pos)) {
+                result.stripOffsets.add(pos);
+                pos += STRIP_LENGTH;
+                continue;
+            }
+            // Damaged, look for the next strip
+            next = findStrip(window, pos + 1);
+            if(next < 0) {
+                result.damagedRegions.add(new long[] {pos, length});
+                pos = length;
+                break;
+            }
+            result.damagedRegions.add(new long[] {pos, next});
+            pos = next;
+        }
+        result.trailingBytes = length - pos;
+        return result;
+    }
+
+    /**
+     * Copies the header and the recoverable strips of the source file to the
+     * destination file. The number of strips in the header is changed to the
+     * number recovered. The strips are not decoded.
+     * 
+     * @param src The damaged file.
+     * @param result The result of scanning the source file.
+     * @param dest The file to write. Must not be the source file.
+     * @throws IOException
+     */
+    public static void recover(File src, Result result, File dest)
+        throws IOException {
+        if(!result.hasHeader()) {
+            throw new IOException("There is no header to recover in:" + LS
+                + src.getPath());
+        }
+        if(src.getCanonicalFile().equals(dest.getCanonicalFile())) {
+            throw new IOException("Cannot recover a file into itself:" + LS
+                + src.getPath());
+        }
+        long[] offsets = result.getStripOffsets();
+        FileInputStream fis = new FileInputStream(src);
+        try {
+            FileChannel srcChannel = fis.getChannel();
+            ByteBuffer headerBuffer = ByteBuffer.allocate(HEADER_LENGTH);
+            EcgFileWriter.readFully(srcChannel, headerBuffer, 0);
+            LittleEndianCodec.putInt(offsets.length, headerBuffer.array(),
+                Header.Field.N_STRIPS.getOffset());
+            headerBuffer.rewind();
+            FileOutputStream fos = new FileOutputStream(dest);
+            try {
+                FileChannel destChannel = fos.getChannel();
+                while(headerBuffer.hasRemaining()) {
+                    destChannel.write(headerBuffer);
+                }
+                // Transfer runs of adjacent strips together
+                int i = 0;
+                int j;
+                while(i < offsets.length) {
+                    j = i + 1;
+                    while(j < offsets.length
+                        && offsets[j] == offsets[j - 1] + STRIP_LENGTH) {
+                        j++;
+                    }
+                    EcgFileWriter.transferFully(srcChannel, offsets[i],
+                        (long)(j - i) * STRIP_LENGTH, destChannel);
+                    i = j;
+                }
+                destChannel.force(true);
+            } finally {
+                fos.close();
+            }
+        } finally {
+            fis.close();
+        }
+    }
+
+    /**
+     * Determines if there is a marker at the expected place in the strip
+     * starting at the given position.
+     * 
+     * @param window
+     * @param start
+     * @return
+     * @throws IOException
+     */
+    private static boolean hasMarker(Window window, long start)
+        throws IOException {
+        int index = window.map(start, STRIP_DATA_START) + MARKER_OFFSET;
+        return window.buffer.get(index) == MARKER_FIRST
+            && window.buffer.get(index + 1) == MARKER_SECOND;
+    }
+
+    /**
+     * Determines if the strip starting at the given position has a marker
+     * and a plausible date and time.
+     * 
+     * @param window
+     * @param start
+     * @return
+     * @throws IOException
+     */
+    private static boolean isPlausibleStrip(Window window, long start)
+        throws IOException {
+        if(!hasMarker(window, start)) {
+            return false;
+        }
+        // The layout is the same as used in the Strip constructor
+        int index = window.map(start, STRIP_DATA_START);
+        ByteBuffer buffer = window.buffer;
+        int year = buffer.getShort(index + 2);
+        int month = buffer.getShort(index + 4);
+        int day = buffer.getShort(index + 8);
+        int hour = buffer.getShort(index + 10);
+        int min = buffer.getShort(index + 12);
+        int sec = buffer.getShort(index + 14);
+        return year >= MIN_YEAR && year <= MAX_YEAR && month >= 1
+            && month <= 12 && day >= 1 && day <= 31 && hour >= 0 && hour < 24
+            && min >= 0 && min < 60 && sec >= 0 && sec < 60;
+    }
+
+    /**
+     * Finds the start of the next plausible strip that starts at or after the
+     * given position and fits in the file. The search for the marker goes
+     * through the file a window at a time, continuing in the next window from
+     * the last byte of the previous one, so a marker that crosses the edge of
+     * a window is found.
+     * 
+     * @param window
+     * @param from
+     * @return The position of the start of the strip or -1 if none is found.
+     * @throws IOException
+     */
+    private static long findStrip(Window window, long from)
+        throws IOException {
+        // The last place the marker can be with a whole strip after it
+        long last = window.length - STRIP_LENGTH + MARKER_OFFSET;
+        long pos = from + MARKER_OFFSET;
+        int index, found;
+        long windowLast;
+        while(pos <= last) {
+            index = window.map(pos, 2);
+            // The last place in this window with a byte after it
+            windowLast = Math.min(last, window.start + window.buffer.limit()
+                - 2);
+            found = findMarker(window.buffer, index,
+                (int)(windowLast - window.start));
+            if(found < 0) {
+                pos = windowLast + 1;
+                continue;
+            }
+            pos = window.start + found;
+            if(isPlausibleStrip(window, pos - MARKER_OFFSET)) {
+                return pos - MARKER_OFFSET;
+            }
+            pos++;
+        }
+        return -1;
+    }
+
+    /**
+     * Finds the first 0x55AA marker that starts between the given indices.
+     * Eight bytes are examined at a time by finding the bytes that equal 0x55
+     * in a long with the usual bit operations for finding a zero byte.
+     * 
+     * @param buffer A little-endian buffer. Must have at least one byte after
+     *            last.
+     * @param from The first index to check.
+     * @param last The last index to check.
+     * @return The index of the 0x55 or -1 if not found.
+     */
+    static int findMarker(ByteBuffer buffer, int from, int last) {
+        int index = from;
+        long word, found;
+        int k;
+        while(index + 7 <= last) {
+            // Bytes that are 0x55 become zero
+            word = buffer.getLong(index) ^ MARKER_FIRST_WORD;
+            // The high bit is set for each zero byte. It may also be set for
+            // a 0x01 byte above a zero byte, so the bytes are checked again.
+            found = (word - LOW_BITS) & ~word & HIGH_BITS;
+            while(found != 0) {
+                // Little endian, so the lowest bits are the first byte
+                k = index + (Long.numberOfTrailingZeros(found) >>> 3);
+                if(buffer.get(k) == MARKER_FIRST
+                    && buffer.get(k + 1) == MARKER_SECOND) {
+                    return k;
+                }
+                found &= found - 1;
+            }
+            index += 8;
+        }
+        for(; index <= last; index++) {
+            if(buffer.get(index) == MARKER_FIRST
+                && buffer.get(index + 1) == MARKER_SECOND) {
+                return index;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Window gives access to the bytes of a file through a little-endian
+     * buffer. For a file, the buffer is a mapping of WINDOW_STRIPS strips,
+     * which is moved as needed.
+     */
+    private static class Window
+    {
+        /** The channel or null if the whole file is in the buffer. */
+        private FileChannel channel;
+        private long length;
+        private ByteBuffer buffer;
+        /** The position in the file of the start of the buffer. */
+        private long start;
+
+        Window(FileChannel channel) throws IOException {
+            this.channel = channel;
+            length = channel.size();
+        }
+
+        Window(ByteBuffer buffer) {
+            this.buffer = LittleEndianCodec.littleEndian(buffer);
+            length = buffer.limit();
+        }
+
+        /**
+         * Makes sure the given bytes are in the buffer, mapping a new window
+         * starting at the given position if they are not.
+         * 
+         * @param position The position in the file of the first byte.
+         * @param count The number of bytes.
+         * @return The index in the buffer of the position.
+         * @throws IOException
+         */
+        int map(long position, int count) throws IOException {
+            if(buffer == null || position < start
+                || position + count > start + buffer.limit()) {
+                if(channel == null || position + count > length) {
+                    throw new EOFException("Unexpected end of file at "
+                        + position);
+                }
+                buffer = LittleEndianCodec.littleEndian(channel.map(
+                    FileChannel.MapMode.READ_ONLY, position, Math.min(
+                        WINDOW_LENGTH, length - position)));
+                start = position;
+            }
+            return (int)(position - start);
+        }
+    }
+
+    /**
+     * Scans the given file and prints the result. If a second file is given
+     * and the first is damaged, the recoverable strips are written to it.
+     * 
+     * @param args The file to scan, and optionally the file to write.
+     */
+    public static void main(String[] args) {
+        if(args.length < 1) {
+            System.out.println("Usage: " + EcgFileScanner.class.getName()
+                + " file [recoveredFile]");
+            return;
+        }
+        try {
+            File file = new File(args[0]);
+            Result result = scan(file);
+            System.out.println(result.getInfo());
+            if(args.length > 1 && !result.isClean()) {
+                File dest = new File(args[1]);
+                recover(file, result, dest);
+                System.out.println("Wrote " + result.getNRecoverable()
+                    + " strips to " + dest.getPath());
+            }
+        } catch(IOException ex) {
+            ex.printStackTrace();
+        }
+    }
+
+}
@@ -0,0 +1,666 @@
+package net.kenevans.ecg.md100a.model;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * EcgFileWriter writes a .cEcg file through a FileChannel. The header and the
+ * strips are streamed to the file as they are given, using gathering writes of
+ * at most STRIPS_PER_WRITE strips, so the memory used does not depend on the
+ * number of strips in the file. There is also a parallel version of saveFile
+ * that processes the strips on a thread pool while they are written in order,
+ * an extractFile method that copies strips without decoding them, and an
+ * appendStrips method that adds strips to an existing file in place. The
+ * saveFile and extractFile methods can report their progress to a
+ * SaveListener, which can cancel them.
+ */
+public class EcgFileWriter implements IConstants
+{
+    /** The number of strips to collect before doing a gathering write. */
+    public static final int STRIPS_PER_WRITE = 16;
+    /** The maximum number of strips copied in one transfer by extractFile. */
+    public static final int STRIPS_PER_TRANSFER = 256;
+    /** The number of strips per thread being processed at once by saveFile. */
+    private static final int STRIPS_IN_FLIGHT_PER_THREAD = 2;
+
+    /**
+     * SaveListener is notified as strips are written and can cancel the
+     * writing. A cancelled method deletes the partial file, as it does on an
+     * error, and throws an InterruptedIOException.
+     */
+    public static interface SaveListener
+    {
+        /**
+         * Called after strips have been written, from the thread doing the
+         * writing.
+         * 
+         * @param nWritten The number of strips written so far.
+         * @param nTotal The number of strips to write.
+         * @return Whether to continue. Returning false cancels the writing.
+         */
+        boolean stripsWritten(int nWritten, int nTotal);
+    }
+
+    private FileOutputStream fos;
+    private FileChannel channel;
+    /** Pending buffers. There is room for the header and STRIPS_PER_WRITE. */
+    private ByteBuffer[] buffers = new ByteBuffer[STRIPS_PER_WRITE + 1];
+    private int nBuffers;
+    private boolean headerWritten;
+    /** The number of strips the header says there are. */
+    private int nStripsExpected;
+    private int nStripsWritten;
+
+    /**
+     * EcgFileWriter constructor. Creates or truncates the file.
+     * 
+     * @param file The file to write.
+     * @throws IOException
+     */
+    public EcgFileWriter(File file) throws IOException {
+        // This CTOR does not append
+        fos = new FileOutputStream(file);
+        channel = fos.getChannel();
+    }
+
+    /**
+     * Writes the header. Must be called once before any strips are written.
+     * 
+     * @param header The header. Its nStrips should be the number of strips
+     *            that will be written.
+     * @throws IOException
+     */
+    public void writeHeader(Header header) throws IOException {
+        if(headerWritten) {
+            throw new IOException("The header has already been written");
+        }
+        nStripsExpected = header.getNStrips();
+        headerWritten = true;
+        add(ByteBuffer.wrap(header.getData()));
+    }
+
+    /**
+     * Writes the bytes for one strip.
+     * 
+     * @param stripData The strip bytes. Must be STRIP_LENGTH long.
+     * @throws IOException
+     */
+    public void writeStrip(byte[] stripData) throws IOException {
+        if(!headerWritten) {
+            throw new IOException("The header must be written first");
+        }
+        if(stripData.length != STRIP_LENGTH) {
+            throw new IOException("Invalid strip length " + stripData.length
+                + ", should be " + STRIP_LENGTH);
+        }
+        add(ByteBuffer.wrap(stripData));
+        nStripsWritten++;
+    }
+
+    /**
+     * Adds a buffer to the pending buffers, writing them if they are full.
+     * 
+     * @param buffer
+     * @throws IOException
+     */
+    private void add(ByteBuffer buffer) throws IOException {
+        if(nBuffers == buffers.length) {
+            flush();
+        }
+        buffers[nBuffers++] = buffer;
+    }
+
+    /**
+     * Writes the pending buffers with a gathering write.
+     * 
+     * @throws IOException
+     */
+    public void flush() throws IOException {
+        if(nBuffers == 0) {
+            return;
+        }
+        ByteBuffer last = buffers[nBuffers - 1];
+        while(last.hasRemaining()) {
+            channel.write(buffers, 0, nBuffers);
+        }
+        for(int i = 0; i < nBuffers; i++) {
+            buffers[i] = null;
+        }
+        nBuffers = 0;
+    }
+
+    /**
+     * Flushes the pending buffers and closes the file. Checks that the number
+     * of strips written agrees with the header.
+     * 
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            fos.close();
+        }
+        if(nStripsWritten != nStripsExpected) {
+            throw new IOException("Wrote " + nStripsWritten
+                + " strips, but the header specifies " + nStripsExpected);
+        }
+    }
+
+    /**
+     * Closes the file without writing any pending buffers or checking the
+     * number of strips. Used when an error has occurred.
+     */
+    public void abort() {
+        nBuffers = 0;
+        try {
+            fos.close();
+        } catch(IOException ex) {
+            // Do nothing
+        }
+    }
+
+    /**
+     * Writes a file consisting of the given header and the given strips
+     * processed with the given DataMode.
+     * 
+     * @param file The file to write.
+     * @param header The header to use. It should already have nStrips set to
+     *            the size of stripList.
+     * @param strips The available strips.
+     * @param stripList The indices of the strips to write.
+     * @param dataMode The DataMode used to process the strips.
+     * @param filterModel The EcgFilterModel passed to the DataMode.
+     * @throws IOException
+     */
+    public static void saveFile(File file, Header header, Strip[] strips,
+        List<Integer> stripList, EcgFilterModel.DataMode dataMode,
+        EcgFilterModel filterModel) throws IOException {
+        saveFile(file, header, strips, stripList, dataMode, filterModel, 1,
+            null);
+    }
+
+    /**
+     * Writes a file consisting of the given header and the given strips
+     * processed with the given DataMode, using a pool of nThreads threads.
+     * 
+     * @param file The file to write.
+     * @param header The header to use. It should already have nStrips set to
+     *            the size of stripList.
+     * @param strips The available strips.
+     * @param stripList The indices of the strips to write.
+     * @param dataMode The DataMode used to process the strips.
+     * @param filterModel The EcgFilterModel passed to the DataMode.
+     * @param nThreads The number of threads to use.
+     * @throws IOException
+     * @see #saveFile(File, Header, Strip[], List, EcgFilterModel.DataMode,
+     *      EcgFilterModel, int, SaveListener)
+     */
+    public static void saveFile(File file, Header header, Strip[] strips,
+        List<Integer> stripList, EcgFilterModel.DataMode dataMode,
+        EcgFilterModel filterModel, int nThreads) throws IOException {
+        saveFile(file, header, strips, stripList, dataMode, filterModel,
+            nThreads, null);
+    }
+
+    /**
+     * Writes a file consisting of the given header and the given strips
+     * processed with the given DataMode. The strips are processed and
+     * converted by a pool of nThreads threads and written in order by the
+     * calling thread as they become available. At most
+     * STRIPS_IN_FLIGHT_PER_THREAD * nThreads strips are being processed at
+     * once, so the memory used does not depend on the number of strips, and
+     * a cancellation takes effect quickly. The file is deleted if it is not
+     * finished.
+     * 
+     * @param file The file to write.
+     * @param header The header to use. It should already have nStrips set to
+     *            the size of stripList.
+     * @param strips The available strips.
+     * @param stripList The indices of the strips to write.
+     * @param dataMode The DataMode used to process the strips.
+     * @param filterModel The EcgFilterModel passed to the DataMode. It should
+     *            not be changed while the file is being written.
+     * @param nThreads The number of threads to use. If less than 2, the
+     *            strips are processed by the calling thread.
+     * @param listener The listener or null.
+     * @throws IOException
+     * @throws InterruptedIOException If the listener cancelled the writing.
+     */
+    public static void saveFile(File file, Header header,
+        final Strip[] strips, List<Integer> stripList,
+        final EcgFilterModel.DataMode dataMode,
+        final EcgFilterModel filterModel, int nThreads, SaveListener listener)
+        throws IOException {
+        int nTotal = stripList.size();
+        if(header.getNStrips() != nTotal) {
+            throw new IOException("There are " + nTotal
+                + " strips, but the header specifies " + header.getNStrips());
+        }
+        ExecutorService pool = null;
+        if(nThreads > 1 && nTotal > 1) {
+            pool = Executors.newFixedThreadPool(nThreads);
+        }
+        int maxInFlight = STRIPS_IN_FLIGHT_PER_THREAD * nThreads;
+        EcgFileWriter writer = new EcgFileWriter(file);
+        boolean done = false;
+        boolean cancelled = false;
+        try {
+            writer.writeHeader(header);
+            // The strips being processed, in the order they are written
+            LinkedList<Future<byte[]>> inFlight =
+                new LinkedList<Future<byte[]>>();
+            Iterator<Integer> iterator = stripList.iterator();
+            byte[] stripData;
+            for(int nWritten = 1; nWritten <= nTotal; nWritten++) {
+                if(pool == null) {
+                    stripData = convertStrip(strips, iterator.next(),
+                        dataMode, filterModel);
+                } else {
+                    while(inFlight.size() < maxInFlight && iterator.hasNext()) {
+                        final int n = iterator.next();
+                        inFlight.add(pool.submit(new Callable<byte[]>() {
+                            public byte[] call() throws IOException {
+                                return convertStrip(strips, n, dataMode,
+                                    filterModel);
+                            }
+                        }));
+                    }
+                    stripData = waitFor(inFlight.removeFirst());
+                }
+                writer.writeStrip(stripData);
+                if(listener != null
+                    && !listener.stripsWritten(nWritten, nTotal)) {
+                    cancelled = true;
+                    break;
+                }
+            }
+            if(!cancelled) {
+                writer.close();
+                done = true;
+            }
+        } finally {
+            if(pool != null) {
+                pool.shutdownNow();
+            }
+            if(!done) {
+                writer.abort();
+                file.delete();
+            }
+        }
+        if(cancelled) {
+            throw new InterruptedIOException("Saving was cancelled");
+        }
+    }
+
+    /**
+     * Processes the given strip with the DataMode and converts it to bytes.
+     * 
+     * @param strips The available strips.
+     * @param n The index of the strip to convert.
+     * @param dataMode
+     * @param filterModel
+     * @return The bytes for the strip.
+     * @throws IOException
+     */
+    private static byte[] convertStrip(Strip[] strips, int n,
+        EcgFilterModel.DataMode dataMode, EcgFilterModel filterModel)
+        throws IOException {
+        double[] vals = strips[n].getDataAsBytes();
+        if(vals == null) {
+            throw new IOException("Could not get data for strip " + (n + 1));
+        }
+        vals = dataMode.process(filterModel, vals);
+        return strips[n].getConvertedBytes(vals);
+    }
+
+    /**
+     * Waits for the given Future to complete, converting any exception it
+     * threw to an IOException.
+     * 
+     * @param future
+     * @return The result of the Future.
+     * @throws IOException
+     */
+    static <T> T waitFor(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch(InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted");
+        } catch(ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if(cause instanceof IOException) {
+                throw (IOException)cause;
+            }
+            IOException ioEx = new IOException(cause.getMessage());
+            ioEx.initCause(cause);
+            throw ioEx;
+        }
+    }
+
+    /**
+     * Writes all of the buffer to the channel starting at the given position.
+     * Does not change the position of the channel, so it can be used by
+     * several threads at once.
+     * 
+     * @param channel
+     * @param buffer
+     * @param position
+     * @throws IOException
+     */
+    public static void writeFully(FileChannel channel, ByteBuffer buffer,
+        long position) throws IOException {
+        while(buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    /**
+     * Extracts the given strips from an existing file without decoding them.
+     * Only the nStrips and ID fields of the header are changed. The strip bytes
+     * are copied with FileChannel.transferTo, with runs of consecutive strips
+     * copied in one transfer, so the result is bit-exact with the source.
+     * 
+     * @param srcFile The file to extract from. Must not be the same as file.
+     * @param file The file to write.
+     * @param id The patient ID for the new file.
+     * @param stripList The indices of the strips to extract, in the order they
+     *            should be written.
+     * @throws IOException
+     */
+    public static void extractFile(File srcFile, File file, String id,
+        List<Integer> stripList) throws IOException {
+        extractFile(srcFile, file, id, stripList, null);
+    }
+
+    /**
+     * Extracts the given strips from an existing file without decoding them,
+     * reporting the progress to the given listener after each transfer of at
+     * most STRIPS_PER_TRANSFER strips.
+     * 
+     * @param srcFile The file to extract from. Must not be the same as file.
+     * @param file The file to write.
+     * @param id The patient ID for the new file.
+     * @param stripList The indices of the strips to extract, in the order they
+     *            should be written.
+     * @param listener The listener or null.
+     * @throws IOException
+     * @throws InterruptedIOException If the listener cancelled the writing.
+     * @see #extractFile(File, File, String, List)
+     */
+    public static void extractFile(File srcFile, File file, String id,
+        List<Integer> stripList, SaveListener listener) throws IOException {
+        // Check the strips are in the header and get their positions
+        int nSrcStrips = HeaderView.read(srcFile).getNStrips();
+        long[] offsets = new long[stripList.size()];
+        int i = 0;
+        for(int n : stripList) {
+            if(n < 0 || n >= nSrcStrips) {
+                throw new IOException("Strip " + (n + 1)
+                    + " is not available in " + srcFile.getPath());
+            }
+            offsets[i++] = HEADER_LENGTH + (long)n * STRIP_LENGTH;
+        }
+        extractFile(srcFile, file, id, offsets, listener);
+    }
+
+    /**
+     * Extracts the strips at the given positions from an existing file
+     * without decoding them. This is used for strips that may not be where
+     * the header says, as when they were loaded from a damaged file. The file
+     * is deleted if it is not finished.
+     * 
+     * @param srcFile The file to extract from. Must not be the same as file.
+     * @param file The file to write.
+     * @param id The patient ID for the new file.
+     * @param offsets The positions in srcFile of the strips to extract, in
+     *            the order they should be written.
+     * @param listener The listener or null.
+     * @throws IOException
+     * @throws InterruptedIOException If the listener cancelled the writing.
+     * @see #extractFile(File, File, String, List, SaveListener)
+     * @see Strip#getFileOffset()
+     */
+    public static void extractFile(File srcFile, File file, String id,
+        long[] offsets, SaveListener listener) throws IOException {
+        if(srcFile.getCanonicalFile().equals(file.getCanonicalFile())) {
+            throw new IOException("Cannot extract from a file into itself:"
+                + LS + file.getPath());
+        }
+        FileInputStream fis = new FileInputStream(srcFile);
+        try {
+            FileChannel src = fis.getChannel();
+            // Get the header and check the strips are there
+            ByteBuffer headerBuffer = ByteBuffer.allocate(HEADER_LENGTH);
+            readFully(src, headerBuffer, 0);
+            byte[] headerData = headerBuffer.array();
+            long srcSize = src.size();
+            for(long offset : offsets) {
+                if(offset < HEADER_LENGTH || offset + STRIP_LENGTH > srcSize) {
+                    throw new IOException("There is no strip at " + offset
+                        + " in " + srcFile.getPath());
+                }
+            }
+            LittleEndianCodec.putInt(offsets.length, headerData,
+                Header.Field.N_STRIPS.getOffset());
+            Header.insertField(Header.Field.ID, id, headerData);
+
+            FileOutputStream fos = new FileOutputStream(file);
+            boolean done = false;
+            boolean cancelled = false;
+            try {
+                FileChannel dest = fos.getChannel();
+                headerBuffer.rewind();
+                while(headerBuffer.hasRemaining()) {
+                    dest.write(headerBuffer);
+                }
+                // Coalesce runs of adjacent strips
+                int size = offsets.length;
+                int i = 0;
+                while(i < size) {
+                    long first = offsets[i];
+                    int nRun = 1;
+                    while(i + nRun < size && nRun < STRIPS_PER_TRANSFER
+                        && offsets[i + nRun] == first + (long)nRun
+                            * STRIP_LENGTH) {
+                        nRun++;
+                    }
+                    transferFully(src, first, (long)nRun * STRIP_LENGTH,
+                        dest);
+                    i += nRun;
+                    if(listener != null && !listener.stripsWritten(i, size)) {
+                        cancelled = true;
+                        break;
+                    }
+                }
+                if(!cancelled) {
+                    fos.close();
+                    done = true;
+                }
+            } finally {
+                if(!done) {
+                    try {
+                        fos.close();
+                    } catch(IOException ex) {
+                        // Do nothing
+                    }
+                    file.delete();
+                }
+            }
+            if(cancelled) {
+                throw new InterruptedIOException("Saving was cancelled");
+            }
+        } finally {
+            fis.close();
+        }
+    }
+
+    /**
+     * Transfers count bytes starting at position in the source to the current
+     * position of the destination.
+     * 
+     * @param src
+     * @param position
+     * @param count
+     * @param dest
+     * @throws IOException
+     */
+    public static void transferFully(FileChannel src, long position,
+        long count, WritableByteChannel dest)
+        throws IOException {
+        while(count > 0) {
+            long nTransferred = src.transferTo(position, count, dest);
+            if(nTransferred <= 0) {
+                throw new IOException("Unexpected end of file at " + position);
+            }
+            position += nTransferred;
+            count -= nTransferred;
+        }
+    }
+
+    /**
+     * Reads from the channel starting at the given position until the buffer
+     * is full. Does not change the position of the channel.
+     * 
+     * @param channel
+     * @param buffer
+     * @param position
+     * @throws IOException
+     */
+    public static void readFully(FileChannel channel, ByteBuffer buffer,
+        long position) throws IOException {
+        while(buffer.hasRemaining()) {
+            int nRead = channel.read(buffer, position);
+            if(nRead < 0) {
+                throw new EOFException("Unexpected end of file at "
+                    + position);
+            }
+            position += nRead;
+        }
+    }
+
+    /**
+     * Appends the given strips to an existing file in place and updates the
+     * nStrips field of its header. The strips are written after the last strip
+     * the header specifies and forced to the device before the header is
+     * updated. If the process is interrupted before the header is updated, the
+     * file is still valid with its old strips, and any partial strips after
+     * them are overwritten or truncated by the next append. The file is locked
+     * while it is being modified.
+     * 
+     * @param file The file to append to.
+     * @param stripDataList List of the bytes for the strips to append. Each
+     *            must be STRIP_LENGTH long.
+     * @return The new number of strips in the file.
+     * @throws IOException
+     */
+    public static int appendStrips(File file, List<byte[]> stripDataList)
+        throws IOException {
+        for(byte[] stripData : stripDataList) {
+            if(stripData.length != STRIP_LENGTH) {
+                throw new IOException("Invalid strip length "
+                    + stripData.length + ", should be " + STRIP_LENGTH);
+            }
+        }
+        if(!file.exists()) {
+            throw new IOException("File does not exist: " + file.getPath());
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            FileChannel channel = raf.getChannel();
+            FileLock lock = channel.lock();
+            try {
+                ByteBuffer countBuffer = ByteBuffer.allocate(4);
+                readFully(channel, countBuffer, Header.Field.N_STRIPS
+                    .getOffset());
+                byte[] countData = countBuffer.array();
+                int nStrips = LittleEndianCodec.getInt(countData, 0);
+                long end = HEADER_LENGTH + (long)nStrips * STRIP_LENGTH;
+                if(nStrips < 0 || channel.size() < end) {
+                    throw new IOException("The header specifies " + nStrips
+                        + " strips, but the file is too short:" + LS
+                        + file.getPath());
+                }
+
+                // Write the strips after the existing ones with gathering
+                // writes
+                int nNew = stripDataList.size();
+                ByteBuffer[] buffers = new ByteBuffer[Math.min(nNew,
+                    STRIPS_PER_WRITE)];
+                channel.position(end);
+                int i = 0;
+                while(i < nNew) {
+                    int nBuffers = Math.min(nNew - i, buffers.length);
+                    for(int j = 0; j < nBuffers; j++) {
+                        buffers[j] = ByteBuffer.wrap(stripDataList.get(i + j));
+                    }
+                    while(buffers[nBuffers - 1].hasRemaining()) {
+                        channel.write(buffers, 0, nBuffers);
+                    }
+                    i += nBuffers;
+                }
+                end += (long)nNew * STRIP_LENGTH;
+                // Remove anything left from an earlier interrupted append
+                if(channel.size() > end) {
+                    channel.truncate(end);
+                }
+                // Make sure the strips are on the device before the header
+                // says they are there
+                channel.force(true);
+
+                // Update the header
+                nStrips += nNew;
+                LittleEndianCodec.putInt(nStrips, countData, 0);
+                countBuffer.rewind();
+                writeFully(channel, countBuffer, Header.Field.N_STRIPS
+                    .getOffset());
+                channel.force(true);
+                return nStrips;
+            } finally {
+                lock.release();
+            }
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Appends the given strips to an existing file in place using their
+     * original bytes.
+     * 
+     * @param file The file to append to.
+     * @param strips The available strips.
+     * @param stripList The indices of the strips to append.
+     * @return The new number of strips in the file.
+     * @throws IOException
+     * @see #appendStrips(File, List)
+     */
+    public static int appendStrips(File file, Strip[] strips,
+        List<Integer> stripList) throws IOException {
+        List<byte[]> stripDataList = new ArrayList<byte[]>(stripList.size());
+        for(int n : stripList) {
+            stripDataList.add(strips[n].getData());
+        }
+        return appendStrips(file, stripDataList);
+    }
+
+}
@@ -1,5 +1,12 @@
 package net.kenevans.ecg.md100a.model;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
 import net.kenevans.ecg.md100a.utils.MathUtils;
 
 /*
@@ -52,10 +59,7 @@ public class EcgFilterModel implements IConstants
             public double[] process(EcgFilterModel viewer, double[] data) {
                 double[] result = MathUtils.medianFilter(data,
                     viewer.medianFilterWindow);
-                for(int i = 0; i < data.length; i++) {
-                    result[i] = data[i] - result[i];
-                }
-                return result;
+                return subtractMedian(data, result);
             }
         },
         MEDIAN("Median") {
@@ -81,25 +85,9 @@ public class EcgFilterModel implements IConstants
             "Median Subtracted Butterworth Low Pass Scaled") {
             @Override
             public double[] process(EcgFilterModel viewer, double[] data) {
-                // Hard-coded. Get averages above mean + nSigma times sigma.
-                double nSigma = 1.0;
                 double[] temp = DataMode.MEDIAN_SUBTRACTED
                     .process(viewer, data);
-                // Get the average of the higher points
-                double avg1 = findPeakAverage(temp, nSigma);
-                temp = MathUtils.butterworthLowPass2Pole(SAMPLE_RATE,
-                    viewer.butterworthLowPassCutoff, temp);
-                // Get the average of the higher points
-                double avg2 = findPeakAverage(temp, nSigma);
-                // Scale the results so the averages are the same
-                double factor = avg2 != 0 ? avg1 / avg2 : 1;
-                // // DEBUG
-                // System.out.println("avg1=" + avg1 + " avg2=" + avg2
-                // + " factor=" + factor);
-                for(int i = 0; i < temp.length; i++) {
-                    temp[i] = factor * temp[i];
-                }
-                return temp;
+                return scaledLowPass(viewer, temp);
             }
         };
 
@@ -128,6 +116,117 @@ public class EcgFilterModel implements IConstants
 
     };
 
+    /**
+     * Subtracts the median from the data, replacing the median values.
+     * 
+     * @param data The input data.
+     * @param median The median filter of the data.
+     * @return The median array with the differences.
+     */
+    private static double[] subtractMedian(double[] data, double[] median) {
+        for(int i = 0; i < data.length; i++) {
+            median[i] = data[i] - median[i];
+        }
+        return median;
+    }
+
+    /**
+     * Applies the Butterworth low pass filter to the median-subtracted data
+     * and scales the result so the averages of the higher points are the
+     * same as before. This is the part of
+     * MEDIAN_SUBTRACTED_BUTTERWORTH_LOW_PASS after the median is subtracted.
+     * 
+     * @param viewer The EcgFilterModel. Used to access instance variables.
+     * @param temp The median-subtracted data. It is not changed.
+     * @return
+     */
+    private static double[] scaledLowPass(EcgFilterModel viewer, double[] temp) {
+        // Hard-coded. Get averages above mean + nSigma times sigma.
+        double nSigma = 1.0;
+        // Get the average of the higher points
+        double avg1 = findPeakAverage(temp, nSigma);
+        temp = MathUtils.butterworthLowPass2Pole(SAMPLE_RATE,
+            viewer.butterworthLowPassCutoff, temp);
+        // Get the average of the higher points
+        double avg2 = findPeakAverage(temp, nSigma);
+        // Scale the results so the averages are the same
+        double factor = avg2 != 0 ? avg1 / avg2 : 1;
+        // // DEBUG
+        // System.out.println("avg1=" + avg1 + " avg2=" + avg2
+        // + " factor=" + factor);
+        for(int i = 0; i < temp.length; i++) {
+            temp[i] = factor * temp[i];
+        }
+        return temp;
+    }
+
+    /**
+     * Processes the data with every DataMode in dataModeList at once using
+     * the given pool. The median filter, which is the slowest stage, is done
+     * once and shared by the modes that use it. The results are the same as
+     * calling process for each mode with the current settings.
+     * 
+     * @param data The input data. It is not changed.
+     * @param pool The pool to use.
+     * @return The processed data in the order of dataModeList.
+     * @throws InterruptedException
+     * @throws ExecutionException
+     */
+    public double[][] processAll(final double[] data, ExecutorService pool)
+        throws InterruptedException, ExecutionException {
+        // Use a copy of the settings, which may change while processing
+        final EcgFilterModel settings = new EcgFilterModel();
+        settings.medianFilterWindow = medianFilterWindow;
+        settings.butterworthLowPassCutoff = butterworthLowPassCutoff;
+
+        // Start the median filter first, since the most depends on it
+        Future<double[]> medianFuture = pool.submit(new Callable<double[]>() {
+            public double[] call() {
+                return MathUtils.medianFilter(data,
+                    settings.medianFilterWindow);
+            }
+        });
+        int nModes = dataModeList.length;
+        List<Future<double[]>> futures = new ArrayList<Future<double[]>>(
+            nModes);
+        for(final DataMode mode : dataModeList) {
+            if(mode == DataMode.MEDIAN || mode == DataMode.MEDIAN_SUBTRACTED
+                || mode == DataMode.MEDIAN_SUBTRACTED_BUTTERWORTH_LOW_PASS) {
+                futures.add(null);
+                continue;
+            }
+            futures.add(pool.submit(new Callable<double[]>() {
+                public double[] call() {
+                    return mode.process(settings, data);
+                }
+            }));
+        }
+
+        // Do the modes that use the median
+        double[] median = medianFuture.get();
+        final double[] medianSubtracted = subtractMedian(data, median.clone());
+        Future<double[]> scaledFuture = pool.submit(new Callable<double[]>() {
+            public double[] call() {
+                return scaledLowPass(settings, medianSubtracted);
+            }
+        });
+
+        double[][] results = new double[nModes][];
+        for(int i = 0; i < nModes; i++) {
+            DataMode mode = dataModeList[i];
+            if(mode == DataMode.MEDIAN) {
+                results[i] = median;
+            } else if(mode == DataMode.MEDIAN_SUBTRACTED) {
+                results[i] = medianSubtracted;
+            } else if(mode == DataMode.MEDIAN_SUBTRACTED_BUTTERWORTH_LOW_PASS) {
+                results[i] = scaledFuture.get();
+            } else {
+                results[i] = futures.get(i).get();
+            }
+        }
+        return results;
+    }
+
     /**
      * Finds the average of points that are above the mean + nSigma * sigma of
      * the given array, where mean is the full mean, and sigma is the full
@@ -0,0 +1,918 @@
+package net.kenevans.ecg.md100a.model;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+/**
+ * EdfConverter converts between .cEcg files and EDF+ files.<br>
+ * <br>
+ * Export writes an EDF+D file with one data record per strip segment, so
+ * each record is 2 seconds. There is an ECG signal in mV and an EDF
+ * Annotations signal that holds the time of each record and a note with the
+ * strip number, heart rate, and diagnostic at the start of each strip. The
+ * records have a fixed size, so the file is sized first and the strips are
+ * converted and written in place by a pool of threads. Strips that overlap an
+ * earlier strip in time are skipped, since EDF+ records cannot overlap.<br>
+ * <br>
+ * Import reads one signal from an EDF or EDF+ file one record at a time,
+ * resamples it to SAMPLE_RATE by linear interpolation, and writes it as
+ * strips. A new strip is started at each discontinuity in an EDF+D file, and
+ * a partial strip is filled out with its last value. The strips are encoded
+ * and written by a pool of threads with a bounded number in progress, so the
+ * memory used does not depend on the length of the recording.
+ */
+public class EdfConverter implements IConstants
+{
+    /** The extension used for EDF files. */
+    public static final String EDF_EXT = ".edf";
+    /** The label of the EDF+ annotation signal. */
+    private static final String ANNOTATIONS_LABEL = "EDF Annotations";
+    /** The number of 2-byte samples for the annotations in each record. */
+    private static final int ANNOTATION_SAMPLES = 30;
+    /** The largest digital value used in export. */
+    private static final int DIGITAL_LIMIT = 20000;
+    /** mV per count. ECG paper is 10 mm per mV. */
+    private static final double MV_PER_COUNT = mmPerUnit / 10;
+    /** The number of strips in progress per thread on import. */
+    private static final int IN_PROGRESS_PER_THREAD = 2;
+    /** The TAL separators. */
+    private static final char TAL_SEP = 0x14;
+    private static final char TAL_END = 0x00;
+
+    /**
+     * EdfHeader holds the parts of an EDF header that are used for import.
+     */
+    private static class EdfHeader
+    {
+        String patient;
+        String recording;
+        boolean isPlus;
+        long startTime;
+        int headerLength;
+        int nRecords;
+        double duration;
+        int nSignals;
+        String[] labels;
+        String[] dimensions;
+        double[] physMin;
+        double[] physMax;
+        double[] digMin;
+        double[] digMax;
+        int[] nSamples;
+        /** The byte offset of each signal in a record. */
+        int[] offsets;
+        int recordLength;
+    }
+
+    /**
+     * Exports a .cEcg file to an EDF+ file. The EDF file is deleted if it is
+     * not finished.
+     * 
+     * @param ecgFile The .cEcg file.
+     * @param edfFile The EDF file to write.
+     * @param nThreads The number of threads to use.
+     * @return The number of strips exported.
+     * @throws IOException
+     */
+    public static int exportEdf(File ecgFile, File edfFile, int nThreads)
+        throws IOException {
+        FileInputStream fis = new FileInputStream(ecgFile);
+        try {
+            final FileChannel src = fis.getChannel();
+            ByteBuffer headerBuffer = ByteBuffer.allocate(HEADER_LENGTH);
+            EcgFileWriter.readFully(src, headerBuffer, 0);
+            Header header = new Header(headerBuffer.array());
+
+            // Put the strips in time order without overlaps
+            StripMetadata[] sorted = StripMetadata.read(src, ecgFile
+                .getPath());
+            Arrays.sort(sorted, EcgFileMerger.TIME_COMPARATOR);
+            final List<StripMetadata> strips = new ArrayList<StripMetadata>();
+            long end = Long.MIN_VALUE;
+            for(StripMetadata item : sorted) {
+                if(item.getTime() >= end) {
+                    strips.add(item);
+                    end = item.getTime() + STRIP_SAMPLE_TIME * 1000L;
+                }
+            }
+            if(strips.isEmpty()) {
+                throw new IOException("There are no strips in:" + LS
+                    + ecgFile.getPath());
+            }
+            final long startTime = strips.get(0).getTime();
+            final int nStrips = strips.size();
+            final byte[] edfHeader = getEdfHeader(header, startTime, nStrips
+                * STRIP_N_DATA_SEGMENTS);
+            final int recordLength = 2 * (SEGMENT_N_DATA_VALS
+                + ANNOTATION_SAMPLES);
+            final int stripRecordsLength = STRIP_N_DATA_SEGMENTS
+                * recordLength;
+
+            RandomAccessFile raf = new RandomAccessFile(edfFile, "rw");
+            boolean done = false;
+            try {
+                final FileChannel dest = raf.getChannel();
+                raf.setLength(edfHeader.length + (long)nStrips
+                    * stripRecordsLength);
+                EcgFileWriter.writeFully(dest, ByteBuffer.wrap(edfHeader), 0);
+
+                if(nThreads < 1) {
+                    nThreads = 1;
+                }
+                int chunk = (nStrips + nThreads - 1) / nThreads;
+                ExecutorService pool = Executors.newFixedThreadPool(nThreads);
+                try {
+                    List<Future<Void>> futures = new ArrayList<Future<Void>>();
+                    for(int start = 0; start < nStrips; start += chunk) {
+                        final int first = start;
+                        final int last = Math.min(start + chunk, nStrips);
+                        futures.add(pool.submit(new Callable<Void>() {
+                            public Void call() throws IOException {
+                                ByteBuffer stripBuffer = ByteBuffer
+                                    .allocate(STRIP_LENGTH);
+                                ByteBuffer records = LittleEndianCodec
+                                    .wrap(new byte[stripRecordsLength]);
+                                for(int i = first; i < last; i++) {
+                                    StripMetadata item = strips.get(i);
+                                    stripBuffer.clear();
+                                    EcgFileWriter.readFully(src, stripBuffer,
+                                        HEADER_LENGTH + (long)item.getIndex()
+                                            * STRIP_LENGTH);
+                                    records.clear();
+                                    putRecords(records, Strip
+                                        .decodeCounts(stripBuffer.array()),
+                                        item, startTime);
+                                    records.flip();
+                                    EcgFileWriter.writeFully(dest, records,
+                                        edfHeader.length + (long)i
+                                            * stripRecordsLength);
+                                }
+                                return null;
+                            }
+                        }));
+                    }
+                    for(Future<Void> future : futures) {
+                        EcgFileWriter.waitFor(future);
+                    }
+                } finally {
+                    pool.shutdownNow();
+                }
+                raf.close();
+                done = true;
+            } finally {
+                if(!done) {
+                    try {
+                        raf.close();
+                    } catch(IOException ex) {
+                        // Do nothing
+                    }
+                    edfFile.delete();
+                }
+            }
+            return nStrips;
+        } finally {
+            fis.close();
+        }
+    }
+
+    /**
+     * Puts the data records for one strip into the buffer.
+     * 
+     * @param records
+     * @param counts The counts for the strip.
+     * @param item The metadata for the strip.
+     * @param startTime The start time of the recording.
+     */
+    private static void putRecords(ByteBuffer records, int[] counts,
+        StripMetadata item, long startTime) {
+        long onset = (item.getTime() - startTime) / 1000;
+        int index = 0;
+        int val;
+        StringBuilder tal = new StringBuilder();
+        for(int seg = 0; seg < STRIP_N_DATA_SEGMENTS; seg++) {
+            for(int i = 0; i < SEGMENT_N_DATA_VALS; i++) {
+                val = counts[index++] - 512;
+                val = Math.max(-DIGITAL_LIMIT, Math.min(DIGITAL_LIMIT, val));
+                records.putShort((short)val);
+            }
+            // The time-keeping TAL and a note at the start of the strip
+            tal.setLength(0);
+            tal.append("+" + onset + TAL_SEP + TAL_SEP + TAL_END);
+            if(seg == 0) {
+                tal.append("+" + onset + TAL_SEP + "Strip "
+                    + (item.getIndex() + 1) + " HR " + item.getHeartRate()
+                    + " Diag " + item.getDiagnostic() + TAL_SEP + TAL_END);
+            }
+            for(int i = 0; i < 2 * ANNOTATION_SAMPLES; i++) {
+                records.put(i < tal.length() ? (byte)tal.charAt(i) : 0);
+            }
+            onset += SEGMENT_N_DATA_VALS / SAMPLE_RATE;
+        }
+    }
+
+    /**
+     * Gets the EDF+ header.
+     * 
+     * @param header The .cEcg header.
+     * @param startTime The time of the first strip.
+     * @param nRecords The number of data records.
+     * @return
+     */
+    private static byte[] getEdfHeader(Header header, long startTime,
+        int nRecords) {
+        TimeZone utc = TimeZone.getTimeZone("UTC");
+        SimpleDateFormat edfDate = new SimpleDateFormat("dd-MMM-yyyy",
+            Locale.US);
+        edfDate.setTimeZone(utc);
+        SimpleDateFormat startDate = new SimpleDateFormat("dd.MM.yy");
+        startDate.setTimeZone(utc);
+        SimpleDateFormat startClock = new SimpleDateFormat("HH.mm.ss");
+        startClock.setTimeZone(utc);
+        Date start = new Date(startTime);
+
+        // Patient: code, sex, birthdate, name
+        String sex = "X";
+        String gender = header.getGender().trim().toUpperCase();
+        if(gender.startsWith("M") || gender.startsWith("F")) {
+            sex = gender.substring(0, 1);
+        }
+        String birthdate = "X";
+        SimpleDateFormat deviceDate = new SimpleDateFormat("M/d/yyyy");
+        deviceDate.setTimeZone(utc);
+        deviceDate.setLenient(false);
+        try {
+            birthdate = edfDate.format(deviceDate.parse(header.getBirthdate()
+                .trim()));
+        } catch(ParseException ex) {
+            // Leave it unknown
+        }
+        String patient = edfWord(header.getId()) + " " + sex + " "
+            + birthdate.toUpperCase() + " " + edfWord(header.getName());
+        String recording = "Startdate "
+            + edfDate.format(start).toUpperCase() + " X X MD100A";
+
+        int nSignals = 2;
+        StringBuilder sb = new StringBuilder();
+        field(sb, "0", 8);
+        field(sb, patient, 80);
+        field(sb, recording, 80);
+        field(sb, startDate.format(start), 8);
+        field(sb, startClock.format(start), 8);
+        field(sb, Integer.toString(256 * (nSignals + 1)), 8);
+        field(sb, "EDF+D", 44);
+        field(sb, Integer.toString(nRecords), 8);
+        field(sb, Integer.toString(SEGMENT_N_DATA_VALS / SAMPLE_RATE), 8);
+        field(sb, Integer.toString(nSignals), 4);
+        // Signal fields
+        field(sb, "ECG", 16);
+        field(sb, ANNOTATIONS_LABEL, 16);
+        field(sb, "MD100A", 80);
+        field(sb, "", 80);
+        field(sb, "mV", 8);
+        field(sb, "", 8);
+        field(sb, formatNumber(-DIGITAL_LIMIT * MV_PER_COUNT), 8);
+        field(sb, "-1", 8);
+        field(sb, formatNumber(DIGITAL_LIMIT * MV_PER_COUNT), 8);
+        field(sb, "1", 8);
+        field(sb, Integer.toString(-DIGITAL_LIMIT), 8);
+        field(sb, "-32768", 8);
+        field(sb, Integer.toString(DIGITAL_LIMIT), 8);
+        field(sb, "32767", 8);
+        field(sb, "", 80);
+        field(sb, "", 80);
+        field(sb, Integer.toString(SEGMENT_N_DATA_VALS), 8);
+        field(sb, Integer.toString(ANNOTATION_SAMPLES), 8);
+        field(sb, "", 32);
+        field(sb, "", 32);
+
+        byte[] bytes = new byte[sb.length()];
+        for(int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte)sb.charAt(i);
+        }
+        return bytes;
+    }
+
+    /**
+     * Appends a field to an EDF header, padded with spaces or truncated to the
+     * given width. Characters that are not printable ASCII are replaced.
+     * 
+     * @param sb
+     * @param value
+     * @param width
+     */
+    private static void field(StringBuilder sb, String value, int width) {
+        char ch;
+        for(int i = 0; i < width; i++) {
+            ch = i < value.length() ? value.charAt(i) : ' ';
+            sb.append(ch >= 32 && ch < 127 ? ch : '_');
+        }
+    }
+
+    /**
+     * Converts a value to a single EDF+ subfield, which cannot have spaces.
+     * 
+     * @param value
+     * @return
+     */
+    private static String edfWord(String value) {
+        value = value.trim();
+        if(value.length() == 0) {
+            return "X";
+        }
+        return value.replaceAll("\\s+", "_");
+    }
+
+    /**
+     * Formats a number to fit in 8 characters.
+     * 
+     * @param val
+     * @return
+     */
+    private static String formatNumber(double val) {
+        String string = Double.toString(val);
+        if(string.endsWith(".0")) {
+            string = string.substring(0, string.length() - 2);
+        }
+        return string.length() > 8 ? string.substring(0, 8) : string;
+    }
+
+    /**
+     * Imports a signal from an EDF or EDF+ file to a .cEcg file. The .cEcg
+     * file is deleted if it is not finished.
+     * 
+     * @param edfFile The EDF file.
+     * @param label The label of the signal to import or null for the first
+     *            signal that is not annotations.
+     * @param ecgFile The .cEcg file to write.
+     * @param nThreads The number of threads to use.
+     * @return The number of strips written.
+     * @throws IOException
+     */
+    public static int importEdf(File edfFile, String label, File ecgFile,
+        int nThreads) throws IOException {
+        FileInputStream fis = new FileInputStream(edfFile);
+        try {
+            FileChannel src = fis.getChannel();
+            EdfHeader edf = readEdfHeader(src, edfFile.getPath());
+            int signal = -1;
+            int annotations = -1;
+            for(int i = 0; i < edf.nSignals; i++) {
+                if(edf.isPlus && edf.labels[i].equals(ANNOTATIONS_LABEL)) {
+                    if(annotations < 0) {
+                        annotations = i;
+                    }
+                } else if(signal < 0
+                    && (label == null || edf.labels[i].equals(label))) {
+                    signal = i;
+                }
+            }
+            if(signal < 0) {
+                throw new IOException("No "
+                    + (label == null ? "signal" : ("signal \"" + label + "\""))
+                    + " found in:" + LS + edfFile.getPath());
+            }
+            int nRecords = edf.nRecords;
+            if(nRecords < 0 && edf.recordLength > 0) {
+                nRecords = (int)((src.size() - edf.headerLength)
+                    / edf.recordLength);
+            }
+            // Factors to convert digital values to mm
+            double scale = (edf.physMax[signal] - edf.physMin[signal])
+                / (edf.digMax[signal] - edf.digMin[signal]);
+            double mmPerPhys = 10 * getMvPerUnit(edf.dimensions[signal]);
+            double digMin = edf.digMin[signal];
+
+            StripEncoder encoder = new StripEncoder(ecgFile, nThreads);
+            boolean done = false;
+            try {
+                Resampler resampler = new Resampler(edf.nSamples[signal]
+                    / edf.duration / SAMPLE_RATE, encoder);
+                ByteBuffer record = LittleEndianCodec
+                    .wrap(new byte[edf.recordLength]);
+                double expectedOnset = 0;
+                double onset;
+                double val;
+                int offset;
+                for(int r = 0; r < nRecords; r++) {
+                    record.clear();
+                    EcgFileWriter.readFully(src, record, edf.headerLength
+                        + (long)r * edf.recordLength);
+                    onset = r * edf.duration;
+                    if(annotations >= 0) {
+                        onset = getRecordOnset(record,
+                            edf.offsets[annotations],
+                            2 * edf.nSamples[annotations], onset);
+                    }
+                    if(r == 0 || Math.abs(onset - expectedOnset) > .001) {
+                        // Start of a continuous section
+                        encoder.finishStrip();
+                        resampler.start(edf.startTime
+                            + Math.round(onset * 1000));
+                    }
+                    expectedOnset = onset + edf.duration;
+                    offset = edf.offsets[signal];
+                    for(int i = 0; i < edf.nSamples[signal]; i++) {
+                        val = edf.physMin[signal]
+                            + (record.getShort(offset + 2 * i) - digMin)
+                            * scale;
+                        resampler.add(val * mmPerPhys);
+                    }
+                }
+                encoder.finishStrip();
+                encoder.finish(makeHeader(edf, edfFile));
+                done = true;
+            } finally {
+                if(!done) {
+                    encoder.abort();
+                }
+            }
+            return encoder.getNStrips();
+        } finally {
+            fis.close();
+        }
+    }
+
+    /**
+     * Gets the onset of a record from its first TAL.
+     * 
+     * @param record
+     * @param offset The offset of the annotation signal in the record.
+     * @param length The length of the annotation signal in bytes.
+     * @param defaultOnset The value to use if there is no TAL.
+     * @return
+     */
+    private static double getRecordOnset(ByteBuffer record, int offset,
+        int length, double defaultOnset) {
+        StringBuilder sb = new StringBuilder();
+        char ch;
+        for(int i = 0; i < length; i++) {
+            ch = (char)(record.get(offset + i) & 0xff);
+            if(ch == TAL_SEP || ch == 0x15 || ch == TAL_END) {
+                break;
+            }
+            sb.append(ch);
+        }
+        try {
+            return Double.parseDouble(sb.toString());
+        } catch(NumberFormatException ex) {
+            return defaultOnset;
+        }
+    }
+
+    /**
+     * Gets the factor to convert the given EDF physical dimension to mV.
+     * 
+     * @param dimension
+     * @return
+     */
+    private static double getMvPerUnit(String dimension) {
+        if(dimension.equalsIgnoreCase("uV")) {
+            return .001;
+        } else if(dimension.equalsIgnoreCase("V")) {
+            return 1000;
+        } else if(dimension.equalsIgnoreCase("nV")) {
+            return 1.e-6;
+        }
+        // Assume mV
+        return 1;
+    }
+
+    /**
+     * Reads the EDF header.
+     * 
+     * @param channel
+     * @param name The name of the file for messages.
+     * @return
+     * @throws IOException
+     */
+    private static EdfHeader readEdfHeader(FileChannel channel, String name)
+        throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(256);
+        EcgFileWriter.readFully(channel, buffer, 0);
+        String fixed = new String(buffer.array(), "US-ASCII");
+        EdfHeader edf = new EdfHeader();
+        try {
+            if(!fixed.substring(0, 8).trim().equals("0")) {
+                throw new IOException("Not an EDF file:" + LS + name);
+            }
+            edf.patient = fixed.substring(8, 88).trim();
+            edf.recording = fixed.substring(88, 168).trim();
+            edf.headerLength = Integer.parseInt(fixed.substring(184, 192)
+                .trim());
+            edf.isPlus = fixed.substring(192, 236).trim().startsWith("EDF+");
+            edf.nRecords = Integer.parseInt(fixed.substring(236, 244).trim());
+            edf.duration = Double.parseDouble(fixed.substring(244, 252)
+                .trim());
+            edf.nSignals = Integer.parseInt(fixed.substring(252, 256).trim());
+            edf.startTime = parseStartTime(fixed.substring(168, 176),
+                fixed.substring(176, 184), edf.recording);
+
+            int ns = edf.nSignals;
+            buffer = ByteBuffer.allocate(256 * ns);
+            EcgFileWriter.readFully(channel, buffer, 256);
+            String signals = new String(buffer.array(), "US-ASCII");
+            edf.labels = new String[ns];
+            edf.dimensions = new String[ns];
+            edf.physMin = new double[ns];
+            edf.physMax = new double[ns];
+            edf.digMin = new double[ns];
+            edf.digMax = new double[ns];
+            edf.nSamples = new int[ns];
+            edf.offsets = new int[ns];
+            for(int i = 0; i < ns; i++) {
+                edf.labels[i] = signals.substring(16 * i, 16 * (i + 1)).trim();
+                edf.dimensions[i] = getSignalField(signals, ns, 96, 8, i);
+                edf.physMin[i] = Double.parseDouble(getSignalField(signals,
+                    ns, 104, 8, i));
+                edf.physMax[i] = Double.parseDouble(getSignalField(signals,
+                    ns, 112, 8, i));
+                edf.digMin[i] = Double.parseDouble(getSignalField(signals,
+                    ns, 120, 8, i));
+                edf.digMax[i] = Double.parseDouble(getSignalField(signals,
+                    ns, 128, 8, i));
+                edf.nSamples[i] = Integer.parseInt(getSignalField(signals,
+                    ns, 216, 8, i));
+                edf.offsets[i] = edf.recordLength;
+                edf.recordLength += 2 * edf.nSamples[i];
+            }
+        } catch(NumberFormatException ex) {
+            throw new IOException("Invalid EDF header in:" + LS + name);
+        } catch(ParseException ex) {
+            throw new IOException("Invalid EDF start date or time in:" + LS
+                + name);
+        }
+        if(edf.duration <= 0 || edf.recordLength == 0) {
+            throw new IOException("EDF file has no data:" + LS + name);
+        }
+        return edf;
+    }
+
+    /**
+     * Gets a field for one signal from the signal part of the EDF header.
+     * Each field has the values for all the signals one after the other.
+     * 
+     * @param signals The signal part of the header.
+     * @param ns The number of signals.
+     * @param start The offset of the field for one signal.
+     * @param width The width of the field.
+     * @param i The index of the signal.
+     * @return
+     */
+    private static String getSignalField(String signals, int ns, int start,
+        int width, int i) {
+        int index = ns * start + width * i;
+        return signals.substring(index, index + width).trim();
+    }
+
+    /**
+     * Parses the EDF start date and time. EDF+ files have a 4-digit year in
+     * the recording field, which is used if present.
+     * 
+     * @param date dd.mm.yy
+     * @param time hh.mm.ss
+     * @param recording The recording field.
+     * @return
+     * @throws ParseException
+     */
+    private static long parseStartTime(String date, String time,
+        String recording) throws ParseException {
+        SimpleDateFormat format = new SimpleDateFormat("dd.MM.yy HH.mm.ss");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        // EDF uses 1985 as the clipping date
+        Calendar cal = new GregorianCalendar(TimeZone.getTimeZone("UTC"));
+        cal.clear();
+        cal.set(1985, 0, 1);
+        format.set2DigitYearStart(cal.getTime());
+        cal.setTime(format.parse(date.trim() + " " + time.trim()));
+        String[] tokens = recording.split(" ");
+        if(tokens.length > 1 && tokens[0].equals("Startdate")) {
+            SimpleDateFormat edfDate = new SimpleDateFormat("dd-MMM-yyyy",
+                Locale.US);
+            edfDate.setTimeZone(TimeZone.getTimeZone("UTC"));
+            try {
+                Calendar full = new GregorianCalendar(TimeZone
+                    .getTimeZone("UTC"));
+                full.setTime(edfDate.parse(tokens[1]));
+                cal.set(Calendar.YEAR, full.get(Calendar.YEAR));
+            } catch(ParseException ex) {
+                // Use the 2-digit year
+            }
+        }
+        return cal.getTimeInMillis();
+    }
+
+    /**
+     * Makes the .cEcg header from the EDF patient information.
+     * 
+     * @param edf
+     * @param edfFile
+     * @return
+     */
+    private static Header makeHeader(EdfHeader edf, File edfFile) {
+        String id = "1";
+        String name = edf.patient;
+        String gender = "";
+        String birthdate = "";
+        String[] tokens = edf.patient.split(" ");
+        if(edf.isPlus && tokens.length >= 4) {
+            if(tokens[0].matches("[0-9]{1,15}")
+                && Long.parseLong(tokens[0]) > 0) {
+                id = tokens[0];
+            }
+            if(tokens[1].equals("M")) {
+                gender = "Male";
+            } else if(tokens[1].equals("F")) {
+                gender = "Female";
+            }
+            SimpleDateFormat edfDate = new SimpleDateFormat("dd-MMM-yyyy",
+                Locale.US);
+            SimpleDateFormat deviceDate = new SimpleDateFormat("M/d/yyyy");
+            try {
+                birthdate = deviceDate.format(edfDate.parse(tokens[2]));
+            } catch(ParseException ex) {
+                // Leave it blank
+            }
+            name = tokens[3].equals("X") ? "" : tokens[3].replace('_', ' ');
+        }
+        return new Header(0, id, name, gender, birthdate, "", "", "", "", "",
+            "Imported from " + edfFile.getName());
+    }
+
+    /**
+     * Resampler resamples a signal to SAMPLE_RATE by linear interpolation and
+     * passes the values to a StripEncoder.
+     */
+    private static class Resampler
+    {
+        /** The input samples per output sample. */
+        private double ratio;
+        private StripEncoder encoder;
+        private long nIn;
+        private long nOut;
+        private double prev;
+
+        Resampler(double ratio, StripEncoder encoder) {
+            this.ratio = ratio;
+            this.encoder = encoder;
+        }
+
+        /**
+         * Starts a continuous section at the given time.
+         */
+        void start(long time) {
+            nIn = 0;
+            nOut = 0;
+            encoder.startSection(time);
+        }
+
+        /**
+         * Adds the next input value.
+         */
+        void add(double val) throws IOException {
+            if(nIn == 0) {
+                encoder.add(val);
+                nOut = 1;
+            } else {
+                // Outputs between the previous input and this one
+                double pos;
+                while((pos = nOut * ratio) <= nIn) {
+                    encoder.add(prev + (val - prev) * (pos - (nIn - 1)));
+                    nOut++;
+                }
+            }
+            prev = val;
+            nIn++;
+        }
+    }
+
+    /**
+     * StripEncoder collects values in mm into strips and encodes and writes
+     * them with a pool of threads.
+     */
+    private static class StripEncoder
+    {
+        private File file;
+        private RandomAccessFile raf;
+        private FileChannel channel;
+        private ExecutorService pool;
+        private Semaphore inProgress;
+        private List<Future<Void>> futures = new ArrayList<Future<Void>>();
+        private double[] vals;
+        private int nVals;
+        private int nStrips;
+        /** The time of the start of the continuous section. */
+        private long sectionTime;
+        /** The number of values added in the continuous section. */
+        private long nSectionVals;
+        private long stripTime;
+
+        StripEncoder(File file, int nThreads) throws IOException {
+            if(nThreads < 1) {
+                nThreads = 1;
+            }
+            this.file = file;
+            raf = new RandomAccessFile(file, "rw");
+            raf.setLength(0);
+            channel = raf.getChannel();
+            pool = Executors.newFixedThreadPool(nThreads);
+            inProgress = new Semaphore(IN_PROGRESS_PER_THREAD * nThreads);
+        }
+
+        void startSection(long time) {
+            sectionTime = time;
+            nSectionVals = 0;
+        }
+
+        void add(double val) throws IOException {
+            if(nVals == 0) {
+                stripTime = sectionTime + nSectionVals * 1000 / SAMPLE_RATE;
+                vals = new double[STRIP_N_DATA_VALS];
+            }
+            vals[nVals++] = val;
+            nSectionVals++;
+            if(nVals == STRIP_N_DATA_VALS) {
+                submit();
+            }
+        }
+
+        /**
+         * Fills out a partial strip with its last value and writes it.
+         */
+        void finishStrip() throws IOException {
+            if(nVals == 0) {
+                return;
+            }
+            for(int i = nVals; i < STRIP_N_DATA_VALS; i++) {
+                vals[i] = vals[nVals - 1];
+            }
+            submit();
+        }
+
+        private void submit() throws IOException {
+            final byte[] prefix = getStripPrefix(stripTime);
+            final double[] stripVals = vals;
+            final long position = HEADER_LENGTH + (long)nStrips
+                * STRIP_LENGTH;
+            vals = null;
+            nVals = 0;
+            nStrips++;
+            try {
+                inProgress.acquire();
+            } catch(InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted");
+            }
+            futures.add(pool.submit(new Callable<Void>() {
+                public Void call() throws IOException {
+                    try {
+                        limitSlew(stripVals);
+                        byte[] bytes = new Strip(prefix)
+                            .getConvertedBytes(stripVals);
+                        EcgFileWriter.writeFully(channel, ByteBuffer
+                            .wrap(bytes), position);
+                        return null;
+                    } finally {
+                        inProgress.release();
+                    }
+                }
+            }));
+            // Check the ones that are done so errors are found early
+            while(!futures.isEmpty() && futures.get(0).isDone()) {
+                EcgFileWriter.waitFor(futures.remove(0));
+            }
+        }
+
+        /**
+         * Waits for the strips and writes the header.
+         */
+        void finish(Header header) throws IOException {
+            for(Future<Void> future : futures) {
+                EcgFileWriter.waitFor(future);
+            }
+            futures.clear();
+            header.setNStrips(nStrips);
+            EcgFileWriter.writeFully(channel, ByteBuffer.wrap(header
+                .getData()), 0);
+            channel.force(true);
+            close();
+        }
+
+        /**
+         * Stops the encoding and deletes the partial file.
+         */
+        void abort() {
+            try {
+                close();
+            } catch(IOException ex) {
+                // Do nothing
+            }
+            file.delete();
+        }
+
+        private void close() throws IOException {
+            pool.shutdownNow();
+            raf.close();
+        }
+
+        int getNStrips() {
+            return nStrips;
+        }
+    }
+
+    /**
+     * Gets the strip header with the given time and the data marker.
+     * 
+     * @param time
+     * @return
+     */
+    private static byte[] getStripPrefix(long time) {
+        Calendar cal = new GregorianCalendar(TimeZone.getTimeZone("UTC"));
+        cal.setTimeInMillis(time);
+        byte[] prefix = new byte[STRIP_DATA_START];
+        // The layout is the same as used in the Strip constructor
+        ByteBuffer buffer = LittleEndianCodec.wrap(prefix);
+        buffer.putShort(2, (short)cal.get(Calendar.YEAR));
+        buffer.putShort(4, (short)(cal.get(Calendar.MONTH) + 1));
+        buffer.putShort(8, (short)cal.get(Calendar.DAY_OF_MONTH));
+        buffer.putShort(10, (short)cal.get(Calendar.HOUR_OF_DAY));
+        buffer.putShort(12, (short)cal.get(Calendar.MINUTE));
+        buffer.putShort(14, (short)cal.get(Calendar.SECOND));
+        prefix[EcgFileScanner.MARKER_OFFSET] = 0x55;
+        prefix[EcgFileScanner.MARKER_OFFSET + 1] = (byte)0xAA;
+        return prefix;
+    }
+
+    /**
+     * Rounds the values in mm to whole counts and limits the change between
+     * values to what the delta encoding can hold, 127 counts. The values are
+     * changed in place.
+     * 
+     * @param vals
+     */
+    static void limitSlew(double[] vals) {
+        long count;
+        long prev = 0;
+        for(int i = 0; i < vals.length; i++) {
+            count = Math.round(vals[i] / mmPerUnit) + 512;
+            if(i % SEGMENT_N_DATA_VALS == 0) {
+                // The first value in a segment is an unsigned short
+                count = Math.max(0, Math.min(0xffff, count));
+            } else {
+                count = Math.max(prev - 127, Math.min(prev + 127, count));
+            }
+            vals[i] = (count - 512) * mmPerUnit;
+            prev = count;
+        }
+    }
+
+    /**
+     * Converts between .cEcg and EDF+ files.
+     * 
+     * @param args export file.cEcg file.edf, or import file.edf file.cEcg
+     *            [label].
+     */
+    public static void main(String[] args) {
+        if(args.length < 3
+            || !(args[0].equals("export") || args[0].equals("import"))) {
+            System.out.println("Usage: " + EdfConverter.class.getName()
+                + " export file.cEcg file.edf | import file.edf file.cEcg"
+                + " [label]");
+            return;
+        }
+        int nThreads = Runtime.getRuntime().availableProcessors();
+        try {
+            int nStrips;
+            if(args[0].equals("export")) {
+                nStrips = exportEdf(new File(args[1]), new File(args[2]),
+                    nThreads);
+            } else {
+                nStrips = importEdf(new File(args[1]), args.length > 3
+                    ? args[3] : null, new File(args[2]), nThreads);
+            }
+            System.out.println("Converted " + nStrips + " strips to "
+                + args[2]);
+        } catch(IOException ex) {
+            ex.printStackTrace();
+        }
+    }
+
+}
@@ -1,9 +1,6 @@
 package net.kenevans.ecg.md100a.model;
 
-import java.io.ByteArrayInputStream;
-import java.io.IOException;
-
-import net.kenevans.core.utils.Utils;
+import java.nio.ByteBuffer;
 
 /*
  * Created on Jun 24, 2012
@@ -30,67 +27,56 @@ public class Header implements IConstants
     private String allergies;
     private String diagnosis;
 
+    /**
+     * Field represents the fields in the header with their offset and length
+     * in bytes. The string fields are UTF-16LE terminated by a null.
+     */
+    public static enum Field {
+        N_STRIPS(0, 4), ID(4, 32), NAME(36, 82), GENDER(118, 20),
+        BIRTHDATE(138, 112), HEIGHT(250, 28), WEIGHT(278, 30),
+        TELEPHONE(308, 130), ADDRESS(438, 210), ALLERGIES(648, 130),
+        /** To end of header, must be at least 542. */
+        DIAGNOSIS(778, 614);
+
+        private int offset;
+        private int length;
+
+        Field(int offset, int length) {
+            this.offset = offset;
+            this.length = length;
+        }
+
+        /**
+         * @return The offset of the field from the start of the header.
+         */
+        public int getOffset() {
+            return offset;
+        }
+
+        /**
+         * @return The number of bytes in the field.
+         */
+        public int getLength() {
+            return length;
+        }
+    };
+
     Header(byte[] data) {
-        ByteArrayInputStream bais = new ByteArrayInputStream(data);
-        LittleEndianDataInputStream dis = new LittleEndianDataInputStream(bais);
-        byte[] stringData = null;
-        int stringBytes = 0;
         try {
-            nStrips = dis.readInt();
-
-            stringBytes = 32;
-            stringData = new byte[stringBytes];
-            dis.readFully(stringData);
-            id = EcgFileModel.getString(stringData);
-
-            stringBytes = 82;
-            stringData = new byte[stringBytes];
-            dis.readFully(stringData);
-            name = EcgFileModel.getString(stringData);
-
-            stringBytes = 20;
-            stringData = new byte[stringBytes];
-            dis.readFully(stringData);
-            gender = EcgFileModel.getString(stringData);
-
-            stringBytes = 112;
-            stringData = new byte[stringBytes];
-            dis.readFully(stringData);
-            birthdate = EcgFileModel.getString(stringData);
-
-            stringBytes = 28;
-            stringData = new byte[stringBytes];
-            dis.readFully(stringData);
-            height = EcgFileModel.getString(stringData);
-
-            stringBytes = 30;
-            stringData = new byte[stringBytes];
-            dis.readFully(stringData);
-            weight = EcgFileModel.getString(stringData);
-
-            stringBytes = 130;
-            stringData = new byte[stringBytes];
-            dis.readFully(stringData);
-            telephone = EcgFileModel.getString(stringData);
-
-            stringBytes = 210;
-            stringData = new byte[stringBytes];
-            dis.readFully(stringData);
-            address = EcgFileModel.getString(stringData);
-
-            stringBytes = 130;
-            stringData = new byte[stringBytes];
-            dis.readFully(stringData);
-            allergies = EcgFileModel.getString(stringData);
-
-            stringBytes = 614; // To end of header, must be at least 542
-            stringData = new byte[stringBytes];
-            dis.readFully(stringData);
-            diagnosis = EcgFileModel.getString(stringData);
-
-            dis.close();
-        } catch(IOException ex) {
-            Utils.excMsg("Error getting header", ex);
+            ByteBuffer buffer = LittleEndianCodec.wrap(data);
+            nStrips = buffer.getInt(Field.N_STRIPS.getOffset());
+            id = getField(buffer, 0, Field.ID);
+            name = getField(buffer, 0, Field.NAME);
+            gender = getField(buffer, 0, Field.GENDER);
+            birthdate = getField(buffer, 0, Field.BIRTHDATE);
+            height = getField(buffer, 0, Field.HEIGHT);
+            weight = getField(buffer, 0, Field.WEIGHT);
+            telephone = getField(buffer, 0, Field.TELEPHONE);
+            address = getField(buffer, 0, Field.ADDRESS);
+            allergies = getField(buffer, 0, Field.ALLERGIES);
+            diagnosis = getField(buffer, 0, Field.DIAGNOSIS);
+        } catch(Exception ex) {
+            Diagnostics.excMsg("Error getting header", ex);
         }
     }
 
@@ -133,33 +119,51 @@ public class Header implements IConstants
 
     public byte[] getData() {
         byte[] data = new byte[HEADER_LENGTH];
-        int index = 0;
-        EcgFileModel.insertInt(nStrips, data, index);
-        index += 4;
-        EcgFileModel.insertString(id, data, index, 32);
-        index += 32;
-        EcgFileModel.insertString(name, data, index, 82);
-        index += 82;
-        EcgFileModel.insertString(gender, data, index, 20);
-        index += 20;
-        EcgFileModel.insertString(birthdate, data, index, 112);
-        index += 112;
-        EcgFileModel.insertString(height, data, index, 28);
-        index += 28;
-        EcgFileModel.insertString(weight, data, index, 30);
-        index += 30;
-        EcgFileModel.insertString(telephone, data, index, 130);
-        index += 130;
-        EcgFileModel.insertString(address, data, index, 210);
-        index += 210;
-        EcgFileModel.insertString(allergies, data, index, 130);
-        index += 130;
-        EcgFileModel.insertString(diagnosis, data, index, 614);
-        index += 614;
-
+        LittleEndianCodec.putInt(nStrips, data, Field.N_STRIPS.getOffset());
+        insertField(Field.ID, id, data);
+        insertField(Field.NAME, name, data);
+        insertField(Field.GENDER, gender, data);
+        insertField(Field.BIRTHDATE, birthdate, data);
+        insertField(Field.HEIGHT, height, data);
+        insertField(Field.WEIGHT, weight, data);
+        insertField(Field.TELEPHONE, telephone, data);
+        insertField(Field.ADDRESS, address, data);
+        insertField(Field.ALLERGIES, allergies, data);
+        insertField(Field.DIAGNOSIS, diagnosis, data);
         return data;
     }
 
+    /**
+     * Inserts the given string field into the given header bytes. The bytes
+     * after the null that ends the string are set to 0.
+     * 
+     * @param field The Field. Should not be N_STRIPS.
+     * @param string The value of the field.
+     * @param data The header bytes. Must be at least HEADER_LENGTH long.
+     */
+    public static void insertField(Field field, String string, byte[] data) {
+        int end = field.getOffset() + field.getLength();
+        for(int i = field.getOffset(); i < end; i++) {
+            data[i] = 0;
+        }
+        LittleEndianCodec.putString(string, LittleEndianCodec.wrap(data),
+            field.getOffset(), field.getLength());
+    }
+
+    /**
+     * Gets the given string field from a buffer containing header bytes. The
+     * characters are decoded directly from the buffer.
+     * 
+     * @param buffer The buffer. Its position is not changed.
+     * @param start The index in the buffer of the start of the header.
+     * @param field The Field. Should not be N_STRIPS.
+     * @return The value of the field.
+     */
+    public static String getField(ByteBuffer buffer, int start, Field field) {
+        return LittleEndianCodec.getString(buffer, start + field.getOffset(),
+            field.getLength());
+    }
+
     public Header clone() {
         return new Header(nStrips, id, name, gender, birthdate, height, weight,
             telephone, address, allergies, diagnosis);
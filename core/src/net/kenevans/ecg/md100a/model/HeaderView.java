@@ -0,0 +1,157 @@
+package net.kenevans.ecg.md100a.model;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * HeaderView is a read-only view of the header of a .cEcg file. The fields are
+ * decoded only when they are asked for, directly from the underlying buffer.
+ * Unlike Header, it does not copy the header bytes or decode fields that are
+ * not used, so it is suitable for scanning the headers of many files. Use
+ * getHeader() to get a Header that can be modified.
+ */
+public class HeaderView implements IConstants
+{
+    private ByteBuffer buffer;
+    private int start;
+
+    /**
+     * HeaderView constructor.
+     * 
+     * @param buffer The buffer containing the header. It is not copied.
+     * @param start The index in the buffer of the start of the header.
+     */
+    public HeaderView(ByteBuffer buffer, int start) {
+        this.buffer = buffer;
+        this.start = start;
+    }
+
+    /**
+     * Gets a HeaderView for the given file by reading its header with one
+     * positional read. The header is not mapped, so the file is not kept
+     * open or locked.
+     * 
+     * @param file The file.
+     * @return The HeaderView.
+     * @throws IOException
+     */
+    public static HeaderView read(File file) throws IOException {
+        FileInputStream fis = new FileInputStream(file);
+        try {
+            FileChannel channel = fis.getChannel();
+            if(channel.size() < HEADER_LENGTH) {
+                throw new IOException("File is too short to have a header:"
+                    + LS + file.getPath());
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(HEADER_LENGTH);
+            EcgFileWriter.readFully(channel, buffer, 0);
+            return new HeaderView(buffer, 0);
+        } finally {
+            fis.close();
+        }
+    }
+
+    /**
+     * Gets the value of a string field.
+     * 
+     * @param field The Field. Should not be N_STRIPS.
+     * @return
+     */
+    public String getField(Header.Field field) {
+        return Header.getField(buffer, start, field);
+    }
+
+    /**
+     * Gets a Header with all the fields decoded.
+     * 
+     * @return
+     */
+    public Header getHeader() {
+        return new Header(getNStrips(), getId(), getName(), getGender(),
+            getBirthdate(), getHeight(), getWeight(), getTelephone(),
+            getAddress(), getAllergies(), getDiagnosis());
+    }
+
+    /**
+     * @return The value of nStrips.
+     */
+    public int getNStrips() {
+        return buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN)
+            .getInt(start + Header.Field.N_STRIPS.getOffset());
+    }
+
+    /**
+     * @return The value of id.
+     */
+    public String getId() {
+        return getField(Header.Field.ID);
+    }
+
+    /**
+     * @return The value of name.
+     */
+    public String getName() {
+        return getField(Header.Field.NAME);
+    }
+
+    /**
+     * @return The value of gender.
+     */
+    public String getGender() {
+        return getField(Header.Field.GENDER);
+    }
+
+    /**
+     * @return The value of birthdate.
+     */
+    public String getBirthdate() {
+        return getField(Header.Field.BIRTHDATE);
+    }
+
+    /**
+     * @return The value of height.
+     */
+    public String getHeight() {
+        return getField(Header.Field.HEIGHT);
+    }
+
+    /**
+     * @return The value of weight.
+     */
+    public String getWeight() {
+        return getField(Header.Field.WEIGHT);
+    }
+
+    /**
+     * @return The value of telephone.
+     */
+    public String getTelephone() {
+        return getField(Header.Field.TELEPHONE);
+    }
+
+    /**
+     * @return The value of address.
+     */
+    public String getAddress() {
+        return getField(Header.Field.ADDRESS);
+    }
+
+    /**
+     * @return The value of allergies.
+     */
+    public String getAllergies() {
+        return getField(Header.Field.ALLERGIES);
+    }
+
+    /**
+     * @return The value of diagnosis.
+     */
+    public String getDiagnosis() {
+        return getField(Header.Field.DIAGNOSIS);
+    }
+
+}
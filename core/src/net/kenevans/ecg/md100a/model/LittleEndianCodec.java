@@ -0,0 +1,144 @@
+package net.kenevans.ecg.md100a.model;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * LittleEndianCodec reads and writes the little-endian values used in .cEcg
+ * files. It uses ByteBuffers with little-endian order, which can wrap arrays
+ * already in memory or be memory mapped, so no streams are needed.
+ */
+public class LittleEndianCodec
+{
+    private LittleEndianCodec() {
+    }
+
+    /**
+     * Wraps the given array in a little-endian ByteBuffer. The array is not
+     * copied.
+     * 
+     * @param bytes
+     * @return
+     */
+    public static ByteBuffer wrap(byte[] bytes) {
+        return ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Returns the given buffer if it is little endian, otherwise a little
+     * endian duplicate of it sharing the same content.
+     * 
+     * @param buffer
+     * @return
+     */
+    public static ByteBuffer littleEndian(ByteBuffer buffer) {
+        if(buffer.order() == ByteOrder.LITTLE_ENDIAN) {
+            return buffer;
+        }
+        return buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Gets a little-endian short from the given array.
+     * 
+     * @param bytes The array to use.
+     * @param index The index of the first byte.
+     * @return
+     */
+    public static short getShort(byte[] bytes, int index) {
+        return wrap(bytes).getShort(index);
+    }
+
+    /**
+     * Gets a little-endian int from the given array.
+     * 
+     * @param bytes The array to use.
+     * @param index The index of the first byte.
+     * @return
+     */
+    public static int getInt(byte[] bytes, int index) {
+        return wrap(bytes).getInt(index);
+    }
+
+    /**
+     * Puts a little-endian char into the given array.
+     * 
+     * @param val The value.
+     * @param bytes The array to use.
+     * @param index The index of the first byte.
+     */
+    public static void putChar(char val, byte[] bytes, int index) {
+        wrap(bytes).putChar(index, val);
+    }
+
+    /**
+     * Puts a little-endian short into the given array.
+     * 
+     * @param val The value.
+     * @param bytes The array to use.
+     * @param index The index of the first byte.
+     */
+    public static void putShort(short val, byte[] bytes, int index) {
+        wrap(bytes).putShort(index, val);
+    }
+
+    /**
+     * Puts a little-endian int into the given array.
+     * 
+     * @param val The value.
+     * @param bytes The array to use.
+     * @param index The index of the first byte.
+     */
+    public static void putInt(int val, byte[] bytes, int index) {
+        wrap(bytes).putInt(index, val);
+    }
+
+    /**
+     * Gets a UTF-16LE string from the given buffer. The string ends at the
+     * first null or after maxBytes bytes. The characters are decoded directly
+     * from the buffer.
+     * 
+     * @param buffer The buffer to use. Its position is not changed.
+     * @param index The index of the first byte.
+     * @param maxBytes The maximum number of bytes to use.
+     * @return
+     */
+    public static String getString(ByteBuffer buffer, int index, int maxBytes) {
+        buffer = littleEndian(buffer);
+        int end = Math.min(index + maxBytes, buffer.limit()) - 1;
+        StringBuilder sb = new StringBuilder(maxBytes / 2);
+        char ch;
+        for(; index < end; index += 2) {
+            ch = buffer.getChar(index);
+            if(ch == 0) {
+                break;
+            }
+            sb.append(ch);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Puts a UTF-16LE string into the given buffer followed by a null. The
+     * string is truncated if necessary so that it and the null fit into
+     * maxBytes bytes. The bytes after the null are not changed.
+     * 
+     * @param string The string.
+     * @param buffer The buffer to use. Its position is not changed.
+     * @param index The index of the first byte.
+     * @param maxBytes The maximum number of bytes to write including the two
+     *            bytes for the null at the end. Must be even.
+     */
+    public static void putString(String string, ByteBuffer buffer, int index,
+        int maxBytes) {
+        buffer = littleEndian(buffer);
+        int len = Math.min(string.length(), maxBytes / 2 - 1);
+        for(int i = 0; i < len; i++) {
+            buffer.putChar(index, string.charAt(i));
+            index += 2;
+        }
+        // Write the null
+        buffer.putChar(index, (char)0);
+    }
+
+}
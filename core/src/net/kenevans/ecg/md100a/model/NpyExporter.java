@@ -0,0 +1,281 @@
+package net.kenevans.ecg.md100a.model;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * NpyExporter writes the decoded samples of strips from a .cEcg file as a
+ * 2-dimensional NumPy .npy array with one row per strip. The values are either
+ * the raw counts as int16 or the values in mm as float32. The file is sized
+ * before writing, and the rows are written in place, so it can be used with
+ * numpy.load(file, mmap_mode='r'). A CSV file with the time, diagnostic, and
+ * heart rate for each row is written next to it.
+ */
+public class NpyExporter implements IConstants
+{
+    /** The extension used for the metadata file. */
+    public static final String METADATA_EXT = ".csv";
+    private static final byte[] MAGIC = {(byte)0x93, 'N', 'U', 'M', 'P', 'Y'};
+    /** The array data starts on a multiple of this. */
+    private static final int ALIGNMENT = 64;
+
+    /**
+     * Type is the type of the values in the array.
+     */
+    public static enum Type {
+        /** Raw counts as little-endian int16. */
+        COUNTS("<i2", 2),
+        /** Values in mm as little-endian float32. */
+        MM("<f4", 4);
+
+        private String descr;
+        private int size;
+
+        Type(String descr, int size) {
+            this.descr = descr;
+            this.size = size;
+        }
+
+        /**
+         * @return The NumPy type description.
+         */
+        public String getDescr() {
+            return descr;
+        }
+
+        /**
+         * @return The number of bytes in a value.
+         */
+        public int getSize() {
+            return size;
+        }
+    };
+
+    /**
+     * Gets the .npy header for an array of nRows strips.
+     * 
+     * @param type
+     * @param nRows
+     * @return
+     */
+    static byte[] getHeader(Type type, int nRows) {
+        String dict = "{'descr': '" + type.getDescr()
+            + "', 'fortran_order': False, 'shape': (" + nRows + ", "
+            + STRIP_N_DATA_VALS + "), }";
+        // Magic, 2 version bytes, 2 length bytes, dict, and a newline
+        int length = MAGIC.length + 4 + dict.length() + 1;
+        int padded = (length + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+        StringBuilder sb = new StringBuilder(dict);
+        for(int i = length; i < padded; i++) {
+            sb.append(' ');
+        }
+        sb.append('\n');
+        byte[] header = new byte[padded];
+        System.arraycopy(MAGIC, 0, header, 0, MAGIC.length);
+        header[MAGIC.length] = 1;
+        header[MAGIC.length + 1] = 0;
+        int dictLength = padded - MAGIC.length - 4;
+        LittleEndianCodec.putShort((short)dictLength, header,
+            MAGIC.length + 2);
+        for(int i = 0; i < dictLength; i++) {
+            header[MAGIC.length + 4 + i] = (byte)sb.charAt(i);
+        }
+        return header;
+    }
+
+    /**
+     * Exports the given strips.
+     * 
+     * @param ecgFile The .cEcg file.
+     * @param stripList The indices of the strips to export or null for all.
+     * @param type The type of the values.
+     * @param npyFile The .npy file to write.
+     * @param nThreads The number of threads to use.
+     * @return The number of strips exported.
+     * @throws IOException
+     */
+    public static int export(File ecgFile, List<Integer> stripList,
+        final Type type, File npyFile, int nThreads) throws IOException {
+        FileInputStream fis = new FileInputStream(ecgFile);
+        try {
+            final FileChannel src = fis.getChannel();
+            StripMetadata[] allMetadata = StripMetadata.read(src, ecgFile
+                .getPath());
+            final List<StripMetadata> metadata = new ArrayList<StripMetadata>();
+            if(stripList == null) {
+                for(StripMetadata item : allMetadata) {
+                    metadata.add(item);
+                }
+            } else {
+                for(int index : stripList) {
+                    if(index < 0 || index >= allMetadata.length) {
+                        throw new IOException("Invalid strip " + (index + 1)
+                            + " for " + ecgFile.getPath());
+                    }
+                    metadata.add(allMetadata[index]);
+                }
+            }
+            final int nRows = metadata.size();
+            final byte[] header = getHeader(type, nRows);
+            final int rowLength = STRIP_N_DATA_VALS * type.getSize();
+
+            RandomAccessFile raf = new RandomAccessFile(npyFile, "rw");
+            boolean done = false;
+            try {
+                final FileChannel dest = raf.getChannel();
+                // Size the file first so the rows can be written in place
+                raf.setLength(header.length + (long)nRows * rowLength);
+                EcgFileWriter.writeFully(dest, ByteBuffer.wrap(header), 0);
+
+                if(nThreads < 1) {
+                    nThreads = 1;
+                }
+                int chunk = Math.max(1, (nRows + nThreads - 1) / nThreads);
+                ExecutorService pool = Executors.newFixedThreadPool(nThreads);
+                try {
+                    List<Future<Void>> futures = new ArrayList<Future<Void>>();
+                    for(int start = 0; start < nRows; start += chunk) {
+                        final int first = start;
+                        final int end = Math.min(start + chunk, nRows);
+                        futures.add(pool.submit(new Callable<Void>() {
+                            public Void call() throws IOException {
+                                ByteBuffer stripBuffer = ByteBuffer
+                                    .allocate(STRIP_LENGTH);
+                                ByteBuffer row = LittleEndianCodec
+                                    .wrap(new byte[rowLength]);
+                                int[] counts;
+                                for(int i = first; i < end; i++) {
+                                    stripBuffer.clear();
+                                    EcgFileWriter.readFully(src, stripBuffer,
+                                        HEADER_LENGTH
+                                            + (long)metadata.get(i).getIndex()
+                                            * STRIP_LENGTH);
+                                    counts = Strip.decodeCounts(stripBuffer
+                                        .array());
+                                    row.clear();
+                                    for(int count : counts) {
+                                        if(type == Type.COUNTS) {
+                                            row.putShort((short)count);
+                                        } else {
+                                            row.putFloat((float)((count - 512)
+                                                * mmPerUnit));
+                                        }
+                                    }
+                                    row.flip();
+                                    EcgFileWriter.writeFully(dest, row,
+                                        header.length + (long)i * rowLength);
+                                }
+                                return null;
+                            }
+                        }));
+                    }
+                    for(Future<Void> future : futures) {
+                        EcgFileWriter.waitFor(future);
+                    }
+                } finally {
+                    pool.shutdownNow();
+                }
+                raf.close();
+                writeMetadata(metadata, getMetadataFile(npyFile));
+                done = true;
+                return nRows;
+            } finally {
+                if(!done) {
+                    // Unwritten rows would read as zeros, so do not leave them
+                    try {
+                        raf.close();
+                    } catch(IOException ex) {
+                        // Do nothing
+                    }
+                    npyFile.delete();
+                    getMetadataFile(npyFile).delete();
+                }
+            }
+        } finally {
+            fis.close();
+        }
+    }
+
+    /**
+     * Gets the metadata file for the given .npy file.
+     * 
+     * @param npyFile
+     * @return
+     */
+    public static File getMetadataFile(File npyFile) {
+        String name = npyFile.getPath();
+        if(name.toLowerCase().endsWith(".npy")) {
+            name = name.substring(0, name.length() - 4);
+        }
+        return new File(name + METADATA_EXT);
+    }
+
+    /**
+     * Writes the metadata as CSV with one line per row of the array.
+     * 
+     * @param metadata
+     * @param file
+     * @throws IOException
+     */
+    private static void writeMetadata(List<StripMetadata> metadata, File file)
+        throws IOException {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        PrintWriter out = new PrintWriter(new FileWriter(file));
+        try {
+            out.println("row,strip,time,diagnostic,heartRate");
+            int row = 0;
+            for(StripMetadata item : metadata) {
+                out.println(row++ + "," + (item.getIndex() + 1) + ","
+                    + format.format(new Date(item.getTime())) + ","
+                    + item.getDiagnostic() + "," + item.getHeartRate());
+            }
+            if(out.checkError()) {
+                throw new IOException("Error writing " + file.getPath());
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Exports all the strips in a file.
+     * 
+     * @param args The .cEcg file, the .npy file, and optionally counts or mm.
+     */
+    public static void main(String[] args) {
+        if(args.length < 2) {
+            System.out.println("Usage: " + NpyExporter.class.getName()
+                + " file.cEcg file.npy [counts|mm]");
+            return;
+        }
+        Type type = Type.COUNTS;
+        if(args.length > 2 && args[2].equalsIgnoreCase("mm")) {
+            type = Type.MM;
+        }
+        try {
+            int nStrips = export(new File(args[0]), null, type, new File(
+                args[1]), Runtime.getRuntime().availableProcessors());
+            System.out.println("Exported " + nStrips + " strips to "
+                + args[1]);
+        } catch(IOException ex) {
+            ex.printStackTrace();
+        }
+    }
+
+}
@@ -0,0 +1,563 @@
+package net.kenevans.ecg.md100a.model;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * SampleArchive is a compressed archive of the decoded samples in a .cEcg
+ * file. The samples are stored in blocks of SEGMENT_N_DATA_VALS samples that
+ * match the segments of the device. Each block holds its first count and the
+ * differences between the following counts. The differences are zigzag
+ * encoded and written as Rice codes with the parameter chosen for the block.
+ * Every block can be decoded by itself, and an index at the end of the file
+ * gives the position of each block, so any block, and so any 2-second window,
+ * can be read without reading the rest of the file.<br>
+ * <br>
+ * The layout, with little-endian values, is:
+ * 
+ * <pre>
+ * "ECGA", version (int), nStrips (int), index offset (long)
+ * the .cEcg header (HEADER_LENGTH bytes)
+ * for each strip:
+ *   the strip header (STRIP_DATA_START bytes)
+ *   for each block: k (byte), first count (unsigned short), Rice codes
+ * index: for each strip the strip offset and then the block offsets (long)
+ * </pre>
+ */
+public class SampleArchive implements IConstants
+{
+    /** The extension used for archive files. */
+    public static final String ARCHIVE_EXT = ".ecga";
+    private static final byte[] MAGIC = {'E', 'C', 'G', 'A'};
+    private static final int VERSION = 1;
+    /** The length of the archive header before the .cEcg header. */
+    private static final int PREFIX_LENGTH = 20;
+    private static final int N_STRIPS_OFFSET = 8;
+    private static final int INDEX_OFFSET_OFFSET = 12;
+    /** The number of index entries per strip. */
+    private static final int INDEX_STRIDE = STRIP_N_DATA_SEGMENTS + 1;
+    /** The largest Rice parameter tried. */
+    private static final int MAX_K = 8;
+
+    private RandomAccessFile raf;
+    private FileChannel channel;
+    private int nStrips;
+    /** The offsets of the strips and blocks, ending with the index offset. */
+    private long[] index;
+    private byte[] headerBytes;
+
+    /**
+     * Opens an archive for reading. The index is read at once. The blocks are
+     * read as needed.
+     * 
+     * @param file
+     * @throws IOException
+     */
+    public SampleArchive(File file) throws IOException {
+        raf = new RandomAccessFile(file, "r");
+        boolean ok = false;
+        try {
+            channel = raf.getChannel();
+            ByteBuffer prefix = ByteBuffer.allocate(PREFIX_LENGTH
+                + HEADER_LENGTH);
+            EcgFileWriter.readFully(channel, prefix, 0);
+            byte[] bytes = prefix.array();
+            if(!Arrays.equals(MAGIC, Arrays.copyOf(bytes, MAGIC.length))) {
+                throw new IOException("Not a sample archive:" + LS
+                    + file.getPath());
+            }
+            int version = LittleEndianCodec.getInt(bytes, MAGIC.length);
+            if(version != VERSION) {
+                throw new IOException("Unsupported sample archive version "
+                    + version + ":" + LS + file.getPath());
+            }
+            nStrips = LittleEndianCodec.getInt(bytes, N_STRIPS_OFFSET);
+            long indexOffset = LittleEndianCodec.wrap(bytes).getLong(
+                INDEX_OFFSET_OFFSET);
+            long indexLength = 8L * nStrips * INDEX_STRIDE;
+            if(nStrips < 0 || indexOffset + indexLength != channel.size()) {
+                throw new IOException("Invalid sample archive index:" + LS
+                    + file.getPath());
+            }
+            headerBytes = Arrays.copyOfRange(bytes, PREFIX_LENGTH,
+                PREFIX_LENGTH + HEADER_LENGTH);
+
+            ByteBuffer indexBuffer = ByteBuffer.allocate(8 * nStrips
+                * INDEX_STRIDE);
+            EcgFileWriter.readFully(channel, indexBuffer, indexOffset);
+            indexBuffer = LittleEndianCodec.littleEndian(indexBuffer);
+            indexBuffer.rewind();
+            index = new long[nStrips * INDEX_STRIDE + 1];
+            for(int i = 0; i < index.length - 1; i++) {
+                index[i] = indexBuffer.getLong();
+            }
+            index[index.length - 1] = indexOffset;
+            ok = true;
+        } finally {
+            if(!ok) {
+                raf.close();
+            }
+        }
+    }
+
+    /**
+     * Writes an archive of the given .cEcg file.
+     * 
+     * @param ecgFile The file to archive.
+     * @param archiveFile The archive to write.
+     * @return The length of the archive.
+     * @throws IOException
+     */
+    public static long write(File ecgFile, File archiveFile)
+        throws IOException {
+        FileInputStream fis = new FileInputStream(ecgFile);
+        try {
+            FileChannel src = fis.getChannel();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+            EcgFileWriter.readFully(src, header, 0);
+            int nStrips = LittleEndianCodec.getInt(header.array(),
+                Header.Field.N_STRIPS.getOffset());
+            if(nStrips < 0 || src.size() < HEADER_LENGTH + (long)nStrips
+                * STRIP_LENGTH) {
+                throw new IOException("The header specifies " + nStrips
+                    + " strips, but the file is too short:" + LS
+                    + ecgFile.getPath());
+            }
+
+            FileOutputStream fos = new FileOutputStream(archiveFile);
+            boolean done = false;
+            try {
+                FileChannel dest = fos.getChannel();
+                // Write the prefix with the index offset filled in at the end
+                ByteBuffer prefix = LittleEndianCodec
+                    .wrap(new byte[PREFIX_LENGTH]);
+                prefix.put(MAGIC);
+                prefix.putInt(VERSION);
+                prefix.putInt(nStrips);
+                prefix.rewind();
+                long position = 0;
+                EcgFileWriter.writeFully(dest, prefix, position);
+                position += PREFIX_LENGTH;
+                header.rewind();
+                EcgFileWriter.writeFully(dest, header, position);
+                position += HEADER_LENGTH;
+
+                ByteBuffer indexBuffer = LittleEndianCodec.wrap(new byte[8
+                    * nStrips * INDEX_STRIDE]);
+                ByteBuffer stripBuffer = ByteBuffer.allocate(STRIP_LENGTH);
+                byte[] strip = stripBuffer.array();
+                BitWriter writer = new BitWriter(SEGMENT_LENGTH * 2);
+                int[] counts;
+                for(int i = 0; i < nStrips; i++) {
+                    stripBuffer.clear();
+                    EcgFileWriter.readFully(src, stripBuffer, HEADER_LENGTH
+                        + (long)i * STRIP_LENGTH);
+                    counts = Strip.decodeCounts(strip);
+                    indexBuffer.putLong(position);
+                    EcgFileWriter.writeFully(dest, ByteBuffer.wrap(strip, 0,
+                        STRIP_DATA_START), position);
+                    position += STRIP_DATA_START;
+                    for(int seg = 0; seg < STRIP_N_DATA_SEGMENTS; seg++) {
+                        indexBuffer.putLong(position);
+                        writer.reset();
+                        encodeBlock(counts, seg * SEGMENT_N_DATA_VALS,
+                            SEGMENT_N_DATA_VALS, writer);
+                        EcgFileWriter.writeFully(dest, ByteBuffer.wrap(
+                            writer.getBytes(), 0, writer.getLength()),
+                            position);
+                        position += writer.getLength();
+                    }
+                }
+                long indexOffset = position;
+                indexBuffer.rewind();
+                EcgFileWriter.writeFully(dest, indexBuffer, position);
+                position += indexBuffer.capacity();
+                prefix.putLong(INDEX_OFFSET_OFFSET, indexOffset);
+                prefix.rewind();
+                EcgFileWriter.writeFully(dest, prefix, 0);
+                dest.truncate(position);
+                fos.close();
+                done = true;
+                return position;
+            } finally {
+                if(!done) {
+                    try {
+                        fos.close();
+                    } catch(IOException ex) {
+                        // Do nothing
+                    }
+                    archiveFile.delete();
+                }
+            }
+        } finally {
+            fis.close();
+        }
+    }
+
+    /**
+     * Encodes a block of counts.
+     * 
+     * @param counts
+     * @param start The index of the first count in the block.
+     * @param n The number of counts in the block.
+     * @param writer
+     */
+    private static void encodeBlock(int[] counts, int start, int n,
+        BitWriter writer) {
+        int[] zigzag = new int[n - 1];
+        int diff;
+        for(int i = 1; i < n; i++) {
+            diff = counts[start + i] - counts[start + i - 1];
+            zigzag[i - 1] = (diff << 1) ^ (diff >> 31);
+        }
+        // Find the parameter that gives the fewest bits
+        int k = 0;
+        long bestBits = Long.MAX_VALUE;
+        long bits;
+        for(int kk = 0; kk <= MAX_K; kk++) {
+            bits = 0;
+            for(int val : zigzag) {
+                bits += (val >>> kk) + 1 + kk;
+            }
+            if(bits < bestBits) {
+                bestBits = bits;
+                k = kk;
+            }
+        }
+        writer.writeBits(k, 8);
+        // The first count is little endian
+        int first = counts[start];
+        writer.writeBits(first & 0xff, 8);
+        writer.writeBits((first >>> 8) & 0xff, 8);
+        for(int val : zigzag) {
+            writer.writeUnary(val >>> k);
+            writer.writeBits(val & ((1 << k) - 1), k);
+        }
+        writer.flush();
+    }
+
+    /**
+     * Decodes a block of counts.
+     * 
+     * @param bytes The encoded block.
+     * @param counts The array to fill in.
+     * @param start The index in counts for the first count.
+     * @param n The number of counts in the block.
+     */
+    private static void decodeBlock(byte[] bytes, int[] counts, int start,
+        int n) {
+        BitReader reader = new BitReader(bytes);
+        int k = reader.readBits(8);
+        int val = reader.readBits(8);
+        val |= reader.readBits(8) << 8;
+        counts[start] = val;
+        int zigzag;
+        for(int i = 1; i < n; i++) {
+            zigzag = reader.readUnary() << k | reader.readBits(k);
+            val += (zigzag >>> 1) ^ -(zigzag & 1);
+            counts[start + i] = val;
+        }
+    }
+
+    /**
+     * Reads the counts in one block.
+     * 
+     * @param strip The index of the strip.
+     * @param block The index of the block in the strip.
+     * @return
+     * @throws IOException
+     */
+    public int[] readBlock(int strip, int block) throws IOException {
+        int[] counts = new int[SEGMENT_N_DATA_VALS];
+        readBlock(strip, block, counts, 0);
+        return counts;
+    }
+
+    private void readBlock(int strip, int block, int[] counts, int start)
+        throws IOException {
+        if(strip < 0 || strip >= nStrips || block < 0
+            || block >= STRIP_N_DATA_SEGMENTS) {
+            throw new IndexOutOfBoundsException("Invalid strip " + strip
+                + " or block " + block);
+        }
+        int i = strip * INDEX_STRIDE + 1 + block;
+        ByteBuffer buffer = ByteBuffer.allocate((int)(index[i + 1] - index[i]));
+        EcgFileWriter.readFully(channel, buffer, index[i]);
+        decodeBlock(buffer.array(), counts, start, SEGMENT_N_DATA_VALS);
+    }
+
+    /**
+     * Reads the counts for a range of samples in a strip. Only the blocks
+     * that contain the range are read.
+     * 
+     * @param strip The index of the strip.
+     * @param start The index of the first sample.
+     * @param n The number of samples.
+     * @return
+     * @throws IOException
+     */
+    public int[] readWindow(int strip, int start, int n) throws IOException {
+        if(start < 0 || n < 0 || start + n > STRIP_N_DATA_VALS) {
+            throw new IndexOutOfBoundsException("Invalid window " + start
+                + " + " + n);
+        }
+        int[] counts = new int[n];
+        if(n == 0) {
+            return counts;
+        }
+        int firstBlock = start / SEGMENT_N_DATA_VALS;
+        int lastBlock = (start + n - 1) / SEGMENT_N_DATA_VALS;
+        int[] blocks = new int[(lastBlock - firstBlock + 1)
+            * SEGMENT_N_DATA_VALS];
+        for(int block = firstBlock; block <= lastBlock; block++) {
+            readBlock(strip, block, blocks, (block - firstBlock)
+                * SEGMENT_N_DATA_VALS);
+        }
+        System.arraycopy(blocks, start - firstBlock * SEGMENT_N_DATA_VALS,
+            counts, 0, n);
+        return counts;
+    }
+
+    /**
+     * Reads the counts for a whole strip.
+     * 
+     * @param strip The index of the strip.
+     * @return
+     * @throws IOException
+     */
+    public int[] readStrip(int strip) throws IOException {
+        return readWindow(strip, 0, STRIP_N_DATA_VALS);
+    }
+
+    /**
+     * Reads the values for a whole strip in mm, as Strip.getDataAsBytes
+     * gives them.
+     * 
+     * @param strip The index of the strip.
+     * @return
+     * @throws IOException
+     */
+    public double[] readStripMm(int strip) throws IOException {
+        int[] counts = readStrip(strip);
+        double[] vals = new double[counts.length];
+        for(int i = 0; i < counts.length; i++) {
+            vals[i] = (counts[i] - 512) * mmPerUnit;
+        }
+        return vals;
+    }
+
+    /**
+     * Reads the metadata for a strip.
+     * 
+     * @param strip The index of the strip.
+     * @return
+     * @throws IOException
+     */
+    public StripMetadata readMetadata(int strip) throws IOException {
+        if(strip < 0 || strip >= nStrips) {
+            throw new IndexOutOfBoundsException("Invalid strip " + strip);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(STRIP_DATA_START);
+        EcgFileWriter.readFully(channel, buffer, index[strip * INDEX_STRIDE]);
+        return new StripMetadata(strip, buffer.array(), 0);
+    }
+
+    /**
+     * @return The .cEcg header stored in the archive.
+     */
+    public Header getHeader() {
+        return new Header(headerBytes);
+    }
+
+    /**
+     * @return The number of strips.
+     */
+    public int getNStrips() {
+        return nStrips;
+    }
+
+    /**
+     * Closes the archive.
+     * 
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        raf.close();
+    }
+
+    /**
+     * BitWriter writes bits, most significant first, into a growing array.
+     */
+    private static class BitWriter
+    {
+        private byte[] bytes;
+        private int length;
+        private long bits;
+        private int nBits;
+
+        BitWriter(int capacity) {
+            bytes = new byte[capacity];
+        }
+
+        void reset() {
+            length = 0;
+            bits = 0;
+            nBits = 0;
+        }
+
+        /**
+         * Writes the low n bits of value. n must be at most 24.
+         */
+        void writeBits(int value, int n) {
+            bits = bits << n | (value & ((1L << n) - 1));
+            nBits += n;
+            while(nBits >= 8) {
+                nBits -= 8;
+                put((byte)(bits >>> nBits));
+            }
+        }
+
+        /**
+         * Writes q one bits followed by a zero bit.
+         */
+        void writeUnary(int q) {
+            while(q >= 16) {
+                writeBits(0xffff, 16);
+                q -= 16;
+            }
+            writeBits(((1 << q) - 1) << 1, q + 1);
+        }
+
+        /**
+         * Writes any remaining bits, padded with zeros to a whole byte.
+         */
+        void flush() {
+            if(nBits > 0) {
+                put((byte)(bits << (8 - nBits)));
+                nBits = 0;
+            }
+        }
+
+        private void put(byte b) {
+            if(length == bytes.length) {
+                bytes = Arrays.copyOf(bytes, 2 * length);
+            }
+            bytes[length++] = b;
+        }
+
+        byte[] getBytes() {
+            return bytes;
+        }
+
+        int getLength() {
+            return length;
+        }
+    }
+
+    /**
+     * BitReader reads bits, most significant first, from an array.
+     */
+    private static class BitReader
+    {
+        private byte[] bytes;
+        private int next;
+        private long bits;
+        private int nBits;
+
+        BitReader(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        private void fill() {
+            while(nBits <= 56) {
+                // Pad with zeros past the end
+                int b = next < bytes.length ? bytes[next] & 0xff : 0;
+                next++;
+                bits = bits << 8 | b;
+                nBits += 8;
+            }
+        }
+
+        /**
+         * Reads n bits. n must be at most 24.
+         */
+        int readBits(int n) {
+            if(n == 0) {
+                return 0;
+            }
+            if(nBits < n) {
+                fill();
+            }
+            nBits -= n;
+            return (int)(bits >>> nBits) & ((1 << n) - 1);
+        }
+
+        /**
+         * Reads one bits up to a zero bit and returns the number of them.
+         */
+        int readUnary() {
+            int q = 0;
+            while(true) {
+                if(nBits == 0) {
+                    fill();
+                }
+                nBits--;
+                if(((bits >>> nBits) & 1) == 0) {
+                    return q;
+                }
+                q++;
+            }
+        }
+    }
+
+    /**
+     * Archives the given .cEcg file, checks that the archive gives the same
+     * samples, and prints the sizes.
+     * 
+     * @param args The .cEcg file and optionally the archive to write.
+     */
+    public static void main(String[] args) {
+        if(args.length < 1) {
+            System.out.println("Usage: " + SampleArchive.class.getName()
+                + " file.cEcg [archive" + ARCHIVE_EXT + "]");
+            return;
+        }
+        File ecgFile = new File(args[0]);
+        File archiveFile = new File(args.length > 1 ? args[1] : args[0]
+            + ARCHIVE_EXT);
+        try {
+            long length = write(ecgFile, archiveFile);
+            System.out.println(archiveFile.getPath());
+            System.out.println(String.format(
+                "%d bytes, %d bytes for the .cEcg file (%.1f%%)", length,
+                ecgFile.length(), 100. * length / ecgFile.length()));
+
+            // Check it
+            EcgFileModel model = new EcgFileModel(ecgFile.getPath());
+            SampleArchive archive = new SampleArchive(archiveFile);
+            try {
+                int nBad = 0;
+                Strip[] strips = model.getStrips();
+                for(int i = 0; i < archive.getNStrips(); i++) {
+                    if(!Arrays.equals(Strip.decodeCounts(strips[i].getData()),
+                        archive.readStrip(i))) {
+                        nBad++;
+                    }
+                }
+                System.out.println(nBad == 0 ? "Verified"
+                    : ("Strips that differ: " + nBad));
+            } finally {
+                archive.close();
+            }
+        } catch(IOException ex) {
+            ex.printStackTrace();
+        }
+    }
+
+}
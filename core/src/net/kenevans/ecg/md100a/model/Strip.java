@@ -3,10 +3,10 @@ package net.kenevans.ecg.md100a.model;
 import java.io.ByteArrayInputStream;
 import java.io.EOFException;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 
-import net.kenevans.core.utils.Utils;
 import net.kenevans.ecg.md100a.utils.MathUtils;
 
 /*
@@ -35,8 +35,26 @@ public class Strip implements IConstants
     private String heartRate;
 
     private byte[] data;
-    private double[] vals;
-    private int[] peakIndices;
+    /** The position of the strip in the file it came from or -1. */
+    private long fileOffset = -1;
+    /**
+     * The decoded values and peaks, set the first time they are needed. They
+     * are volatile, since a Strip is used by several threads at once, so the
+     * contents of the arrays are seen. Decoding twice is harmless.
+     */
+    private volatile double[] vals;
+    private volatile int[] peakIndices;
+
+    /**
+     * Strip constructor for a strip at the given position in a file.
+     * 
+     * @param bytes The bytes comprising this strip.
+     * @param fileOffset The position of the strip in the file.
+     */
+    Strip(byte[] bytes, long fileOffset) {
+        this(bytes);
+        this.fileOffset = fileOffset;
+    }
 
     /**
      * Strip constructor.
@@ -44,79 +62,25 @@ public class Strip implements IConstants
      * @param bytes The bytes comprising this strip.
      */
     Strip(byte[] bytes) {
-        int stripLength = bytes.length;
         // Copy it
-        this.data = new byte[stripLength];
-        for(int i = 0; i < stripLength; i++) {
-            this.data[i] = bytes[i];
+        this.data = bytes.clone();
+        if(data.length < StripMetadata.METADATA_LENGTH) {
+            Diagnostics.errMsg("EOF getting strip" + LS + "Data length="
+                + data.length + LS + "dataStart=" + STRIP_START);
+            return;
         }
-        ByteArrayInputStream bais = new ByteArrayInputStream(bytes);
-        LittleEndianDataInputStream dis = new LittleEndianDataInputStream(bais);
-        short intVal;
-        int nRead = 0;
-        int skip = -1;
         try {
-            intVal = dis.readShort();
-            nRead += 2;
-
-            intVal = dis.readShort();
-            nRead += 2;
-            year = Integer.toString(intVal);
-
-            intVal = dis.readShort();
-            nRead += 2;
-            month = Integer.toString(intVal);
-
-            intVal = dis.readShort();
-            nRead += 2;
-
-            intVal = dis.readShort();
-            nRead += 2;
-            day = Integer.toString(intVal);
-
-            intVal = dis.readShort();
-            nRead += 2;
-            hour = Integer.toString(intVal);
-
-            intVal = dis.readShort();
-            nRead += 2;
-            min = Integer.toString(intVal);
-
-            intVal = dis.readShort();
-            nRead += 2;
-            sec = Integer.toString(intVal);
-
-            intVal = dis.readShort();
-            nRead += 2;
-
-            intVal = dis.readShort();
-            nRead += 2;
-            diagnostic = Integer.toString(intVal);
-
-            intVal = dis.readShort();
-            nRead += 2;
-            heartRate = Integer.toString(intVal);
-
-            // skip = STRIP_DATA_START - nRead;
-            dis.skip(skip);
-            dis.close();
-        } catch(EOFException ex) {
-            String available = "Unknown";
-            try {
-                // This throws an IOException
-                available = Integer.toString(dis.available());
-            } catch(Exception ex1) {
-                // Do nothing
-            }
-            String msg = "EOF getting strip" + LS + "Data length="
-                + data.length + LS + "nRead=" + nRead + LS + "dataStart="
-                + STRIP_START + LS + "skip=" + skip + LS + "dis.available()="
-                + available;
-            Utils.excMsg(msg, ex);
-        } catch(IOException ex) {
-            Utils.excMsg("I/O Error getting strip", ex);
+            ByteBuffer buffer = LittleEndianCodec.wrap(data);
+            year = Integer.toString(buffer.getShort(2));
+            month = Integer.toString(buffer.getShort(4));
+            day = Integer.toString(buffer.getShort(8));
+            hour = Integer.toString(buffer.getShort(10));
+            min = Integer.toString(buffer.getShort(12));
+            sec = Integer.toString(buffer.getShort(14));
+            diagnostic = Integer.toString(buffer.getShort(18));
+            heartRate = Integer.toString(buffer.getShort(20));
         } catch(Exception ex) {
-            Utils.excMsg("Error getting strip", ex);
+            Diagnostics.excMsg("Error getting strip", ex);
         }
     }
 
@@ -132,64 +96,9 @@ public class Strip implements IConstants
         if(this.vals != null) {
             return this.vals;
         }
-        ByteArrayInputStream bais = new ByteArrayInputStream(data);
-        LittleEndianDataInputStream dis = new LittleEndianDataInputStream(bais);
-        // We want to get nVals bytes starting at the end
-        int nVals = STRIP_N_DATA_VALS;
-        // These should be in sections of 501 bytes;
-        int nSegs = STRIP_N_DATA_SEGMENTS;
-        // Number of bytes to skip to go to the location after 55AA.
-        int skip = STRIP_DATA_START;
-        double[] vals = new double[nVals];
-
-        // DEBUG
-        // System.out.println("getDataAsBytes");
-        // System.out.println("  data.length=" + data.length);
-        // System.out.println("  nVals=" + nVals);
-        // System.out.println("  nSegs=" + nSegs);
-        // System.out.println("  skip=" + skip);
-        // int startOffset = STRIP_START + skip;
-        // System.out.printf("Starting at location : %x" + LS, startOffset);
-
-        // DEBUG Extra Information
-        // printFirstBytes(32);
-
-        int seg = -1;
-        try {
-            dis.skip(skip);
-            for(seg = 0; seg < nSegs; seg++) {
-                boolean res = readSegmentBytes(dis, vals, seg
-                    * SEGMENT_N_DATA_VALS);
-                if(!res) {
-                    Utils.errMsg("Error reading segment " + seg);
-                }
-            }
-            // Subtract 512 so 0 corresponds to 0 mV or 0 mm
-            // Scale to mm
-            for(int i = 0; i < vals.length; i++) {
-                vals[i] -= 512;
-                vals[i] *= mmPerUnit;
-            }
-        } catch(EOFException ex) {
-            String msg = "EOF getting strip at seg=" + seg + LS
-                + "Data length=" + data.length + LS + "nVals=" + nVals + LS
-                + "skip=" + skip;
-            Utils.excMsg(msg, ex);
-            return null;
-        } catch(IOException ex) {
-            Utils.excMsg("I/O Error getting strip at seg=" + seg, ex);
-            return null;
-        } catch(Exception ex) {
-            Utils.excMsg("Error getting strip at seg=" + seg, ex);
+        double[] vals = decodeData(data);
+        if(vals == null) {
             return null;
-        } finally {
-            if(dis != null) {
-                try {
-                    dis.close();
-                } catch(IOException ex) {
-                    // Do nothing
-                }
-            }
         }
         // Only set the internal values if we got to here.
         this.vals = vals;
@@ -240,6 +149,118 @@ public class Strip implements IConstants
         return bytes;
     }
 
+    /**
+     * Decodes the waveform in the given strip bytes. The values are converted
+     * to mm, with 0 corresponding to 0 mV.
+     * 
+     * @param data The bytes of the strip.
+     * @return The values or null on error.
+     */
+    public static double[] decodeData(byte[] data) {
+        // We want to get nVals values
+        int nVals = STRIP_N_DATA_VALS;
+        // These should be in sections of 501 bytes;
+        int nSegs = STRIP_N_DATA_SEGMENTS;
+        double[] vals = new double[nVals];
+
+        int seg = -1;
+        try {
+            for(seg = 0; seg < nSegs; seg++) {
+                readSegmentBytes(data, STRIP_DATA_START + seg * SEGMENT_LENGTH,
+                    vals, seg * SEGMENT_N_DATA_VALS);
+            }
+            // Subtract 512 so 0 corresponds to 0 mV or 0 mm
+            // Scale to mm
+            for(int i = 0; i < vals.length; i++) {
+                vals[i] -= 512;
+                vals[i] *= mmPerUnit;
+            }
+        } catch(Exception ex) {
+            Diagnostics.excMsg("Error getting strip at seg=" + seg, ex);
+            return null;
+        }
+        return vals;
+    }
+
+    /**
+     * Decodes the waveform in the given strip bytes to the unscaled counts
+     * from the device. The value in mm is (count - 512) * mmPerUnit.
+     * 
+     * @param data The bytes of the strip.
+     * @return The counts.
+     * @throws EOFException If there are fewer than STRIP_LENGTH bytes.
+     */
+    public static int[] decodeCounts(byte[] data) throws EOFException {
+        if(data.length < STRIP_LENGTH) {
+            throw new EOFException("Strip has " + data.length
+                + " bytes, should have " + STRIP_LENGTH);
+        }
+        int[] counts = new int[STRIP_N_DATA_VALS];
+        int index = STRIP_DATA_START;
+        int j = 0;
+        int bval;
+        for(int seg = 0; seg < STRIP_N_DATA_SEGMENTS; seg++) {
+            counts[j++] = (data[index] & 0xff) << 8 | data[index + 1] & 0xff;
+            for(int i = 2; i < SEGMENT_LENGTH; i++) {
+                bval = data[index + i] & 0xff;
+                if(bval < 128) {
+                    counts[j] = counts[j - 1] + bval;
+                } else {
+                    counts[j] = counts[j - 1] - bval + 128;
+                }
+                j++;
+            }
+            index += SEGMENT_LENGTH;
+        }
+        return counts;
+    }
+
+    /**
+     * Decodes one segment of the waveform directly from the strip bytes. If
+     * the bytes end before the segment does, the remaining values are NaN.
+     * 
+     * @param data The bytes of the strip.
+     * @param start The index in data of the start of the segment.
+     * @param vals The array to fill in.
+     * @param startIndex The index in vals for the first value of the segment.
+     */
+    public static void readSegmentBytes(byte[] data, int start, double[] vals,
+        int startIndex) {
+        int j = startIndex;
+        int bval = 0;
+        for(int i = 0; i < SEGMENT_LENGTH; i++) {
+            // Fill the data with NaN if there are more data points than bytes
+            if(start + i >= data.length) {
+                if(i != 0) {
+                    vals[j++] = Double.NaN;
+                }
+                continue;
+            }
+            bval = data[start + i] & 0xff;
+            if(i == 0) {
+                // Same as bval << 8
+                vals[j] = bval * 256;
+            } else if(i == 1) {
+                vals[j] += bval;
+            } else {
+                if(bval < 128) {
+                    vals[j] = vals[j - 1] + bval;
+                } else {
+                    vals[j] = vals[j - 1] - bval + 128;
+                }
+            }
+            if(i != 0) {
+                j++;
+            }
+        }
+    }
+
+    /**
+     * Original version that reads a segment from a stream.
+     * 
+     * @deprecated Use readSegmentBytes(byte[], int, double[], int).
+     */
+    @Deprecated
     public boolean readSegmentBytes(LittleEndianDataInputStream dis,
         double[] vals, int startIndex) throws IOException {
         int j = startIndex;
@@ -665,8 +686,8 @@ public class Strip implements IConstants
             dis.skip(skip);
             for(i = 0,j = 0; j < nVals; i++,j++) {
                 if(skip + i >= data.length) {
-                    Utils.errMsg("Trying to read past the end of the data" + LS
-                        + "i=" + i + LS + "j=" + j + LS + "i + skip="
+                    Diagnostics.errMsg("Trying to read past the end of the data"
+                        + LS + "i=" + i + LS + "j=" + j + LS + "i + skip="
                         + (i + skip) + LS + "data.length=" + data.length + LS
                         + "nVals=" + nVals + LS + "skip=" + skip);
                     break;
@@ -739,13 +760,14 @@ public class Strip implements IConstants
             String msg = "EOF getting strip at i=" + i + " j=" + j + LS
                 + "Data length=" + data.length + LS + "nVals=" + nVals + LS
                 + "skip=" + skip;
-            Utils.excMsg(msg, ex);
+            Diagnostics.excMsg(msg, ex);
             return null;
         } catch(IOException ex) {
-            Utils.excMsg("I/O Error getting strip at i=" + i + " j=" + j, ex);
+            Diagnostics.excMsg("I/O Error getting strip at i=" + i + " j=" + j,
+                ex);
             return null;
         } catch(Exception ex) {
-            Utils.excMsg("Error getting strip at i=" + i + " j=" + j, ex);
+            Diagnostics.excMsg("Error getting strip at i=" + i + " j=" + j, ex);
             return null;
         }
         // DEBUG
@@ -835,13 +857,13 @@ public class Strip implements IConstants
             String msg = "EOF getting strip" + LS + "Data length="
                 + data.length + LS + "dataSize=" + dataSize + LS + "skip="
                 + skip;
-            Utils.excMsg(msg, ex);
+            Diagnostics.excMsg(msg, ex);
             return null;
         } catch(IOException ex) {
-            Utils.excMsg("I/O Error getting strip", ex);
+            Diagnostics.excMsg("I/O Error getting strip", ex);
             return null;
         } catch(Exception ex) {
-            Utils.excMsg("Error getting strip", ex);
+            Diagnostics.excMsg("Error getting strip", ex);
             return null;
         }
         // DEBUG
@@ -932,13 +954,13 @@ public class Strip implements IConstants
             String msg = "EOF getting strip" + LS + "Data length="
                 + data.length + LS + "dataSize=" + dataSize + LS + "dataStart="
                 + "skip=" + skip;
-            Utils.excMsg(msg, ex);
+            Diagnostics.excMsg(msg, ex);
             return null;
         } catch(IOException ex) {
-            Utils.excMsg("I/O Error getting strip", ex);
+            Diagnostics.excMsg("I/O Error getting strip", ex);
             return null;
         } catch(Exception ex) {
-            Utils.excMsg("Error getting strip", ex);
+            Diagnostics.excMsg("Error getting strip", ex);
             return null;
         }
         return vals;
@@ -1035,7 +1057,7 @@ public class Strip implements IConstants
             dis.skip(skip);
             for(i = 0,j = 0; j < nVals; i++,j++) {
                 if(skip + i >= data.length) {
-                    Utils.errMsg("printControlPoints: "
+                    Diagnostics.errMsg("printControlPoints: "
                         + "Trying to read past the end of the data" + LS + "i="
                         + i + LS + "j=" + j + LS + "i + skip=" + (i + skip)
                         + LS + "data.length=" + data.length + LS + "nVals="
@@ -1063,13 +1085,13 @@ public class Strip implements IConstants
             String msg = "EOF getting control points at i=" + i + " j=" + j
                 + LS + "Data length=" + data.length + LS + "nVals=" + nVals
                 + LS + "skip=" + skip;
-            Utils.excMsg(msg, ex);
+            Diagnostics.excMsg(msg, ex);
         } catch(IOException ex) {
-            Utils.excMsg("I/O Error getting control points at i=" + i + " j="
-                + j, ex);
+            Diagnostics.excMsg("I/O Error getting control points at i=" + i
+                + " j=" + j, ex);
         } catch(Exception ex) {
-            Utils.excMsg("Error getting control points at i=" + i + " j=" + j,
-                ex);
+            Diagnostics.excMsg("Error getting control points at i=" + i
+                + " j=" + j, ex);
         }
 
     }
@@ -1104,11 +1126,11 @@ public class Strip implements IConstants
             String msg = "EOF printing first shorts " + LS + "Data length="
                 + data.length + LS + "nRead=" + nRead + LS + "dataStart="
                 + STRIP_START + LS + "dis.available()=" + available;
-            Utils.excMsg(msg, ex);
+            Diagnostics.excMsg(msg, ex);
         } catch(IOException ex) {
-            Utils.excMsg("I/O printing first shorts", ex);
+            Diagnostics.excMsg("I/O printing first shorts", ex);
         } catch(Exception ex) {
-            Utils.excMsg("Error printing first shorts", ex);
+            Diagnostics.excMsg("Error printing first shorts", ex);
         }
     }
 
@@ -1142,11 +1164,11 @@ public class Strip implements IConstants
             String msg = "EOF printing first bytes " + LS + "Data length="
                 + data.length + LS + "nRead=" + nRead + LS + "dataStart="
                 + STRIP_START + LS + "dis.available()=" + available;
-            Utils.excMsg(msg, ex);
+            Diagnostics.excMsg(msg, ex);
         } catch(IOException ex) {
-            Utils.excMsg("I/O printing first bytes", ex);
+            Diagnostics.excMsg("I/O printing first bytes", ex);
         } catch(Exception ex) {
-            Utils.excMsg("Error printing first bytes", ex);
+            Diagnostics.excMsg("Error printing first bytes", ex);
         }
     }
 
@@ -1232,6 +1254,15 @@ public class Strip implements IConstants
         return data;
     }
 
+    /**
+     * @return The position of the strip in the file it was read from or -1
+     *         if it did not come from a file. In a damaged file this is not
+     *         necessarily where the header says the strip should be.
+     */
+    public long getFileOffset() {
+        return fileOffset;
+    }
+
     /**
      * @return The value of hour.
      */
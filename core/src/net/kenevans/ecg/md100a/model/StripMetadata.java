@@ -0,0 +1,195 @@
+package net.kenevans.ecg.md100a.model;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.TimeZone;
+
+/**
+ * StripMetadata holds the information in the header of a strip, without the
+ * waveform. It can be read for all the strips in a file without reading the
+ * waveforms.
+ */
+public class StripMetadata implements IConstants
+{
+    /** The number of bytes at the start of a strip that hold the metadata. */
+    public static final int METADATA_LENGTH = 22;
+
+    /** The index of the strip in its file. */
+    private int index;
+    private int year;
+    private int month;
+    private int day;
+    private int hour;
+    private int min;
+    private int sec;
+    private int diagnostic;
+    private int heartRate;
+    /** The time in ms since the epoch, found once since it is often used. */
+    private long time;
+
+    /**
+     * StripMetadata constructor.
+     * 
+     * @param index The index of the strip in its file.
+     * @param bytes Array containing the start of the strip.
+     * @param start The index in the array of the start of the strip.
+     */
+    public StripMetadata(int index, byte[] bytes, int start) {
+        this.index = index;
+        // The layout is the same as used in the Strip constructor
+        ByteBuffer buffer = LittleEndianCodec.wrap(bytes);
+        year = buffer.getShort(start + 2);
+        month = buffer.getShort(start + 4);
+        day = buffer.getShort(start + 8);
+        hour = buffer.getShort(start + 10);
+        min = buffer.getShort(start + 12);
+        sec = buffer.getShort(start + 14);
+        diagnostic = buffer.getShort(start + 18);
+        heartRate = buffer.getShort(start + 20);
+        Calendar cal = new GregorianCalendar(TimeZone.getTimeZone("UTC"));
+        cal.clear();
+        cal.set(year, month - 1, day, hour, min, sec);
+        time = cal.getTimeInMillis();
+    }
+
+    /**
+     * Reads the metadata for all the strips in the given file, without
+     * reading the waveforms.
+     * 
+     * @param file The file to read.
+     * @return Array of the metadata in the order of the strips.
+     * @throws IOException
+     */
+    public static StripMetadata[] read(File file) throws IOException {
+        FileInputStream fis = new FileInputStream(file);
+        try {
+            return read(fis.getChannel(), file.getPath());
+        } finally {
+            fis.close();
+        }
+    }
+
+    /**
+     * Reads the metadata for all the strips in the file open on the given
+     * channel, without reading the waveforms.
+     * 
+     * @param channel The channel to use. Its position is not changed.
+     * @param name The name of the file to use in messages.
+     * @return Array of the metadata in the order of the strips.
+     * @throws IOException
+     */
+    public static StripMetadata[] read(FileChannel channel, String name)
+        throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(METADATA_LENGTH);
+        byte[] bytes = buffer.array();
+        EcgFileWriter.readFully(channel, buffer, Header.Field.N_STRIPS
+            .getOffset());
+        int nStrips = LittleEndianCodec.getInt(bytes, 0);
+        if(nStrips < 0
+            || channel.size() < HEADER_LENGTH + (long)nStrips * STRIP_LENGTH) {
+            throw new IOException("The header specifies " + nStrips
+                + " strips, but the file is too short:" + LS + name);
+        }
+        StripMetadata[] metadata = new StripMetadata[nStrips];
+        for(int i = 0; i < nStrips; i++) {
+            buffer.clear();
+            EcgFileWriter.readFully(channel, buffer, HEADER_LENGTH + (long)i
+                * STRIP_LENGTH);
+            metadata[i] = new StripMetadata(i, bytes, 0);
+        }
+        return metadata;
+    }
+
+    /**
+     * Gets the time of the strip as milliseconds since the epoch. The device
+     * does not record a time zone, so the values are treated as UTC. They are
+     * suitable for ordering and for differences, but not as absolute times.
+     * 
+     * @return
+     */
+    public long getTime() {
+        return time;
+    }
+
+    /**
+     * Determines if this metadata has the same time, diagnostic, and heart rate
+     * as the given one.
+     * 
+     * @param other
+     * @return
+     */
+    public boolean isSameStrip(StripMetadata other) {
+        return year == other.year && month == other.month && day == other.day
+            && hour == other.hour && min == other.min && sec == other.sec
+            && diagnostic == other.diagnostic && heartRate == other.heartRate;
+    }
+
+    /**
+     * @return The value of index.
+     */
+    public int getIndex() {
+        return index;
+    }
+
+    /**
+     * @return The value of year.
+     */
+    public int getYear() {
+        return year;
+    }
+
+    /**
+     * @return The value of month.
+     */
+    public int getMonth() {
+        return month;
+    }
+
+    /**
+     * @return The value of day.
+     */
+    public int getDay() {
+        return day;
+    }
+
+    /**
+     * @return The value of hour.
+     */
+    public int getHour() {
+        return hour;
+    }
+
+    /**
+     * @return The value of min.
+     */
+    public int getMin() {
+        return min;
+    }
+
+    /**
+     * @return The value of sec.
+     */
+    public int getSec() {
+        return sec;
+    }
+
+    /**
+     * @return The value of diagnostic.
+     */
+    public int getDiagnostic() {
+        return diagnostic;
+    }
+
+    /**
+     * @return The value of heartRate.
+     */
+    public int getHeartRate() {
+        return heartRate;
+    }
+
+}
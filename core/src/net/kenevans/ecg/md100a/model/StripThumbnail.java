@@ -0,0 +1,98 @@
+package net.kenevans.ecg.md100a.model;
+
+import java.io.EOFException;
+
+/**
+ * StripThumbnail is a small summary of a strip for showing it in a list: the
+ * minimum and maximum counts in each of a fixed number of columns, which can
+ * be drawn as a sparkline, and the mean heart rate found from the R peaks.
+ * The counts are the unscaled values from the device. The value in mm is
+ * (count - 512) * mmPerUnit.
+ */
+public class StripThumbnail implements IConstants
+{
+    private final short[] mins;
+    private final short[] maxs;
+    /** The mean heart rate in BPM or NaN if there are too few peaks. */
+    private final float bpm;
+
+    /**
+     * StripThumbnail constructor.
+     * 
+     * @param mins The minimum count in each column.
+     * @param maxs The maximum count in each column.
+     * @param bpm The mean heart rate in BPM or NaN if it is not known.
+     */
+    public StripThumbnail(short[] mins, short[] maxs, float bpm) {
+        this.mins = mins;
+        this.maxs = maxs;
+        this.bpm = bpm;
+    }
+
+    /**
+     * Computes the thumbnail for a strip. The strip is decoded without
+     * keeping the values in the Strip, so making thumbnails for many strips
+     * does not use much memory.
+     * 
+     * @param strip
+     * @param nColumns The number of columns.
+     * @return
+     * @throws EOFException If the strip is too short.
+     */
+    public static StripThumbnail compute(Strip strip, int nColumns)
+        throws EOFException {
+        int[] counts = Strip.decodeCounts(strip.getData());
+        int nVals = counts.length;
+        short[] mins = new short[nColumns];
+        short[] maxs = new short[nColumns];
+        double[] vals = new double[nVals];
+        int start, end, min, max;
+        for(int col = 0; col < nColumns; col++) {
+            start = (int)((long)col * nVals / nColumns);
+            end = (int)((long)(col + 1) * nVals / nColumns);
+            min = Integer.MAX_VALUE;
+            max = Integer.MIN_VALUE;
+            for(int i = start; i < end; i++) {
+                min = Math.min(min, counts[i]);
+                max = Math.max(max, counts[i]);
+                // The same values as Strip.decodeData
+                vals[i] = (counts[i] - 512) * mmPerUnit;
+            }
+            mins[col] = (short)min;
+            maxs[col] = (short)max;
+        }
+        BeatStatistics stats = BeatStatistics.compute(vals);
+        float bpm = stats.hasIntervals() ? (float)stats.getMeanBpm()
+            : Float.NaN;
+        return new StripThumbnail(mins, maxs, bpm);
+    }
+
+    /**
+     * @return The number of columns.
+     */
+    public int getNColumns() {
+        return mins.length;
+    }
+
+    /**
+     * @return The minimum counts. They should not be changed.
+     */
+    public short[] getMins() {
+        return mins;
+    }
+
+    /**
+     * @return The maximum counts. They should not be changed.
+     */
+    public short[] getMaxs() {
+        return maxs;
+    }
+
+    /**
+     * @return The mean heart rate in BPM or NaN if there are too few peaks.
+     */
+    public float getBpm() {
+        return bpm;
+    }
+
+}
@@ -0,0 +1,147 @@
+package net.kenevans.ecg.md100a.model;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * ThumbnailCache keeps the StripThumbnails for the strips of a .cEcg file in
+ * a file next to it, so they only have to be computed once. Each strip has a
+ * slot at a position given by its index, so thumbnails can be read and
+ * written in any order as they are needed, and by several threads at once.
+ * The cache is discarded if the .cEcg file has changed. The layout, with
+ * little-endian values, is:
+ * 
+ * <pre>
+ * "ECGT", version (int), nColumns (int), file length (long),
+ * file last modified (long), unused (int)
+ * for each strip: mins (short[nColumns]), maxs (short[nColumns]),
+ *   bpm (float), 1 if the slot has been written (byte)
+ * </pre>
+ * 
+ * The flag is last, so a slot that was only partly written is not used.
+ */
+public class ThumbnailCache implements IConstants
+{
+    /** The extension added to the file name to get the cache file name. */
+    public static final String THUMBNAIL_EXT = ".thumbs";
+    private static final byte[] MAGIC = {'E', 'C', 'G', 'T'};
+    private static final int VERSION = 1;
+    /** The length of the header of a cache file. */
+    private static final int PREFIX_LENGTH = 32;
+
+    private RandomAccessFile raf;
+    private FileChannel channel;
+    private int nColumns;
+    private int slotLength;
+
+    /**
+     * ThumbnailCache constructor. Opens the cache file for the given .cEcg
+     * file, creating it or emptying it if it does not match.
+     * 
+     * @param ecgFile The .cEcg file.
+     * @param nColumns The number of columns in the thumbnails.
+     * @throws IOException If the cache file cannot be opened, for example
+     *             if the directory is read only.
+     */
+    public ThumbnailCache(File ecgFile, int nColumns) throws IOException {
+        this.nColumns = nColumns;
+        slotLength = 4 * nColumns + 5;
+        File cacheFile = new File(ecgFile.getPath() + THUMBNAIL_EXT);
+        ByteBuffer prefix = LittleEndianCodec.wrap(new byte[PREFIX_LENGTH]);
+        prefix.put(MAGIC);
+        prefix.putInt(VERSION);
+        prefix.putInt(nColumns);
+        prefix.putLong(ecgFile.length());
+        prefix.putLong(ecgFile.lastModified());
+        raf = new RandomAccessFile(cacheFile, "rw");
+        try {
+            channel = raf.getChannel();
+            boolean matches = false;
+            if(channel.size() >= PREFIX_LENGTH) {
+                ByteBuffer existing = ByteBuffer.allocate(PREFIX_LENGTH);
+                EcgFileWriter.readFully(channel, existing, 0);
+                matches = Arrays.equals(existing.array(), prefix.array());
+            }
+            if(!matches) {
+                channel.truncate(0);
+                prefix.rewind();
+                EcgFileWriter.writeFully(channel, prefix, 0);
+            }
+        } catch(IOException ex) {
+            raf.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * Reads the thumbnail for a strip.
+     * 
+     * @param index The index of the strip in the file.
+     * @return The thumbnail or null if it has not been written.
+     * @throws IOException
+     */
+    public StripThumbnail read(int index) throws IOException {
+        long position = getPosition(index);
+        if(channel.size() < position + slotLength) {
+            return null;
+        }
+        ByteBuffer buffer = LittleEndianCodec.wrap(new byte[slotLength]);
+        EcgFileWriter.readFully(channel, buffer, position);
+        if(buffer.get(slotLength - 1) != 1) {
+            return null;
+        }
+        buffer.rewind();
+        short[] mins = new short[nColumns];
+        short[] maxs = new short[nColumns];
+        buffer.asShortBuffer().get(mins);
+        buffer.position(2 * nColumns);
+        buffer.asShortBuffer().get(maxs);
+        float bpm = buffer.getFloat(4 * nColumns);
+        return new StripThumbnail(mins, maxs, bpm);
+    }
+
+    /**
+     * Writes the thumbnail for a strip.
+     * 
+     * @param index The index of the strip in the file.
+     * @param thumbnail The thumbnail. It should have nColumns columns.
+     * @throws IOException
+     */
+    public void write(int index, StripThumbnail thumbnail) throws IOException {
+        if(thumbnail.getNColumns() != nColumns) {
+            throw new IOException("The thumbnail has "
+                + thumbnail.getNColumns() + " columns, should have "
+                + nColumns);
+        }
+        ByteBuffer buffer = LittleEndianCodec.wrap(new byte[slotLength]);
+        buffer.asShortBuffer().put(thumbnail.getMins());
+        buffer.position(2 * nColumns);
+        buffer.asShortBuffer().put(thumbnail.getMaxs());
+        buffer.putFloat(4 * nColumns, thumbnail.getBpm());
+        buffer.put(slotLength - 1, (byte)1);
+        buffer.rewind();
+        EcgFileWriter.writeFully(channel, buffer, getPosition(index));
+    }
+
+    /**
+     * Closes the cache file.
+     * 
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        raf.close();
+    }
+
+    /**
+     * @param index
+     * @return The position of the slot for a strip.
+     */
+    private long getPosition(int index) {
+        return PREFIX_LENGTH + (long)index * slotLength;
+    }
+
+}
@@ -0,0 +1,545 @@
+package net.kenevans.ecg.md100a.model;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * TimelinePyramid lays out all the strips of a file end to end in time order
+ * and holds a multi-resolution pyramid of the minimum and maximum counts, so
+ * any part of the timeline can be drawn at any zoom by reading about one
+ * bucket per column.<br>
+ * <br>
+ * The timeline is measured in samples. A strip that starts when the previous
+ * one ends is joined to it. Otherwise GAP_SAMPLES are left between them, and
+ * the strip is marked as following a gap, since the actual gaps may be hours
+ * long. Level 0 of the pyramid has buckets of BASE_BUCKET samples, and each
+ * level has buckets LEVEL_FACTOR times larger than the one below. Finer
+ * requests are answered from the decoded strips, a few of which are cached.<br>
+ * <br>
+ * The pyramid is computed in parallel and can be cached in a file next to the
+ * .cEcg file. The layout, with little-endian values, is:
+ * 
+ * <pre>
+ * "ECGP", version (int), nStrips (int), file length (long),
+ * file last modified (long), BASE_BUCKET (int), LEVEL_FACTOR (int),
+ * N_LEVELS (int)
+ * for each level: the minimums and then the maximums for all the strips in
+ *   timeline order (short)
+ * </pre>
+ */
+public class TimelinePyramid implements IConstants
+{
+    /** The extension added to the file name to get the pyramid file name. */
+    public static final String PYRAMID_EXT = ".pyramid";
+    private static final byte[] MAGIC = {'E', 'C', 'G', 'P'};
+    private static final int VERSION = 1;
+    /** The length of the header of a pyramid file. */
+    private static final int PREFIX_LENGTH = 40;
+    /** The number of samples in a bucket at level 0. */
+    public static final int BASE_BUCKET = 10;
+    /** The ratio of the bucket sizes of successive levels. */
+    public static final int LEVEL_FACTOR = 4;
+    /** The number of levels. The top level has one bucket per strip. */
+    public static final int N_LEVELS = 6;
+    /** The number of samples left between strips that are not contiguous. */
+    public static final int GAP_SAMPLES = SAMPLE_RATE;
+    /** How far in ms a strip can start from the end of the previous one. */
+    private static final long CONTIGUOUS_TOLERANCE = 1000;
+    /** The number of strips per task when computing the pyramid. */
+    private static final int STRIPS_PER_TASK = 64;
+    /** The number of decoded strips kept for fine requests. */
+    private static final int N_DECODED_STRIPS = 16;
+
+    /**
+     * ProgressListener is notified as the pyramid is computed and can cancel
+     * the computation. A cancelled computation throws an
+     * InterruptedIOException.
+     */
+    public static interface ProgressListener
+    {
+        /**
+         * Called after strips have been done, from the thread that called
+         * create.
+         * 
+         * @param nDone The number of strips done so far.
+         * @param nTotal The number of strips to do.
+         * @return Whether to continue. Returning false cancels the
+         *         computation.
+         */
+        boolean stripsDone(int nDone, int nTotal);
+    }
+
+    /** The strips in timeline order. */
+    private Strip[] strips;
+    /** The indices of the strips in the file, in timeline order. */
+    private int[] stripIndices;
+    /** The times of the strips in ms, in timeline order. */
+    private long[] times;
+    /** The positions of the strips in the timeline in samples. */
+    private long[] starts;
+    /** Whether each strip follows a gap. */
+    private boolean[] gaps;
+    private long length;
+    /** The bucket sizes in samples for each level. */
+    private int[] bucketSizes = new int[N_LEVELS];
+    /** The number of buckets per strip for each level. */
+    private int[] nBuckets = new int[N_LEVELS];
+    /** The minimum counts for each level, nBuckets per strip. */
+    private short[][] mins = new short[N_LEVELS][];
+    /** The maximum counts for each level, nBuckets per strip. */
+    private short[][] maxs = new short[N_LEVELS][];
+    /** The decoded counts for recently used strips, least recent first. */
+    private Map<Integer, int[]> decoded = new LinkedHashMap<Integer, int[]>(
+        N_DECODED_STRIPS, .75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, int[]> eldest) {
+            return size() > N_DECODED_STRIPS;
+        }
+    };
+
+    /**
+     * TimelinePyramid constructor. Lays out the strips but does not compute
+     * the pyramid.
+     * 
+     * @param fileStrips The strips in file order.
+     */
+    private TimelinePyramid(Strip[] fileStrips) {
+        int nStrips = fileStrips.length;
+        StripMetadata[] metadata = new StripMetadata[nStrips];
+        for(int i = 0; i < nStrips; i++) {
+            metadata[i] = new StripMetadata(i, fileStrips[i].getData(), 0);
+        }
+        Arrays.sort(metadata, EcgFileMerger.TIME_COMPARATOR);
+        strips = new Strip[nStrips];
+        stripIndices = new int[nStrips];
+        times = new long[nStrips];
+        starts = new long[nStrips];
+        gaps = new boolean[nStrips];
+        long stripMs = STRIP_SAMPLE_TIME * 1000L;
+        long position = 0;
+        for(int i = 0; i < nStrips; i++) {
+            stripIndices[i] = metadata[i].getIndex();
+            strips[i] = fileStrips[stripIndices[i]];
+            times[i] = metadata[i].getTime();
+            if(i > 0
+                && Math.abs(times[i] - times[i - 1] - stripMs)
+                    > CONTIGUOUS_TOLERANCE) {
+                gaps[i] = true;
+                position += GAP_SAMPLES;
+            }
+            starts[i] = position;
+            position += STRIP_N_DATA_VALS;
+        }
+        length = position;
+
+        int size = BASE_BUCKET;
+        for(int level = 0; level < N_LEVELS; level++) {
+            bucketSizes[level] = size;
+            nBuckets[level] = (STRIP_N_DATA_VALS + size - 1) / size;
+            mins[level] = new short[nStrips * nBuckets[level]];
+            maxs[level] = new short[nStrips * nBuckets[level]];
+            size *= LEVEL_FACTOR;
+        }
+    }
+
+    /**
+     * Gets the pyramid for the given strips. If ecgFile is not null, the
+     * pyramid is read from the pyramid file next to it if that is up to
+     * date. Otherwise it is computed using a pool of nThreads threads and
+     * then written to the pyramid file. Failing to write the pyramid file is
+     * not an error, since it is only a cache.
+     * 
+     * @param strips The strips in file order.
+     * @param ecgFile The file the strips came from or null.
+     * @param nThreads The number of threads to use.
+     * @param listener A listener to be notified of progress or null.
+     * @return
+     * @throws IOException
+     */
+    public static TimelinePyramid create(Strip[] strips, File ecgFile,
+        int nThreads, ProgressListener listener) throws IOException {
+        TimelinePyramid pyramid = new TimelinePyramid(strips);
+        File pyramidFile = null;
+        if(ecgFile != null) {
+            pyramidFile = new File(ecgFile.getPath() + PYRAMID_EXT);
+            if(pyramid.read(pyramidFile, ecgFile)) {
+                return pyramid;
+            }
+        }
+        pyramid.compute(nThreads, listener);
+        if(pyramidFile != null) {
+            try {
+                pyramid.write(pyramidFile, ecgFile);
+            } catch(IOException ex) {
+                // Ignore it, and compute the pyramid again next time
+                pyramidFile.delete();
+            }
+        }
+        return pyramid;
+    }
+
+    /**
+     * Computes the pyramid with tasks of STRIPS_PER_TASK strips.
+     * 
+     * @param nThreads
+     * @param listener
+     * @throws IOException
+     */
+    private void compute(int nThreads, ProgressListener listener)
+        throws IOException {
+        final int nStrips = strips.length;
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1,
+            nThreads));
+        try {
+            LinkedList<Future<Void>> futures = new LinkedList<Future<Void>>();
+            for(int i = 0; i < nStrips; i += STRIPS_PER_TASK) {
+                final int first = i;
+                final int last = Math.min(i + STRIPS_PER_TASK, nStrips);
+                futures.add(pool.submit(new Callable<Void>() {
+                    public Void call() throws Exception {
+                        for(int n = first; n < last; n++) {
+                            computeStrip(n);
+                        }
+                        return null;
+                    }
+                }));
+            }
+            int nDone = 0;
+            while(!futures.isEmpty()) {
+                EcgFileWriter.waitFor(futures.removeFirst());
+                nDone = Math.min(nDone + STRIPS_PER_TASK, nStrips);
+                if(listener != null && !listener.stripsDone(nDone, nStrips)) {
+                    throw new InterruptedIOException(
+                        "Computing the timeline was cancelled");
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Computes all the levels for the strip at the given position in the
+     * timeline.
+     * 
+     * @param n
+     * @throws EOFException
+     */
+    private void computeStrip(int n) throws EOFException {
+        int[] counts = Strip.decodeCounts(strips[n].getData());
+        // Level 0 from the counts
+        int size = bucketSizes[0];
+        int offset = n * nBuckets[0];
+        for(int b = 0; b < nBuckets[0]; b++) {
+            int first = b * size;
+            int last = Math.min(first + size, counts.length);
+            int min = counts[first], max = counts[first];
+            for(int i = first + 1; i < last; i++) {
+                if(counts[i] < min) {
+                    min = counts[i];
+                } else if(counts[i] > max) {
+                    max = counts[i];
+                }
+            }
+            mins[0][offset + b] = (short)min;
+            maxs[0][offset + b] = (short)max;
+        }
+        // Each level from the one below
+        for(int level = 1; level < N_LEVELS; level++) {
+            int below = n * nBuckets[level - 1];
+            int belowEnd = below + nBuckets[level - 1];
+            offset = n * nBuckets[level];
+            for(int b = 0; b < nBuckets[level]; b++) {
+                int first = below + b * LEVEL_FACTOR;
+                int last = Math.min(first + LEVEL_FACTOR, belowEnd);
+                short min = mins[level - 1][first];
+                short max = maxs[level - 1][first];
+                for(int i = first + 1; i < last; i++) {
+                    if(mins[level - 1][i] < min) {
+                        min = mins[level - 1][i];
+                    }
+                    if(maxs[level - 1][i] > max) {
+                        max = maxs[level - 1][i];
+                    }
+                }
+                mins[level][offset + b] = min;
+                maxs[level][offset + b] = max;
+            }
+        }
+    }
+
+    /**
+     * Reads the pyramid from the given file if it exists and matches the
+     * given .cEcg file.
+     * 
+     * @param pyramidFile
+     * @param ecgFile
+     * @return Whether the pyramid was read.
+     */
+    private boolean read(File pyramidFile, File ecgFile) {
+        if(!pyramidFile.exists()) {
+            return false;
+        }
+        try {
+            FileInputStream fis = new FileInputStream(pyramidFile);
+            try {
+                FileChannel channel = fis.getChannel();
+                if(channel.size() != PREFIX_LENGTH + getDataLength()) {
+                    return false;
+                }
+                ByteBuffer buffer = ByteBuffer.allocate((int)channel.size());
+                EcgFileWriter.readFully(channel, buffer, 0);
+                buffer = LittleEndianCodec.littleEndian(buffer);
+                buffer.rewind();
+                byte[] magic = new byte[MAGIC.length];
+                buffer.get(magic);
+                if(!Arrays.equals(MAGIC, magic) || buffer.getInt() != VERSION
+                    || buffer.getInt() != strips.length
+                    || buffer.getLong() != ecgFile.length()
+                    || buffer.getLong() != ecgFile.lastModified()
+                    || buffer.getInt() != BASE_BUCKET
+                    || buffer.getInt() != LEVEL_FACTOR
+                    || buffer.getInt() != N_LEVELS) {
+                    return false;
+                }
+                for(int level = 0; level < N_LEVELS; level++) {
+                    buffer.asShortBuffer().get(mins[level]);
+                    buffer.position(buffer.position() + 2
+                        * mins[level].length);
+                    buffer.asShortBuffer().get(maxs[level]);
+                    buffer.position(buffer.position() + 2
+                        * maxs[level].length);
+                }
+                return true;
+            } finally {
+                fis.close();
+            }
+        } catch(IOException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * Writes the pyramid to the given file.
+     * 
+     * @param pyramidFile
+     * @param ecgFile The .cEcg file the pyramid is for.
+     * @throws IOException
+     */
+    private void write(File pyramidFile, File ecgFile) throws IOException {
+        ByteBuffer buffer = LittleEndianCodec.wrap(new byte[PREFIX_LENGTH
+            + (int)getDataLength()]);
+        buffer.put(MAGIC);
+        buffer.putInt(VERSION);
+        buffer.putInt(strips.length);
+        buffer.putLong(ecgFile.length());
+        buffer.putLong(ecgFile.lastModified());
+        buffer.putInt(BASE_BUCKET);
+        buffer.putInt(LEVEL_FACTOR);
+        buffer.putInt(N_LEVELS);
+        for(int level = 0; level < N_LEVELS; level++) {
+            buffer.asShortBuffer().put(mins[level]);
+            buffer.position(buffer.position() + 2 * mins[level].length);
+            buffer.asShortBuffer().put(maxs[level]);
+            buffer.position(buffer.position() + 2 * maxs[level].length);
+        }
+        buffer.rewind();
+        FileOutputStream fos = new FileOutputStream(pyramidFile);
+        try {
+            EcgFileWriter.writeFully(fos.getChannel(), buffer, 0);
+        } finally {
+            fos.close();
+        }
+    }
+
+    /**
+     * @return The length in bytes of the levels in a pyramid file.
+     */
+    private long getDataLength() {
+        long length = 0;
+        for(int level = 0; level < N_LEVELS; level++) {
+            length += 4L * mins[level].length;
+        }
+        return length;
+    }
+
+    /**
+     * Gets the decoded counts for the strip at the given position in the
+     * timeline, using the cache.
+     * 
+     * @param n
+     * @return
+     * @throws EOFException
+     */
+    private synchronized int[] getCounts(int n) throws EOFException {
+        int[] counts = decoded.get(n);
+        if(counts == null) {
+            counts = Strip.decodeCounts(strips[n].getData());
+            decoded.put(n, counts);
+        }
+        return counts;
+    }
+
+    /**
+     * Finds the minimum and maximum values in mm for a range of columns. Each
+     * column covers samplesPerColumn samples, starting at the given position
+     * in the timeline. Columns with no data, in gaps or past the ends, get
+     * NaN. The values come from the coarsest level with buckets no larger
+     * than a column, so a column may include up to one bucket from each of
+     * its neighbors.
+     * 
+     * @param first The position of the start of the first column in samples.
+     * @param samplesPerColumn The number of samples per column.
+     * @param columnMins Array to hold the minimums, one per column.
+     * @param columnMaxs Array to hold the maximums, one per column.
+     */
+    public void getMinMax(double first, double samplesPerColumn,
+        float[] columnMins, float[] columnMaxs) {
+        // Find the level to use, or -1 for the samples
+        int level = -1;
+        while(level + 1 < N_LEVELS
+            && bucketSizes[level + 1] <= samplesPerColumn) {
+            level++;
+        }
+        int size = level < 0 ? 1 : bucketSizes[level];
+        int stripBuckets = level < 0 ? STRIP_N_DATA_VALS : nBuckets[level];
+        short[] levelMins = level < 0 ? null : mins[level];
+        short[] levelMaxs = level < 0 ? null : maxs[level];
+
+        int nColumns = columnMins.length;
+        int n = Math.max(findStrip((long)Math.floor(first)), 0);
+        int[] counts = null;
+        int countsStrip = -1;
+        for(int c = 0; c < nColumns; c++) {
+            long start = (long)Math.floor(first + c * samplesPerColumn);
+            long end = Math.max(start + 1,
+                (long)Math.floor(first + (c + 1) * samplesPerColumn));
+            int min = Integer.MAX_VALUE, max = Integer.MIN_VALUE;
+            // Skip strips that end before the column
+            while(n < strips.length - 1
+                && starts[n] + STRIP_N_DATA_VALS <= start) {
+                n++;
+            }
+            for(int k = n; k < strips.length && starts[k] < end; k++) {
+                int from = (int)Math.max(start - starts[k], 0);
+                int to = (int)Math.min(end - starts[k], STRIP_N_DATA_VALS);
+                if(from >= to) {
+                    continue;
+                }
+                if(level < 0) {
+                    if(countsStrip != k) {
+                        try {
+                            counts = getCounts(k);
+                        } catch(EOFException ex) {
+                            counts = null;
+                        }
+                        countsStrip = k;
+                    }
+                    if(counts == null) {
+                        continue;
+                    }
+                    for(int i = from; i < to; i++) {
+                        min = Math.min(min, counts[i]);
+                        max = Math.max(max, counts[i]);
+                    }
+                } else {
+                    int offset = k * stripBuckets;
+                    int last = offset + (to + size - 1) / size;
+                    for(int b = offset + from / size; b < last; b++) {
+                        min = Math.min(min, levelMins[b]);
+                        max = Math.max(max, levelMaxs[b]);
+                    }
+                }
+            }
+            if(min > max) {
+                columnMins[c] = Float.NaN;
+                columnMaxs[c] = Float.NaN;
+            } else {
+                columnMins[c] = (float)((min - 512) * mmPerUnit);
+                columnMaxs[c] = (float)((max - 512) * mmPerUnit);
+            }
+        }
+    }
+
+    /**
+     * Finds the last strip that starts at or before the given position.
+     * 
+     * @param position The position in the timeline in samples.
+     * @return The index in the timeline of the strip or -1 if none.
+     */
+    public int findStrip(long position) {
+        int index = Arrays.binarySearch(starts, position);
+        return index >= 0 ? index : -index - 2;
+    }
+
+    /**
+     * @return The number of strips.
+     */
+    public int getNStrips() {
+        return strips.length;
+    }
+
+    /**
+     * @return The length of the timeline in samples.
+     */
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     * @param n The index of the strip in the timeline.
+     * @return The strip.
+     */
+    public Strip getStrip(int n) {
+        return strips[n];
+    }
+
+    /**
+     * @param n The index of the strip in the timeline.
+     * @return The index of the strip in the file.
+     */
+    public int getStripIndex(int n) {
+        return stripIndices[n];
+    }
+
+    /**
+     * @param n The index of the strip in the timeline.
+     * @return The position of the strip in the timeline in samples.
+     */
+    public long getStart(int n) {
+        return starts[n];
+    }
+
+    /**
+     * @param n The index of the strip in the timeline.
+     * @return The time of the strip in ms as given by StripMetadata.getTime.
+     */
+    public long getTime(int n) {
+        return times[n];
+    }
+
+    /**
+     * @param n The index of the strip in the timeline.
+     * @return Whether there is a gap before the strip.
+     */
+    public boolean isAfterGap(int n) {
+        return gaps[n];
+    }
+
+}
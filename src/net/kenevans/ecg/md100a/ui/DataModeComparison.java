@@ -0,0 +1,290 @@
+package net.kenevans.ecg.md100a.ui;
+
+import java.awt.BorderLayout;
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.GridLayout;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.awt.event.ComponentAdapter;
+import java.awt.event.ComponentEvent;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.swing.BorderFactory;
+import javax.swing.JButton;
+import javax.swing.JFrame;
+import javax.swing.JLabel;
+import javax.swing.JPanel;
+import javax.swing.JScrollPane;
+import javax.swing.SwingWorker;
+
+import net.kenevans.core.utils.ImageUtils;
+import net.kenevans.core.utils.Utils;
+import net.kenevans.ecg.md100a.model.BeatStatistics;
+import net.kenevans.ecg.md100a.model.EcgFilterModel;
+import net.kenevans.ecg.md100a.model.IConstants;
+import net.kenevans.ecg.md100a.model.Strip;
+
+import org.jfree.chart.ChartFactory;
+import org.jfree.chart.ChartPanel;
+import org.jfree.chart.JFreeChart;
+import org.jfree.chart.plot.PlotOrientation;
+import org.jfree.chart.renderer.xy.XYLineAndShapeRenderer;
+
+/**
+ * DataModeComparison is a frame that shows a strip processed with every
+ * DataMode in EcgFilterModel.dataModeList, one small chart per mode with its
+ * beat statistics. The modes are computed together in the background with
+ * EcgFilterModel.processAll. Each mode has a button to make it the data mode
+ * of the viewer.
+ */
+public class DataModeComparison extends JFrame implements IConstants
+{
+    private static final long serialVersionUID = 1L;
+    private static final int WIDTH = 1000;
+    private static final int HEIGHT = 800;
+    /** The height of each chart. */
+    private static final int CHART_HEIGHT = 140;
+    /** The width of the statistics for each chart. */
+    private static final int STATS_WIDTH = 200;
+    /** The domain maximum. */
+    private static final double XMAX = 30;
+
+    private EcgStripViewer viewer;
+    private EcgXYDataset[] datasets;
+    private JLabel[] statsLabels;
+    private ComparisonWorker worker;
+
+    /**
+     * DataModeComparison constructor.
+     * 
+     * @param viewer The viewer whose data mode the buttons set.
+     */
+    public DataModeComparison(EcgStripViewer viewer) {
+        this.viewer = viewer;
+        setTitle("Data Modes");
+        setDefaultCloseOperation(JFrame.DISPOSE_ON_CLOSE);
+        ImageUtils.setIconImageFromResource(this,
+            "/resources/HeartMonitor.36x36.png");
+
+        int nModes = EcgFilterModel.dataModeList.length;
+        datasets = new EcgXYDataset[nModes];
+        statsLabels = new JLabel[nModes];
+        JPanel chartsPanel = new JPanel(new GridLayout(nModes, 1));
+        for(int i = 0; i < nModes; i++) {
+            chartsPanel.add(createRow(i));
+        }
+        getContentPane().add(new JScrollPane(chartsPanel),
+            BorderLayout.CENTER);
+        setSize(WIDTH, HEIGHT);
+    }
+
+    /**
+     * Creates the chart and statistics for one mode.
+     * 
+     * @param index The index of the mode in dataModeList.
+     * @return
+     */
+    private JPanel createRow(int index) {
+        final EcgFilterModel.DataMode mode =
+            EcgFilterModel.dataModeList[index];
+        final EcgXYDataset dataset = new EcgXYDataset();
+        datasets[index] = dataset;
+        JFreeChart chart = ChartFactory.createXYLineChart(null, null, null,
+            dataset, PlotOrientation.VERTICAL, false, false, false);
+        chart.getXYPlot().getDomainAxis().setRange(0, XMAX);
+        ((XYLineAndShapeRenderer)chart.getXYPlot().getRenderer())
+            .setSeriesPaint(0, Color.RED);
+        final ChartPanel chartPanel = new ChartPanel(chart);
+        chartPanel.setMinimumDrawHeight(CHART_HEIGHT / 2);
+        chartPanel.setPreferredSize(new Dimension(WIDTH - STATS_WIDTH,
+            CHART_HEIGHT));
+        // Decimate to the width of the chart
+        chartPanel.addComponentListener(new ComponentAdapter() {
+            public void componentResized(ComponentEvent ev) {
+                int width = chartPanel.getWidth();
+                dataset.setXResolution(width > 0 ? XMAX / width : 0);
+            }
+        });
+
+        JLabel label = new JLabel();
+        statsLabels[index] = label;
+        JButton button = new JButton("Use");
+        button.setToolTipText("Plot the strips with this data mode.");
+        button.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent ae) {
+                viewer.setDataMode(mode);
+            }
+        });
+        JPanel statsPanel = new JPanel(new BorderLayout());
+        statsPanel.setPreferredSize(new Dimension(STATS_WIDTH, CHART_HEIGHT));
+        statsPanel.setBorder(BorderFactory.createEmptyBorder(4, 4, 4, 4));
+        statsPanel.add(label, BorderLayout.CENTER);
+        JPanel buttonPanel = new JPanel();
+        buttonPanel.add(button);
+        statsPanel.add(buttonPanel, BorderLayout.SOUTH);
+
+        JPanel row = new JPanel(new BorderLayout());
+        row.setBorder(BorderFactory.createEtchedBorder());
+        row.add(statsPanel, BorderLayout.WEST);
+        row.add(chartPanel, BorderLayout.CENTER);
+        setStatsText(index, null, "");
+        return row;
+    }
+
+    /**
+     * Shows the given strip, computing the modes in the background with the
+     * given settings. Any strip still being computed is abandoned.
+     * 
+     * @param strip
+     * @param filterModel The filter settings to use.
+     */
+    public void setStrip(Strip strip, EcgFilterModel filterModel) {
+        if(worker != null) {
+            worker.cancel(true);
+        }
+        setTitle("Data Modes - " + strip.getStringDate() + " "
+            + strip.getStringTime(false) + " (Computing)");
+        worker = new ComparisonWorker(strip, filterModel);
+        worker.execute();
+    }
+
+    /**
+     * Sets the statistics text for a mode.
+     * 
+     * @param index The index of the mode in dataModeList.
+     * @param stats The statistics or null if there are none.
+     * @param message The text to use if there are no statistics.
+     */
+    private void setStatsText(int index, BeatStatistics stats,
+        String message) {
+        String text = "<html><b>"
+            + EcgFilterModel.dataModeList[index].getName() + "</b><br>";
+        if(stats == null) {
+            text += message;
+        } else if(stats.getNPeaks() < 2) {
+            text += "R peaks: " + stats.getNPeaks() + "<br>"
+                + "Too few peaks for intervals";
+        } else {
+            text += "R peaks: " + stats.getNPeaks() + "<br>"
+                + String.format("Mean: %.1f BPM<br>", stats.getMeanBpm())
+                + String.format("SD: %.1f BPM<br>", stats.getSigmaBpm())
+                + String.format("Range: %.1f - %.1f BPM<br>",
+                    stats.getMinBpm(), stats.getMaxBpm())
+                + String.format("RSA Baseline: %.1f BPM",
+                    stats.getRsaBaseLineBpm());
+        }
+        statsLabels[index].setText(text + "</html>");
+    }
+
+    /**
+     * Comparison holds the results for all the modes.
+     */
+    private static class Comparison
+    {
+        private double[][] data;
+        private BeatStatistics[] stats;
+    }
+
+    /**
+     * ComparisonWorker computes all the modes and their statistics on a pool
+     * of threads.
+     */
+    private class ComparisonWorker extends SwingWorker<Comparison, Void>
+    {
+        private Strip strip;
+        private EcgFilterModel filterModel;
+
+        /**
+         * ComparisonWorker constructor.
+         * 
+         * @param strip
+         * @param filterModel The settings to use. They are copied.
+         */
+        ComparisonWorker(Strip strip, EcgFilterModel filterModel) {
+            this.strip = strip;
+            this.filterModel = new EcgFilterModel();
+            this.filterModel.setMedianFilterWindow(filterModel
+                .getMedianFilterWindow());
+            this.filterModel.setButterworthLowPassCutoff(filterModel
+                .getButterworthLowPassCutoff());
+        }
+
+        @Override
+        protected Comparison doInBackground() throws Exception {
+            double[] stripData = strip.getDataAsBytes();
+            if(stripData == null) {
+                throw new IllegalStateException(
+                    "Cannot get the data for the strip");
+            }
+            int nModes = EcgFilterModel.dataModeList.length;
+            ExecutorService pool = Executors.newFixedThreadPool(Math.min(
+                nModes, Runtime.getRuntime().availableProcessors()));
+            try {
+                final Comparison comparison = new Comparison();
+                comparison.data = filterModel.processAll(stripData, pool);
+                comparison.stats = new BeatStatistics[nModes];
+                List<Future<BeatStatistics>> futures =
+                    new ArrayList<Future<BeatStatistics>>(nModes);
+                for(int i = 0; i < nModes; i++) {
+                    final double[] data = comparison.data[i];
+                    futures.add(pool.submit(new Callable<BeatStatistics>() {
+                        public BeatStatistics call() {
+                            return BeatStatistics.compute(data);
+                        }
+                    }));
+                }
+                for(int i = 0; i < nModes; i++) {
+                    comparison.stats[i] = futures.get(i).get();
+                }
+                return comparison;
+            } finally {
+                pool.shutdownNow();
+            }
+        }
+
+        @Override
+        protected void done() {
+            if(worker != this) {
+                return;
+            }
+            worker = null;
+            setTitle("Data Modes - " + strip.getStringDate() + " "
+                + strip.getStringTime(false));
+            Comparison comparison;
+            try {
+                comparison = get();
+            } catch(CancellationException ex) {
+                return;
+            } catch(InterruptedException ex) {
+                return;
+            } catch(ExecutionException ex) {
+                Utils.excMsg("Error comparing data modes", ex);
+                return;
+            }
+            int nModes = EcgFilterModel.dataModeList.length;
+            double[] xVals = null;
+            for(int i = 0; i < nModes; i++) {
+                double[] data = comparison.data[i];
+                if(xVals == null || xVals.length != data.length) {
+                    xVals = new double[data.length];
+                    for(int n = 0; n < xVals.length; n++) {
+                        xVals[n] = XMAX * n / (xVals.length - 1);
+                    }
+                }
+                datasets[i].removeAllSeries();
+                datasets[i].addSeries("Segment", xVals, data, 0, 0);
+                datasets[i].fireDatasetChanged();
+                setStatsText(i, comparison.stats[i], "");
+            }
+        }
+    }
+
+}
@@ -4,6 +4,14 @@ import java.awt.Color;
 import java.awt.Paint;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.awt.event.ComponentAdapter;
+import java.awt.event.ComponentEvent;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import javax.swing.ButtonGroup;
 import javax.swing.JMenu;
@@ -12,8 +20,11 @@ import javax.swing.JOptionPane;
 import javax.swing.JPopupMenu;
 import javax.swing.JRadioButtonMenuItem;
 import javax.swing.JSeparator;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
 
 import net.kenevans.core.utils.Utils;
+import net.kenevans.ecg.md100a.model.BeatStatistics;
 import net.kenevans.ecg.md100a.model.EcgFilterModel;
 import net.kenevans.ecg.md100a.model.IConstants;
 import net.kenevans.ecg.md100a.model.Strip;
@@ -21,11 +32,12 @@ import net.kenevans.ecg.md100a.model.Strip;
 import org.jfree.chart.ChartFactory;
 import org.jfree.chart.ChartPanel;
 import org.jfree.chart.JFreeChart;
+import org.jfree.chart.axis.ValueAxis;
+import org.jfree.chart.event.AxisChangeEvent;
+import org.jfree.chart.event.AxisChangeListener;
 import org.jfree.chart.plot.PlotOrientation;
 import org.jfree.chart.plot.XYPlot;
 import org.jfree.chart.renderer.xy.XYLineAndShapeRenderer;
-import org.jfree.data.xy.XYSeries;
-import org.jfree.data.xy.XYSeriesCollection;
 
 /*
  * Created on Jul 29, 2012
@@ -44,8 +56,10 @@ public class EcgPlot implements IConstants
     /** Value for the domain maximum. */
     private static final double XMAX = 30;
 
-    /** The XYSeriesCollection used in the plot. It is filled out as needed. */
-    private XYSeriesCollection dataset = new XYSeriesCollection();
+    /** The dataset used in the plot. It is filled out as needed. */
+    private EcgXYDataset dataset = new EcgXYDataset();
+    /** The x values, shared by all the series. */
+    private double[] xVals = new double[0];
 
     /** Used to retain the domain limits for resetting the plot. */
     private double defaultXMax;
@@ -90,8 +104,42 @@ public class EcgPlot implements IConstants
     /** The EcgStripViewer that contains this plot. */
     private EcgStripViewer viewer;
 
+    /** The delay in ms used to coalesce bursts of settings changes. */
+    private static final int REPLOT_DELAY = 150;
+    /** Starts a replot when the settings have stopped changing. */
+    private Timer replotTimer;
+    /** Prepares the strips for replots, one at a time. */
+    private ExecutorService replotExecutor = Executors
+        .newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "EcgPlot Replot");
+                // Do not keep the application running
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    /** The replot being prepared or null if there is none. */
+    private Future<?> replotFuture;
+    /**
+     * Incremented for each replot and whenever the plot is changed otherwise,
+     * so a replot that has been superseded is not shown.
+     */
+    private int replotGeneration;
+    /** The strip being shown or null if there is none. */
+    private PreparedStrip curPrepared;
+    /** The menu items for the data modes. */
+    private Map<EcgFilterModel.DataMode, JRadioButtonMenuItem> dataModeItems =
+        new EnumMap<EcgFilterModel.DataMode, JRadioButtonMenuItem>(
+            EcgFilterModel.DataMode.class);
+
     public EcgPlot(EcgStripViewer viewer) {
         this.viewer = viewer;
+        replotTimer = new Timer(REPLOT_DELAY, new ActionListener() {
+            public void actionPerformed(ActionEvent ae) {
+                startReplot();
+            }
+        });
+        replotTimer.setRepeats(false);
     }
 
     /**
@@ -121,6 +169,19 @@ public class EcgPlot implements IConstants
         // Define the chartPanel before extending the popup menu
         chartPanel = new ChartPanel(chart);
 
+        // Decimate the data to the resolution of the screen, refining it as
+        // the user zooms in
+        plot.getDomainAxis().addChangeListener(new AxisChangeListener() {
+            public void axisChanged(AxisChangeEvent ev) {
+                updateResolution();
+            }
+        });
+        chartPanel.addComponentListener(new ComponentAdapter() {
+            public void componentResized(ComponentEvent ev) {
+                updateResolution();
+            }
+        });
+
         // Add to the popup menu
         extendPopupMenu();
 
@@ -142,8 +203,7 @@ public class EcgPlot implements IConstants
         item.addActionListener(new ActionListener() {
             public void actionPerformed(ActionEvent ae) {
                 showRSA = !showRSA;
-                clearPlot();
-                addStripToChart(viewer.getCurStrip());
+                replot();
             }
         });
         menu.add(item);
@@ -157,17 +217,14 @@ public class EcgPlot implements IConstants
         JRadioButtonMenuItem radioButtonItem;
         for(final EcgFilterModel.DataMode mode : EcgFilterModel.dataModeList) {
             radioButtonItem = new JRadioButtonMenuItem();
+            dataModeItems.put(mode, radioButtonItem);
             radioButtonItem.setText(mode.getName());
             radioButtonItem
                 .setSelected(viewer.getFilterModel().getDataMode() == mode);
             radioButtonItem.addActionListener(new ActionListener() {
                 public void actionPerformed(ActionEvent ae) {
                     viewer.getFilterModel().setDataMode(mode);
-                    if(viewer.getCurStrip() != null) {
-                        clearPlot();
-                        addStripToChart(viewer.getCurStrip());
-                        viewer.updateBeatText(viewer.getCurStrip());
-                    }
+                    replot();
                 }
             });
             menu1.add(radioButtonItem);
@@ -204,8 +261,7 @@ public class EcgPlot implements IConstants
                 }
                 // Redraw if it has changed
                 if(dataScale != oldDataScale) {
-                    clearPlot();
-                    addStripToChart(viewer.getCurStrip());
+                    replot();
                 }
             }
         });
@@ -238,8 +294,7 @@ public class EcgPlot implements IConstants
                 }
                 // Redraw if it has changed
                 if(rsaScale != oldRsaScale) {
-                    clearPlot();
-                    addStripToChart(viewer.getCurStrip());
+                    replot();
                 }
             }
         });
@@ -271,8 +326,7 @@ public class EcgPlot implements IConstants
                 }
                 // Redraw if we are showing one of those modes
                 if(nSubPlots != oldNSubPlots) {
-                    clearPlot();
-                    addStripToChart(viewer.getCurStrip());
+                    replot();
                 }
             }
         });
@@ -310,8 +364,7 @@ public class EcgPlot implements IConstants
                 // Redraw if we are showing one of those modes
                 if(viewer.getFilterModel().getDataMode() == EcgFilterModel.DataMode.MEDIAN
                     || viewer.getFilterModel().getDataMode() == EcgFilterModel.DataMode.MEDIAN_SUBTRACTED) {
-                    clearPlot();
-                    addStripToChart(viewer.getCurStrip());
+                    replot();
                 }
             }
         });
@@ -353,8 +406,7 @@ public class EcgPlot implements IConstants
                     butterworthLowPassCutoff);
                 // Redraw if we are showing one of those modes
                 if(viewer.getFilterModel().getDataMode() == EcgFilterModel.DataMode.BUTTERWORTH_LOW_PASS) {
-                    clearPlot();
-                    addStripToChart(viewer.getCurStrip());
+                    replot();
                 }
             }
         });
@@ -372,10 +424,7 @@ public class EcgPlot implements IConstants
         radioButtonItem.addActionListener(new ActionListener() {
             public void actionPerformed(ActionEvent ae) {
                 useDefaultAsRsaSource = true;
-                if(viewer.getCurStrip() != null) {
-                    clearPlot();
-                    addStripToChart(viewer.getCurStrip());
-                }
+                replot();
             }
         });
         menu2.add(radioButtonItem);
@@ -387,10 +436,7 @@ public class EcgPlot implements IConstants
         radioButtonItem.addActionListener(new ActionListener() {
             public void actionPerformed(ActionEvent ae) {
                 useDefaultAsRsaSource = false;
-                if(viewer.getCurStrip() != null) {
-                    clearPlot();
-                    addStripToChart(viewer.getCurStrip());
-                }
+                replot();
             }
         });
         menu2.add(radioButtonItem);
@@ -447,10 +493,126 @@ public class EcgPlot implements IConstants
         menu.add(item);
     }
 
+    /**
+     * Sets the x resolution of the dataset to the extent of one column of
+     * pixels, so the renderer gets at most a few points per column.
+     */
+    private void updateResolution() {
+        int width = chartPanel.getWidth();
+        if(width <= 0) {
+            dataset.setXResolution(0);
+            return;
+        }
+        ValueAxis axis = chartPanel.getChart().getXYPlot().getDomainAxis();
+        dataset.setXResolution(axis.getRange().getLength() / width);
+    }
+
+    /**
+     * Sets the data mode, updating the menu, and replots.
+     * 
+     * @param mode
+     */
+    public void setDataMode(EcgFilterModel.DataMode mode) {
+        viewer.getFilterModel().setDataMode(mode);
+        JRadioButtonMenuItem item = dataModeItems.get(mode);
+        if(item != null) {
+            item.setSelected(true);
+        }
+        replot();
+    }
+
+    /**
+     * Replots the current strip after the settings have changed. Changes
+     * within REPLOT_DELAY of each other are coalesced into one replot. If
+     * only the display settings have changed, the strip is shown again at
+     * once. Otherwise it is prepared in the background, cancelling any
+     * replot that has not finished, and only the newest result is shown.
+     */
+    public void replot() {
+        replotTimer.restart();
+    }
+
+    /**
+     * Starts the replot after the settings have stopped changing.
+     */
+    private void startReplot() {
+        final Strip strip = viewer.getCurStrip();
+        if(strip == null) {
+            return;
+        }
+        final PlotSettings settings = getSettings();
+        final int generation = ++replotGeneration;
+        if(replotFuture != null) {
+            replotFuture.cancel(false);
+            replotFuture = null;
+        }
+        if(curPrepared != null && curPrepared.strip == strip
+            && curPrepared.settings.equals(settings)) {
+            dataset.removeAllSeries();
+            display(curPrepared);
+            return;
+        }
+        replotFuture = replotExecutor.submit(new Runnable() {
+            public void run() {
+                PreparedStrip prepared = null;
+                Exception error = null;
+                try {
+                    prepared = prepare(strip, settings);
+                } catch(Exception ex) {
+                    error = ex;
+                }
+                final PreparedStrip result = prepared;
+                final Exception resultError = error;
+                SwingUtilities.invokeLater(new Runnable() {
+                    public void run() {
+                        finishReplot(generation, result, resultError);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Shows the result of a replot if it has not been superseded. Called on
+     * the event dispatch thread.
+     * 
+     * @param generation The replotGeneration when the replot started.
+     * @param prepared The prepared strip or null if there was an error.
+     * @param error The error or null if there was none.
+     */
+    private void finishReplot(int generation, PreparedStrip prepared,
+        Exception error) {
+        if(generation != replotGeneration) {
+            return;
+        }
+        replotFuture = null;
+        if(error != null) {
+            Utils.excMsg("Error adding profile to plot", error);
+            return;
+        }
+        dataset.removeAllSeries();
+        display(prepared);
+        viewer.updateBeatText(prepared.strip, prepared.beatStatistics);
+    }
+
+    /**
+     * Cancels any pending replot, since the plot is being changed otherwise.
+     */
+    private void cancelReplot() {
+        replotTimer.stop();
+        replotGeneration++;
+        if(replotFuture != null) {
+            replotFuture.cancel(false);
+            replotFuture = null;
+        }
+    }
+
     /**
      * Removes all series from the plot.
      */
     public void clearPlot() {
+        cancelReplot();
+        curPrepared = null;
         try {
             dataset.removeAllSeries();
         } catch(Exception ex) {
@@ -458,28 +620,94 @@ public class EcgPlot implements IConstants
         }
     }
 
+    /**
+     * Gets the current settings that affect what prepare computes.
+     * 
+     * @return
+     */
+    public PlotSettings getSettings() {
+        return new PlotSettings(viewer.getFilterModel(), useDefaultAsRsaSource);
+    }
+
+    /**
+     * Does the work of plotting a strip that does not involve the chart:
+     * decoding, filtering with the DataMode, finding the peaks, and finding
+     * the RSA values and beat statistics. It does not use the EcgPlot, so it
+     * can be called from any thread.
+     * 
+     * @param strip
+     * @param settings
+     * @return
+     */
+    public static PreparedStrip prepare(Strip strip, PlotSettings settings) {
+        double[] stripData = strip.getDataAsBytes();
+        if(stripData == null) {
+            return new PreparedStrip(strip, settings, null, null, null);
+        }
+        // process() should return a new array
+        EcgFilterModel filterModel = settings.getFilterModel();
+        double[] data = filterModel.getDataMode().process(filterModel,
+            stripData);
+
+        // Finding the peaks is most of the work, so only find them in the
+        // unprocessed data if it is different
+        double[] rsaVals = null;
+        int[] dataPeakIndices = Strip.getPeakIndices(data);
+        int[] peakIndices;
+        if(settings.useDefaultAsRsaSource
+            && settings.dataMode != EcgFilterModel.DataMode.DEFAULT) {
+            peakIndices = Strip.getPeakIndices(stripData);
+        } else {
+            peakIndices = dataPeakIndices;
+        }
+        if(peakIndices.length > 2) {
+            // Get the peak index values
+            rsaVals = Strip.getRsaArray(peakIndices, data,
+                RSA_AVG_OUTLIER_FRACTION);
+        }
+        return new PreparedStrip(strip, settings, data, rsaVals,
+            new BeatStatistics(dataPeakIndices));
+    }
+
     /**
      * Fills in the chart with the data from the given strip.
      * 
      * @param strip
      */
-    // TODO
     public void addStripToChart(Strip strip) {
-        double[] stripData;
+        if(strip == null) {
+            return;
+        }
+        show(prepare(strip, getSettings()));
+    }
+
+    /**
+     * Fills in the chart with a strip that has been prepared and cancels any
+     * pending replot. Only the series are made here. They use the arrays in
+     * the PreparedStrip without copying them.
+     * 
+     * @param prepared
+     */
+    public void show(PreparedStrip prepared) {
+        cancelReplot();
+        display(prepared);
+    }
+
+    /**
+     * Fills in the chart with a strip that has been prepared without
+     * affecting any pending replot.
+     * 
+     * @param prepared
+     */
+    private void display(PreparedStrip prepared) {
+        curPrepared = prepared;
         try {
-            stripData = strip.getDataAsBytes();
-            int nDataPoints = stripData.length;
-            // // Work with a copy of the data so we don't modify the original
-            // double[] data = new double[nDataPoints];
-            // for(int i = 0; i < nDataPoints; i++) {
-            // data[i] = stripData[i];
-            // }
-            // // Process according to the dataMode
-            // data = dataMode.process(this, data);
-
-            // process() should return a new array
-            double[] data = viewer.getFilterModel().getDataMode()
-                .process(viewer.getFilterModel(), stripData);
+            double[] data = prepared.data;
+            if(data == null) {
+                Utils.errMsg("Cannot get the data for the strip");
+                return;
+            }
+            int nDataPoints = data.length;
 
             // DEBUG
             boolean debug = false;
@@ -516,14 +744,17 @@ public class EcgPlot implements IConstants
             defaultXMax = xMax;
             defaultYMax = totalHeight;
 
-            // Generate the x values
+            // Generate the x values if they have changed
             // TODO Would need 7501 values to have i = 0 correspond to 0 sec
             // and i= nDataPoints-1 to correspond to 30 sec
             // This gives an error of .004 (or less)
             int nPoints = nDataPoints / nSubPlots;
-            double[] xVals = new double[nPoints];
-            for(int n = 0; n < nPoints; n++) {
-                xVals[n] = xMax * n / (nPoints - 1);
+            if(xVals.length != nPoints
+                || (nPoints > 1 && xVals[nPoints - 1] != xMax)) {
+                xVals = new double[nPoints];
+                for(int n = 0; n < nPoints; n++) {
+                    xVals[n] = xMax * n / (nPoints - 1);
+                }
             }
 
             // Set the axis limits in the plot
@@ -541,38 +772,21 @@ public class EcgPlot implements IConstants
             plot("Segment", stripColor, nSubPlots, totalHeight, .5, xVals, data);
 
             // Add RSA values
-            if(showRSA) {
-                int[] peakIndices;
-                if(useDefaultAsRsaSource) {
-                    peakIndices = strip.getPeakIndices();
-                } else {
-                    peakIndices = Strip.getPeakIndices(data);
+            if(showRSA && prepared.rsaVals != null) {
+                // Scale according to the RSA scale, leaving the prepared
+                // values unchanged
+                double[] rsaVals = new double[prepared.rsaVals.length];
+                for(int i = 0; i < rsaVals.length; i++) {
+                    rsaVals[i] = prepared.rsaVals[i] * rsaScale;
                 }
-                if(peakIndices.length > 2) {
-                    // Get the peak index values
-                    double[] rsaVals = Strip.getRsaArray(peakIndices, data,
-                        RSA_AVG_OUTLIER_FRACTION);
-                    // DEBUG
-                    // for(int i = 0; i < rsaVals.length; i++) {
-                    // rsaVals[i] = (i/250);
-                    // rsaVals[i] *= .02;
-                    // }
-                    // Scale them
-                    for(int i = 0; i < rsaVals.length; i++) {
-                        // Scale according to the RSA scale
-                        rsaVals[i] *= rsaScale;
-                        // lastPeakVal = 0;
-                        // lastPeakVal = nextPeak;
-                    }
 
-                    plot("RSA", rsaColor, nSubPlots, totalHeight, .25, xVals,
-                        rsaVals);
+                plot("RSA", rsaColor, nSubPlots, totalHeight, .25, xVals,
+                    rsaVals);
 
-                    // Create some RSA zero lines
-                    if(doRSABaseLines) {
-                        plot("RSA Base Line", rsaBaseLineColor, nSubPlots,
-                            totalHeight, .25, xVals, new double[] {0});
-                    }
+                // Create some RSA zero lines
+                if(doRSABaseLines) {
+                    plot("RSA Base Line", rsaBaseLineColor, nSubPlots,
+                        totalHeight, .25, xVals, new double[] {0});
                 }
             }
 
@@ -589,6 +803,9 @@ public class EcgPlot implements IConstants
                     xVals, new double[] {5});
             }
 
+            // Notify the chart once for all the series
+            dataset.fireDatasetChanged();
+
         } catch(Exception ex) {
             Utils.excMsg("Error adding profile to plot", ex);
             ex.printStackTrace();
@@ -607,44 +824,54 @@ public class EcgPlot implements IConstants
      * @param originFraction What fraction of the sub-plot area to use as the
      *            origin. Measured from the bottom. .5 is the middle, and .2 is
      *            below the middle. The useful range is 0 to 1.
-     * @param xVals The array of x values.
+     * @param xVals The array of x values. It is used by the series without
+     *            being copied.
      * @param yVals The array of y values. If the length of this array is 1, it
      *            is used as a constant value for all x values. Otherwise it
      *            should be nSeries times as long as the length of the x values.
-     *            If it is shorter, then null will be used for the remaining
-     *            plot values.
+     *            If it is shorter, then the remaining plot values are missing.
+     *            It is used by the series without being copied.
      */
     private void plot(String seriesName, Paint paint, int nSubPlots,
         double totalHeight, double originFraction, double[] xVals,
         double[] yVals) {
         int index;
         int nPoints = xVals.length;
-        int nDataPoints = yVals.length;
         XYLineAndShapeRenderer renderer = (XYLineAndShapeRenderer)chartPanel
             .getChart().getXYPlot().getRenderer();
         double offset;
+        String key;
         for(int i = 0; i < nSubPlots; i++) {
-            XYSeries series = new XYSeries(seriesName + " " + (i + 1));
+            key = seriesName + " " + (i + 1);
             offset = .5 * totalHeight
                 - ((i + 1 - originFraction) * totalHeight) / nSubPlots;
-            for(int n = 0; n < nPoints; n++) {
-                if(nDataPoints == 1) {
-                    series.add(xVals[n], yVals[0] + offset);
-                } else {
-                    index = i * nPoints + n;
-                    // In case yVals does not fill the segment
-                    if(index > nDataPoints - 1) {
-                        series.add(xVals[n], null);
-                    } else {
-                        series.add(xVals[n], yVals[index] + offset);
-                    }
-                }
+            if(yVals.length == 1) {
+                index = dataset.addConstantSeries(key, xVals, yVals[0]
+                    + offset);
+            } else {
+                index = dataset.addSeries(key, xVals, yVals, i * nPoints,
+                    offset);
             }
-            dataset.addSeries(series);
-            renderer.setSeriesPaint(dataset.indexOf(series), paint);
+            renderer.setSeriesPaint(index, paint);
         }
     }
 
+    /**
+     * Creates a StripRenderer that draws strips as this plot shows them,
+     * using the current display settings.
+     * 
+     * @return
+     */
+    public StripRenderer createRenderer() {
+        StripRenderer renderer = new StripRenderer();
+        renderer.setNSubPlots(nSubPlots);
+        renderer.setDataScale(dataScale);
+        renderer.setRsaScale(rsaScale);
+        renderer.setShowRSA(showRSA);
+        renderer.setColors(stripColor, rsaColor, rsaBaseLineColor);
+        return renderer;
+    }
+
     /**
      * @return The value of chartPanel.
      */
@@ -652,4 +879,131 @@ public class EcgPlot implements IConstants
         return chartPanel;
     }
 
+    /**
+     * PlotSettings is a copy of the settings that affect what prepare
+     * computes. Settings that only affect the display, such as the data
+     * scale, are not included, so changing them does not make prepared strips
+     * obsolete. Two PlotSettings are equal if prepare would give the same
+     * results for them.
+     */
+    public static class PlotSettings
+    {
+        private final EcgFilterModel.DataMode dataMode;
+        private final int medianFilterWindow;
+        private final double butterworthLowPassCutoff;
+        private final boolean useDefaultAsRsaSource;
+
+        /**
+         * PlotSettings constructor.
+         * 
+         * @param filterModel The filter model to copy.
+         * @param useDefaultAsRsaSource Whether the RSA values come from the
+         *            peaks of the unprocessed data.
+         */
+        public PlotSettings(EcgFilterModel filterModel,
+            boolean useDefaultAsRsaSource) {
+            this.dataMode = filterModel.getDataMode();
+            this.medianFilterWindow = filterModel.getMedianFilterWindow();
+            this.butterworthLowPassCutoff = filterModel
+                .getButterworthLowPassCutoff();
+            this.useDefaultAsRsaSource = useDefaultAsRsaSource;
+        }
+
+        /**
+         * @return A new EcgFilterModel with these settings.
+         */
+        public EcgFilterModel getFilterModel() {
+            EcgFilterModel filterModel = new EcgFilterModel();
+            filterModel.setDataMode(dataMode);
+            filterModel.setMedianFilterWindow(medianFilterWindow);
+            filterModel.setButterworthLowPassCutoff(butterworthLowPassCutoff);
+            return filterModel;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if(!(obj instanceof PlotSettings)) {
+                return false;
+            }
+            PlotSettings other = (PlotSettings)obj;
+            return dataMode == other.dataMode
+                && medianFilterWindow == other.medianFilterWindow
+                && Double.compare(butterworthLowPassCutoff,
+                    other.butterworthLowPassCutoff) == 0
+                && useDefaultAsRsaSource == other.useDefaultAsRsaSource;
+        }
+
+        @Override
+        public int hashCode() {
+            long bits = Double.doubleToLongBits(butterworthLowPassCutoff);
+            int hash = dataMode.hashCode();
+            hash = 31 * hash + medianFilterWindow;
+            hash = 31 * hash + (int)(bits ^ (bits >>> 32));
+            hash = 31 * hash + (useDefaultAsRsaSource ? 1 : 0);
+            return hash;
+        }
+    }
+
+    /**
+     * PreparedStrip holds what prepare computes for a strip. The arrays
+     * should not be changed.
+     */
+    public static class PreparedStrip
+    {
+        private final Strip strip;
+        private final PlotSettings settings;
+        /** The processed data or null if the strip could not be decoded. */
+        private final double[] data;
+        /** The unscaled RSA values or null if there are too few peaks. */
+        private final double[] rsaVals;
+        private final BeatStatistics beatStatistics;
+
+        private PreparedStrip(Strip strip, PlotSettings settings,
+            double[] data, double[] rsaVals, BeatStatistics beatStatistics) {
+            this.strip = strip;
+            this.settings = settings;
+            this.data = data;
+            this.rsaVals = rsaVals;
+            this.beatStatistics = beatStatistics;
+        }
+
+        /**
+         * @return The value of strip.
+         */
+        public Strip getStrip() {
+            return strip;
+        }
+
+        /**
+         * @return The value of settings.
+         */
+        public PlotSettings getSettings() {
+            return settings;
+        }
+
+        /**
+         * @return The processed data or null if the strip could not be
+         *         decoded. It should not be changed.
+         */
+        public double[] getData() {
+            return data;
+        }
+
+        /**
+         * @return The unscaled RSA values or null if there are too few peaks.
+         *         They should not be changed.
+         */
+        public double[] getRsaVals() {
+            return rsaVals;
+        }
+
+        /**
+         * @return The statistics for the processed data or null if the strip
+         *         could not be decoded.
+         */
+        public BeatStatistics getBeatStatistics() {
+            return beatStatistics;
+        }
+    }
+
 }
@@ -1,24 +1,25 @@
 package net.kenevans.ecg.md100a.ui;
 
 import java.awt.BorderLayout;
-import java.awt.Component;
 import java.awt.Container;
-import java.awt.Cursor;
 import java.awt.Dimension;
 import java.awt.Frame;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
 
 import javax.swing.BorderFactory;
-import javax.swing.DefaultListCellRenderer;
-import javax.swing.DefaultListModel;
+import javax.swing.BoxLayout;
 import javax.swing.JButton;
 import javax.swing.JDialog;
 import javax.swing.JFileChooser;
 import javax.swing.JFrame;
-import javax.swing.JLabel;
 import javax.swing.JList;
 import javax.swing.JMenu;
 import javax.swing.JMenuBar;
@@ -30,13 +31,18 @@ import javax.swing.JSeparator;
 import javax.swing.JSplitPane;
 import javax.swing.JTextArea;
 import javax.swing.SwingUtilities;
+import javax.swing.SwingWorker;
 import javax.swing.event.ListSelectionEvent;
 import javax.swing.event.ListSelectionListener;
+import javax.swing.filechooser.FileNameExtensionFilter;
 
 import net.kenevans.core.utils.AboutBoxPanel;
 import net.kenevans.core.utils.ImageUtils;
 import net.kenevans.core.utils.Utils;
+import net.kenevans.ecg.md100a.model.BeatStatistics;
+import net.kenevans.ecg.md100a.model.Diagnostics;
 import net.kenevans.ecg.md100a.model.EcgFileModel;
+import net.kenevans.ecg.md100a.model.EcgFileWriter;
 import net.kenevans.ecg.md100a.model.EcgFilterModel;
 import net.kenevans.ecg.md100a.model.Header;
 import net.kenevans.ecg.md100a.model.IConstants;
@@ -86,7 +92,7 @@ public class EcgStripViewer extends JFrame implements IConstants
     private Container contentPane = this.getContentPane();
     private JPanel listPanel = new JPanel();
     private JPanel lowerPanel = new JPanel();
-    private DefaultListModel listModel = new DefaultListModel();
+    private StripListModel listModel = new StripListModel();
     private JList list = new JList(listModel);
     private JScrollPane listScrollPane;
     private JTextArea beatTextArea;
@@ -95,16 +101,67 @@ public class EcgStripViewer extends JFrame implements IConstants
     private JSplitPane mainPane = new JSplitPane(JSplitPane.VERTICAL_SPLIT,
         displayPanel, lowerPanel);
     private JMenuBar menuBar;
+    private ProgressPanel loadProgressPanel = new ProgressPanel();
+    private ProgressPanel saveProgressPanel = new ProgressPanel();
+    private ProgressPanel reportProgressPanel = new ProgressPanel();
+
+    /** The worker loading a file or null if none is loading. */
+    private FileLoader loader;
+    /** The worker saving a file or null if none is saving. */
+    private FileSaver saver;
+    /** The worker writing a report or null if none is being written. */
+    private ReportWriter reportWriter;
+    /** The timeline for the current file or null if it is not shown. */
+    private TimelineViewer timelineViewer;
+    /** The comparison of the data modes or null if it is not shown. */
+    private DataModeComparison dataModeComparison;
+    /** Renders the strips in the list. */
+    private StripCellRenderer cellRenderer;
+    /** Prepares the strips next to the selected one in the background. */
+    private StripPrefetcher prefetcher = new StripPrefetcher(
+        StripPrefetcher.DEFAULT_N_NEIGHBORS);
 
     /** Array of Strips for the viewer. */
-    public Strip[] strips;
+    public Strip[] strips = new Strip[0];
     /** The currently selected Strip. */
     private Strip curStrip;
 
+    /**
+     * Sink that reports errors from the model with dialogs. Errors from
+     * background workers are shown on the event dispatch thread.
+     */
+    private static final Diagnostics.Sink DIALOG_SINK =
+        new Diagnostics.Sink() {
+            public void errMsg(final String msg) {
+                if(SwingUtilities.isEventDispatchThread()) {
+                    Utils.errMsg(msg);
+                    return;
+                }
+                SwingUtilities.invokeLater(new Runnable() {
+                    public void run() {
+                        Utils.errMsg(msg);
+                    }
+                });
+            }
+
+            public void excMsg(final String msg, final Exception ex) {
+                if(SwingUtilities.isEventDispatchThread()) {
+                    Utils.excMsg(msg, ex);
+                    return;
+                }
+                SwingUtilities.invokeLater(new Runnable() {
+                    public void run() {
+                        Utils.excMsg(msg, ex);
+                    }
+                });
+            }
+        };
+
     /**
      * EcgStripViewer constructor.
      */
     public EcgStripViewer() {
+        Diagnostics.setSink(DIALOG_SINK);
         ecgFilterModel = new EcgFilterModel();
         plot = new EcgPlot(this);
         uiInit();
@@ -140,22 +197,9 @@ public class EcgStripViewer extends JFrame implements IConstants
             }
         });
 
-        list.setCellRenderer(new DefaultListCellRenderer() {
-            private static final long serialVersionUID = 1L;
-
-            public Component getListCellRendererComponent(JList list,
-                Object value, int index, boolean isSelected,
-                boolean cellHasFocus) {
-                JLabel label = (JLabel)super.getListCellRendererComponent(list,
-                    value, index, isSelected, cellHasFocus);
-                // Use the date from the strip as the label
-                Strip strip = (Strip)value;
-                label.setText((index + 1) + " " + strip.getStringDate() + " "
-                    + strip.getStringTime(false) + " " + strip.getHeartRate()
-                    + " bpm" + " " + strip.getDiagnosisString());
-                return label;
-            }
-        });
+        // Show the strips with sparklines made in the background
+        cellRenderer = new StripCellRenderer(list);
+        list.setCellRenderer(cellRenderer);
 
         // BeatPanel
         JPanel beatPanel = new JPanel();
@@ -192,6 +236,12 @@ public class EcgStripViewer extends JFrame implements IConstants
         // Content pane
         contentPane.setLayout(new BorderLayout());
         contentPane.add(mainPanel, BorderLayout.CENTER);
+        JPanel progressPanel = new JPanel();
+        progressPanel.setLayout(new BoxLayout(progressPanel, BoxLayout.Y_AXIS));
+        progressPanel.add(loadProgressPanel);
+        progressPanel.add(saveProgressPanel);
+        progressPanel.add(reportProgressPanel);
+        contentPane.add(progressPanel, BorderLayout.SOUTH);
     }
 
     /**
@@ -227,6 +277,16 @@ public class EcgStripViewer extends JFrame implements IConstants
         });
         menu.add(menuItem);
 
+        // File Save Report
+        menuItem = new JMenuItem();
+        menuItem.setText("Save Report...");
+        menuItem.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent ae) {
+                saveReport();
+            }
+        });
+        menu.add(menuItem);
+
         JSeparator separator = new JSeparator();
         menu.add(separator);
 
@@ -263,6 +323,24 @@ public class EcgStripViewer extends JFrame implements IConstants
         });
         menu.add(menuItem);
 
+        menuItem = new JMenuItem();
+        menuItem.setText("Compare Data Modes...");
+        menuItem.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent ae) {
+                showDataModeComparison();
+            }
+        });
+        menu.add(menuItem);
+
+        menuItem = new JMenuItem();
+        menuItem.setText("Timeline...");
+        menuItem.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent ae) {
+                showTimeline();
+            }
+        });
+        menu.add(menuItem);
+
         // Help
         menu = new JMenu();
         menu.setText("Help");
@@ -330,21 +408,13 @@ public class EcgStripViewer extends JFrame implements IConstants
                 .getPath();
             // Process the file
             File file = chooser.getSelectedFile();
-            // Set the cursor in case it takes a long time
-            // This isn't working. The cursor apparently doesn't get set
-            // until after it is done.
-            Cursor oldCursor = getCursor();
-            try {
-                setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
-                loadFile(file);
-            } finally {
-                setCursor(oldCursor);
-            }
+            loadFile(file);
         }
     }
 
     /**
-     * Loads a new file.
+     * Loads a new file in the background. The strips are added to the list as
+     * they are made, and the first one is plotted as soon as it is available.
      * 
      * @param fileName
      */
@@ -354,48 +424,46 @@ public class EcgStripViewer extends JFrame implements IConstants
             return;
         }
 
-        // Needs to be done this way to allow the text to change before reading
-        // the image.
-        SwingUtilities.invokeLater(new Runnable() {
-            public void run() {
-                try {
-                    model = new EcgFileModel(file.getPath());
-                    strips = model.getStrips();
-
-                    // DEBUG
-                    // System.out.println("First Shorts in Strip");
-                    // for(Strip strip : strips) {
-                    // strip.printFirstShorts(14);
-                    // }
-                    // System.out.println();
-
-                    // DEBUG
-                    // System.out.println("Control Points in Strip");
-                    // for(Strip strip : strips) {
-                    // strip.printControlPoints();
-                    // }
-                    // System.out.println();
-
-                    populateList();
-                    if(strips.length > 0) {
-                        list.setSelectedValue(strips[0], false);
-                    }
+        // Stop any file that is still loading
+        FileLoader oldLoader = loader;
+        loader = null;
+        if(oldLoader != null) {
+            oldLoader.cancel(false);
+        }
 
-                    // Show the selected info
-                    setTitle(file.getName());
-                } catch(Exception ex) {
-                    String msg = "Error loading file: " + file.getPath();
-                    Utils.excMsg(msg, ex);
-                } catch(Error err) {
-                    String msg = "Error loading file: " + file.getPath();
-                    Utils.excMsg(msg, err);
-                }
-            }
-        });
+        clearFile();
+        cellRenderer.setFile(file);
+        setTitle(file.getName() + " (Loading)");
+        loader = new FileLoader(file);
+        loadProgressPanel.start("Loading " + file.getName(), loader);
+        loader.execute();
     }
 
     /**
-     * Saves the current file.
+     * Clears the current file from the user interface.
+     */
+    private void clearFile() {
+        if(timelineViewer != null) {
+            timelineViewer.dispose();
+            timelineViewer = null;
+        }
+        if(dataModeComparison != null) {
+            dataModeComparison.dispose();
+            dataModeComparison = null;
+        }
+        model = null;
+        prefetcher.clear();
+        cellRenderer.setFile(null);
+        strips = new Strip[0];
+        curStrip = null;
+        listModel.clear();
+        plot.clearPlot();
+        beatTextArea.setText("");
+        setTitle(title);
+    }
+
+    /**
+     * Saves the current file in the background.
      * 
      * @param fileName
      */
@@ -405,55 +473,105 @@ public class EcgStripViewer extends JFrame implements IConstants
             Utils.errMsg("File is null");
             return;
         }
-        try {
-            int nStrips = stripList.size();
-            int totalSize = HEADER_LENGTH + nStrips * STRIP_LENGTH;
-            byte[] data = new byte[totalSize];
-
-            // Do Header
-            Header header = model.getHeader().clone();
-            header.setNStrips(nStrips);
-            header.setId(id);
-            byte[] headerData = header.getData();
-            int start = 0;
-            int end = HEADER_LENGTH;
-            for(int i = 0; i < end; i++) {
-                data[i] = headerData[i];
+        if(model == null) {
+            Utils.errMsg("There is no file loaded");
+            return;
+        }
+        if(saver != null) {
+            Utils.errMsg("Another file is being saved." + LS
+                + "Wait for it to finish or cancel it.");
+            return;
+        }
+        // Copy the strips without decoding them if they are not processed.
+        // Use where they were found in the file, which may not be where the
+        // header says if the file is damaged.
+        File srcFile = null;
+        long[] offsets = null;
+        if(dataMode == EcgFilterModel.DataMode.DEFAULT) {
+            srcFile = new File(model.getFileName());
+            try {
+                if(!srcFile.exists()
+                    || srcFile.getCanonicalFile().equals(
+                        file.getCanonicalFile())) {
+                    srcFile = null;
+                }
+            } catch(IOException ex) {
+                srcFile = null;
             }
-
-            // Do strips
-            double[] vals;
-            byte[] stripData;
+            Strip[] modelStrips = model.getStrips();
+            offsets = new long[stripList.size()];
+            int i = 0;
             for(int n : stripList) {
-                // stripData = model.getStrips()[n].getData();
-                vals = model.getStrips()[n].getDataAsBytes();
-                vals = dataMode.process(ecgFilterModel, vals);
-                stripData = model.getStrips()[n].getConvertedBytes(vals);
-                start += end;
-                end = STRIP_LENGTH;
-                for(int i = 0; i < end; i++) {
-                    data[start + i] = stripData[i];
+                offsets[i] = modelStrips[n].getFileOffset();
+                if(offsets[i++] < 0) {
+                    srcFile = null;
+                    break;
                 }
             }
-            EcgFileModel.saveFile(file, data);
-        } catch(Exception ex) {
-            Utils.excMsg("Error saving file:" + LS + file.getPath(), ex);
-            ex.printStackTrace();
         }
+
+        // Do Header
+        Header header = model.getHeader().clone();
+        header.setNStrips(stripList.size());
+        header.setId(id);
+
+        // Use a copy of the filter settings, which may change while saving
+        EcgFilterModel filterModel = new EcgFilterModel();
+        filterModel.setMedianFilterWindow(ecgFilterModel
+            .getMedianFilterWindow());
+        filterModel.setButterworthLowPassCutoff(ecgFilterModel
+            .getButterworthLowPassCutoff());
+        filterModel.setDataMode(dataMode);
+
+        saver = new FileSaver(file, srcFile, offsets, id, header,
+            model.getStrips(), stripList, filterModel);
+        saveProgressPanel.start("Saving " + file.getName(), saver);
+        saver.execute();
     }
 
     /**
-     * Populates the list from the list of profiles.
+     * Brings up a JFileChooser and writes a report of all the strips in the
+     * background, plotted as they are now.
      */
-    private void populateList() {
-        list.setEnabled(false);
-        listModel.removeAllElements();
-        for(Strip strip : strips) {
-            listModel.addElement(strip);
-        }
-        list.validate();
-        mainPane.validate();
-        list.setEnabled(true);
+    private void saveReport() {
+        if(model == null || strips.length == 0) {
+            Utils.errMsg("There is no file loaded");
+            return;
+        }
+        if(reportWriter != null) {
+            Utils.errMsg("Another report is being written." + LS
+                + "Wait for it to finish or cancel it.");
+            return;
+        }
+        JFileChooser chooser = new JFileChooser();
+        chooser.setFileFilter(new FileNameExtensionFilter(
+            "PDF or PNG images (*.pdf, *.png)", "pdf", "png"));
+        if(defaultOpenPath != null) {
+            chooser.setCurrentDirectory(new File(defaultOpenPath));
+        }
+        int result = chooser.showSaveDialog(this);
+        if(result != JFileChooser.APPROVE_OPTION) {
+            return;
+        }
+        File file = chooser.getSelectedFile();
+        String name = file.getName().toLowerCase();
+        if(!name.endsWith(".pdf") && !name.endsWith(".png")) {
+            file = new File(file.getPath() + ".pdf");
+        }
+        if(file.exists()) {
+            int res = JOptionPane.showConfirmDialog(this, "File exists:" + LS
+                + file.getPath() + LS + "OK to overwrite?", "File Exists",
+                JOptionPane.OK_CANCEL_OPTION);
+            if(res != JOptionPane.OK_OPTION) {
+                return;
+            }
+        }
+        String reportTitle = new File(model.getFileName()).getName();
+        StripReport report = new StripReport(reportTitle,
+            Arrays.asList(strips), plot.getSettings(), plot.createRenderer());
+        reportWriter = new ReportWriter(file, report);
+        reportProgressPanel.start("Writing " + file.getName(), reportWriter);
+        reportWriter.execute();
     }
 
     /**
@@ -463,15 +581,23 @@ public class EcgStripViewer extends JFrame implements IConstants
      */
     private void onListItemSelected(ListSelectionEvent ev) {
         if(ev.getValueIsAdjusting()) return;
+        int index = list.getSelectedIndex();
         Strip strip = (Strip)list.getSelectedValue();
         if(strip == null) {
             return;
         }
         list.clearSelection();
+        // Use the strip if it has been prefetched
+        EcgPlot.PlotSettings settings = plot.getSettings();
+        EcgPlot.PreparedStrip prepared = prefetcher.get(strip, settings);
         plot.clearPlot();
-        plot.addStripToChart(strip);
+        plot.show(prepared);
         curStrip = strip;
-        updateBeatText(strip);
+        updateBeatText(strip, prepared.getBeatStatistics());
+        prefetcher.prefetch(listModel, index, settings);
+        if(dataModeComparison != null && dataModeComparison.isShowing()) {
+            dataModeComparison.setStrip(strip, ecgFilterModel);
+        }
     }
 
     /**
@@ -492,16 +618,74 @@ public class EcgStripViewer extends JFrame implements IConstants
      * @param strip
      */
     public void updateBeatText(Strip strip) {
+        updateBeatText(strip, null);
+    }
+
+    /**
+     * Updates the beat information in the beat text area using statistics
+     * that have already been found for the current data mode.
+     * 
+     * @param strip
+     * @param stats The statistics or null to find them.
+     */
+    public void updateBeatText(Strip strip, BeatStatistics stats) {
         String info = "Heartbeat Information" + LS;
         info += strip.getStringDate() + " " + strip.getStringTime(false) + " "
             + strip.getHeartRate() + " bpm" + " " + strip.getDiagnosisString()
             + LS + LS;
         info += "Data Mode is " + ecgFilterModel.getDataMode().getName() + LS;
-        info += getHeartBeatInfo(ecgFilterModel.getDataMode());
+        if(stats != null) {
+            info += getHeartBeatInfo(stats);
+        } else {
+            info += getHeartBeatInfo(ecgFilterModel.getDataMode());
+        }
         beatTextArea.setText(info);
         beatTextArea.setCaretPosition(0);
     }
 
+    /**
+     * Shows the current strip with all the data modes, creating the
+     * comparison if necessary.
+     */
+    private void showDataModeComparison() {
+        if(curStrip == null) {
+            Utils.errMsg("There is no strip selected");
+            return;
+        }
+        if(dataModeComparison == null || !dataModeComparison.isDisplayable()) {
+            dataModeComparison = new DataModeComparison(this);
+            dataModeComparison.setLocationRelativeTo(this);
+        }
+        dataModeComparison.setStrip(curStrip, ecgFilterModel);
+        dataModeComparison.setVisible(true);
+        dataModeComparison.toFront();
+    }
+
+    /**
+     * Sets the data mode used to plot the strips.
+     * 
+     * @param mode
+     */
+    public void setDataMode(EcgFilterModel.DataMode mode) {
+        plot.setDataMode(mode);
+    }
+
+    /**
+     * Shows the timeline for the current file, creating it if necessary.
+     */
+    private void showTimeline() {
+        if(model == null) {
+            Utils.errMsg("There is no file loaded");
+            return;
+        }
+        if(timelineViewer == null || !timelineViewer.isDisplayable()) {
+            timelineViewer = new TimelineViewer(model);
+            timelineViewer.setLocationRelativeTo(this);
+        }
+        timelineViewer.setVisible(true);
+        timelineViewer.toFront();
+    }
+
     /**
      * Shows heart-beat information in a dialog.
      */
@@ -548,17 +732,21 @@ public class EcgStripViewer extends JFrame implements IConstants
             return info;
         }
 
-        double[] stripData = null;
-        double[] vals = null;
-        double[] array = null;
-        double max, min, mean, sigma, sum, sumsq, val, rsaBaseLine;
-        int maxIndex, minIndex;
+        double[] stripData = curStrip.getDataAsBytes();
+        double[] vals = ecgFilterModel.getDataMode().process(ecgFilterModel,
+            stripData);
+        return getHeartBeatInfo(BeatStatistics.compute(vals));
+    }
 
-        stripData = curStrip.getDataAsBytes();
-        vals = ecgFilterModel.getDataMode().process(ecgFilterModel, stripData);
-        int[] peakIndices = Strip.getPeakIndices(vals);
-        int nPeaks = peakIndices.length;
-        int nIntervals = nPeaks - 1;
+    /**
+     * Gets information about the heartbeats from the given statistics.
+     * 
+     * @param stats
+     * @return
+     */
+    private String getHeartBeatInfo(BeatStatistics stats) {
+        String info = "";
+        int nPeaks = stats.getNPeaks();
 
         // Get the statistics
         if(nPeaks == 0) {
@@ -567,53 +755,28 @@ public class EcgStripViewer extends JFrame implements IConstants
             info += "  Only one R peak found, not enough to calculate intervals"
                 + LS;
         } else {
-            rsaBaseLine = Strip.getAveragePeakInterval(peakIndices,
-                RSA_AVG_OUTLIER_FRACTION);
-            array = new double[nPeaks];
-            for(int i = 1; i < nPeaks; i++) {
-                array[i] = 60. / INDEX_TO_SEC
-                    / (peakIndices[i] - peakIndices[i - 1]);
-            }
-            maxIndex = -1;
-            minIndex = -1;
-            max = -Double.MAX_VALUE;
-            min = Double.MAX_VALUE;
-            sum = 0.0;
-            sumsq = 0.0;
-            for(int i = 1; i < nPeaks; i++) {
-                val = array[i];
-                if(val > max) {
-                    max = val;
-                    maxIndex = i;
-                }
-                if(val < min) {
-                    min = val;
-                    minIndex = i;
-                }
-                sum += val;
-                sumsq += val * val;
-            }
-            mean = sum / nIntervals;
-            sigma = (sumsq - nIntervals * mean * mean) / (nIntervals - 1);
-            sigma = Math.sqrt(sigma);
+            double max = stats.getMaxBpm();
+            double min = stats.getMinBpm();
+            double rsaBaseLine = stats.getRsaBaseLine();
             info += "  Number of R peaks: " + nPeaks + LS;
-            info += "  Number of intervals: " + nIntervals + LS;
-            info += "  Mean BPM: " + String.format("%.2f", mean) + LS;
-            info += "  BPM Standard Deviation: " + String.format("%.2f", sigma)
+            info += "  Number of intervals: " + stats.getNIntervals() + LS;
+            info += "  Mean BPM: " + String.format("%.2f", stats.getMeanBpm())
                 + LS;
+            info += "  BPM Standard Deviation: "
+                + String.format("%.2f", stats.getSigmaBpm()) + LS;
             info += String.format("  Max BPM: %.2f @ %.2f sec", max,
-                peakIndices[maxIndex] * INDEX_TO_SEC) + LS;
+                stats.getMaxBpmTime()) + LS;
             info += String.format("  Min BPM: %.2f @ %.2f sec", min,
-                peakIndices[minIndex] * INDEX_TO_SEC) + LS;
+                stats.getMinBpmTime()) + LS;
             if(true) {
                 info += String.format("  Min Interval: %.2f sec @ %.2f sec",
-                    60. / max, peakIndices[maxIndex] * INDEX_TO_SEC) + LS;
+                    60. / max, stats.getMaxBpmTime()) + LS;
                 info += String.format("  Max Interval: %.2f sec @ %.2f sec",
-                    60. / min, peakIndices[minIndex] * INDEX_TO_SEC) + LS;
+                    60. / min, stats.getMinBpmTime()) + LS;
             }
             info += "  RSA Baseline: "
-                + String.format("%.2f BPM = %.2f sec", 60. / INDEX_TO_SEC
-                    / rsaBaseLine, rsaBaseLine * INDEX_TO_SEC) + LS;
+                + String.format("%.2f BPM = %.2f sec",
+                    stats.getRsaBaseLineBpm(), rsaBaseLine * INDEX_TO_SEC) + LS;
         }
         return info;
     }
@@ -681,6 +844,240 @@ public class EcgStripViewer extends JFrame implements IConstants
         return ecgFilterModel;
     }
 
+    /**
+     * FileLoader loads a file in the background and adds the strips to the
+     * list in batches as they are made.
+     */
+    private class FileLoader extends SwingWorker<EcgFileModel, Strip>
+        implements EcgFileModel.LoadListener
+    {
+        private File file;
+        private int nStrips;
+        /** Set in done so later batches are ignored. */
+        private boolean finished;
+
+        FileLoader(File file) {
+            this.file = file;
+        }
+
+        @Override
+        protected EcgFileModel doInBackground() {
+            return new EcgFileModel(file.getPath(), this);
+        }
+
+        public void headerLoaded(Header header, int nStrips) {
+            this.nStrips = nStrips;
+        }
+
+        public boolean stripLoaded(Strip strip, int index) {
+            publish(strip);
+            setProgress((int)(100L * (index + 1) / nStrips));
+            return !isCancelled();
+        }
+
+        @Override
+        protected void process(List<Strip> batch) {
+            if(finished || loader != this) {
+                return;
+            }
+            boolean first = listModel.getSize() == 0;
+            listModel.addAll(batch);
+            if(first) {
+                list.setSelectedValue(batch.get(0), false);
+            }
+        }
+
+        @Override
+        protected void done() {
+            loadProgressPanel.finish(this);
+            finished = true;
+            if(loader != this) {
+                return;
+            }
+            loader = null;
+            EcgFileModel newModel;
+            try {
+                newModel = get();
+            } catch(CancellationException ex) {
+                clearFile();
+                return;
+            } catch(InterruptedException ex) {
+                clearFile();
+                return;
+            } catch(ExecutionException ex) {
+                clearFile();
+                Utils.excMsg("Error loading file: " + file.getPath(), ex);
+                return;
+            }
+            model = newModel;
+            if(model.getStrips() != null) {
+                strips = model.getStrips();
+            }
+
+            // Add any strips not yet published
+            int nListed = listModel.getSize();
+            if(nListed < strips.length) {
+                listModel.addAll(Arrays.asList(strips).subList(nListed,
+                    strips.length));
+                if(nListed == 0) {
+                    list.setSelectedValue(strips[0], false);
+                }
+            }
+            setTitle(file.getName());
+        }
+    }
+
+    /**
+     * FileSaver saves a file in the background, showing the progress,
+     * throughput, and estimated time remaining.
+     */
+    private class FileSaver extends SwingWorker<Void, String> implements
+        EcgFileWriter.SaveListener
+    {
+        /** The minimum time in ns between updates of the progress text. */
+        private static final long UPDATE_INTERVAL = 250000000L;
+
+        private File file;
+        /** The file to extract from or null to process the strips. */
+        private File srcFile;
+        /** The positions in srcFile of the strips to extract. */
+        private long[] offsets;
+        private String id;
+        private Header header;
+        private Strip[] strips;
+        private List<Integer> stripList;
+        private EcgFilterModel filterModel;
+        private long startTime;
+        private long lastUpdateTime;
+
+        FileSaver(File file, File srcFile, long[] offsets, String id,
+            Header header, Strip[] strips, List<Integer> stripList,
+            EcgFilterModel filterModel) {
+            this.file = file;
+            this.srcFile = srcFile;
+            this.offsets = offsets;
+            this.id = id;
+            this.header = header;
+            this.strips = strips;
+            this.stripList = stripList;
+            this.filterModel = filterModel;
+        }
+
+        @Override
+        protected Void doInBackground() throws IOException {
+            startTime = System.nanoTime();
+            if(srcFile != null) {
+                EcgFileWriter.extractFile(srcFile, file, id, offsets, this);
+            } else {
+                EcgFileWriter.saveFile(file, header, strips, stripList,
+                    filterModel.getDataMode(), filterModel, Runtime
+                        .getRuntime().availableProcessors(), this);
+            }
+            return null;
+        }
+
+        public boolean stripsWritten(int nWritten, int nTotal) {
+            setProgress((int)(100L * nWritten / nTotal));
+            long now = System.nanoTime();
+            if(now - lastUpdateTime >= UPDATE_INTERVAL || nWritten == nTotal) {
+                lastUpdateTime = now;
+                double elapsed = (now - startTime) * 1e-9;
+                double rate = elapsed > 0 ? nWritten / elapsed : 0;
+                String text = nWritten + " of " + nTotal + " strips";
+                if(rate > 0) {
+                    text += String.format(", %.0f strips/s, %s left", rate,
+                        formatDuration((nTotal - nWritten) / rate));
+                }
+                publish(text);
+            }
+            return !isCancelled();
+        }
+
+        @Override
+        protected void process(List<String> texts) {
+            if(!isDone()) {
+                saveProgressPanel.setProgressText(texts
+                    .get(texts.size() - 1));
+            }
+        }
+
+        @Override
+        protected void done() {
+            saveProgressPanel.finish(this);
+            saver = null;
+            try {
+                get();
+            } catch(CancellationException ex) {
+                // The partial file is deleted when the writing stops
+            } catch(InterruptedException ex) {
+                // Do nothing
+            } catch(ExecutionException ex) {
+                Throwable cause = ex.getCause();
+                if(!(cause instanceof InterruptedIOException)) {
+                    Utils.excMsg("Error saving file:" + LS + file.getPath(),
+                        ex);
+                }
+            }
+        }
+    }
+
+    /**
+     * ReportWriter writes a StripReport in the background.
+     */
+    private class ReportWriter extends SwingWorker<Void, Void> implements
+        StripReport.ReportListener
+    {
+        private File file;
+        private StripReport report;
+
+        ReportWriter(File file, StripReport report) {
+            this.file = file;
+            this.report = report;
+        }
+
+        @Override
+        protected Void doInBackground() throws IOException {
+            report.write(file, Runtime.getRuntime().availableProcessors(),
+                this);
+            return null;
+        }
+
+        public boolean pagesWritten(int nWritten, int nTotal) {
+            setProgress((int)(100L * nWritten / nTotal));
+            return !isCancelled();
+        }
+
+        @Override
+        protected void done() {
+            reportProgressPanel.finish(this);
+            reportWriter = null;
+            try {
+                get();
+            } catch(CancellationException ex) {
+                // The partial report is deleted when the writing stops
+            } catch(InterruptedException ex) {
+                // Do nothing
+            } catch(ExecutionException ex) {
+                Throwable cause = ex.getCause();
+                if(!(cause instanceof InterruptedIOException)) {
+                    Utils.excMsg("Error writing report:" + LS
+                        + file.getPath(), ex);
+                }
+            }
+        }
+    }
+
+    /**
+     * Formats a time as minutes and seconds.
+     * 
+     * @param seconds
+     * @return
+     */
+    private static String formatDuration(double seconds) {
+        long total = Math.round(seconds);
+        return String.format("%d:%02d", total / 60, total % 60);
+    }
+
     /**
      * Main method.
      * 
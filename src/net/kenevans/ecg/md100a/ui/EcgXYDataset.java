@@ -0,0 +1,291 @@
+package net.kenevans.ecg.md100a.ui;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.jfree.data.DomainOrder;
+import org.jfree.data.xy.AbstractXYDataset;
+
+/**
+ * EcgXYDataset is an XYDataset backed directly by arrays of doubles. Each
+ * series is a view of a section of a y array, read with an offset added,
+ * against an x array that is usually shared by all the series. Nothing is
+ * copied or boxed when a series is added, and listeners are notified only
+ * when fireDatasetChanged is called, so a plot with many series is built
+ * with one change event.<br>
+ * <br>
+ * The x values must be ascending, which lets the renderer skip points outside
+ * the visible range.<br>
+ * <br>
+ * If an x resolution is set, typically the x extent of one column of pixels,
+ * series with more than MIN_POINTS_PER_COLUMN points per column are
+ * decimated. Each column is represented by the points with its minimum and
+ * maximum values, in their original order, so the peaks are kept. The
+ * columns are aligned to the first x value, so panning does not change them,
+ * and the decimated points are found when they are first needed after the
+ * resolution changes. The number of points rendered then depends on the
+ * width of the plot rather than the number of samples.
+ */
+public class EcgXYDataset extends AbstractXYDataset
+{
+    private static final long serialVersionUID = 1L;
+
+    /** The number of points per column above which a series is decimated. */
+    public static final double MIN_POINTS_PER_COLUMN = 2;
+
+    /**
+     * Series is one series in the dataset.
+     */
+    private static class Series
+    {
+        private Comparable<?> key;
+        private double[] xVals;
+        private double[] yVals;
+        /** The index in yVals of the first point or -1 for a constant. */
+        private int start;
+        private double offset;
+        /** The indices of the decimated points or null if not decimated. */
+        private int[] lodIndices;
+        /** The resolution used for lodIndices or NaN if not found yet. */
+        private double lodResolution = Double.NaN;
+
+        Series(Comparable<?> key, double[] xVals, double[] yVals, int start,
+            double offset) {
+            this.key = key;
+            this.xVals = xVals;
+            this.yVals = yVals;
+            this.start = start;
+            this.offset = offset;
+        }
+
+        double getY(int item) {
+            if(start < 0) {
+                return yVals[0] + offset;
+            }
+            int index = start + item;
+            // In case yVals does not fill the series
+            if(index >= yVals.length) {
+                return Double.NaN;
+            }
+            return yVals[index] + offset;
+        }
+
+        /**
+         * Finds the decimated points for the given resolution if they are not
+         * already known.
+         * 
+         * @param resolution The x extent of one column or 0 for none.
+         */
+        void decimate(double resolution) {
+            if(resolution == lodResolution) {
+                return;
+            }
+            lodResolution = resolution;
+            lodIndices = null;
+            int nPoints = xVals.length;
+            if(resolution <= 0 || nPoints < 3) {
+                return;
+            }
+            double x0 = xVals[0];
+            double dx = (xVals[nPoints - 1] - x0) / (nPoints - 1);
+            if(dx <= 0 || resolution / dx <= MIN_POINTS_PER_COLUMN) {
+                return;
+            }
+            if(start < 0) {
+                // A constant only needs the end points
+                lodIndices = new int[] {0, nPoints - 1};
+                return;
+            }
+            int nColumns = (int)((xVals[nPoints - 1] - x0) / resolution) + 1;
+            int[] indices = new int[2 * nColumns + 2];
+            int n = 0;
+            int column = 0;
+            int minIndex = -1, maxIndex = -1;
+            double min = Double.NaN, max = Double.NaN;
+            double y;
+            for(int i = 0; i <= nPoints; i++) {
+                int newColumn = i < nPoints ? (int)((xVals[i] - x0)
+                    / resolution) : -1;
+                if(newColumn != column) {
+                    // Finish the column
+                    if(minIndex < 0) {
+                        // All missing, so keep the gap
+                        indices[n++] = i - 1;
+                    } else if(minIndex == maxIndex) {
+                        indices[n++] = minIndex;
+                    } else {
+                        indices[n++] = Math.min(minIndex, maxIndex);
+                        indices[n++] = Math.max(minIndex, maxIndex);
+                    }
+                    if(i == nPoints) {
+                        break;
+                    }
+                    column = newColumn;
+                    minIndex = maxIndex = -1;
+                }
+                y = getY(i);
+                if(Double.isNaN(y)) {
+                    continue;
+                }
+                if(minIndex < 0 || y < min) {
+                    min = y;
+                    minIndex = i;
+                }
+                if(maxIndex < 0 || y > max) {
+                    max = y;
+                    maxIndex = i;
+                }
+            }
+            lodIndices = Arrays.copyOf(indices, n);
+        }
+
+        /**
+         * @return The number of points, decimated if appropriate.
+         */
+        int getItemCount() {
+            return lodIndices == null ? xVals.length : lodIndices.length;
+        }
+
+        /**
+         * @param item
+         * @return The index of the point for the given item.
+         */
+        int getIndex(int item) {
+            return lodIndices == null ? item : lodIndices[item];
+        }
+    }
+
+    private List<Series> seriesList = new ArrayList<Series>();
+    /** The x extent of one column for decimation or 0 for none. */
+    private double xResolution;
+
+    /**
+     * Adds a series that uses yVals starting at start. The arrays are not
+     * copied and should not be changed while they are in the dataset. Does
+     * not notify the listeners.
+     * 
+     * @param key The key for the series.
+     * @param xVals The x values, which must be ascending.
+     * @param yVals The y values. Points past the end of the array are
+     *            missing.
+     * @param start The index in yVals corresponding to the first x value.
+     * @param offset A value to add to the y values.
+     * @return The index of the new series.
+     */
+    public int addSeries(Comparable<?> key, double[] xVals, double[] yVals,
+        int start, double offset) {
+        seriesList.add(new Series(key, xVals, yVals, start, offset));
+        return seriesList.size() - 1;
+    }
+
+    /**
+     * Adds a series with a constant y value. Does not notify the listeners.
+     * 
+     * @param key The key for the series.
+     * @param xVals The x values, which must be ascending.
+     * @param value The y value.
+     * @return The index of the new series.
+     */
+    public int addConstantSeries(Comparable<?> key, double[] xVals,
+        double value) {
+        seriesList.add(new Series(key, xVals, new double[] {value}, -1, 0));
+        return seriesList.size() - 1;
+    }
+
+    /**
+     * Removes all the series and notifies the listeners.
+     */
+    public void removeAllSeries() {
+        if(seriesList.isEmpty()) {
+            return;
+        }
+        seriesList.clear();
+        fireDatasetChanged();
+    }
+
+    /**
+     * Sets the x resolution used to decimate the series. Does not notify the
+     * listeners, since this is normally called when the axis or the size of
+     * the plot changes, which causes the plot to be redrawn anyway.
+     * 
+     * @param xResolution The x extent of one column of pixels or 0 for no
+     *            decimation.
+     */
+    public void setXResolution(double xResolution) {
+        if(Double.isNaN(xResolution) || Double.isInfinite(xResolution)
+            || xResolution < 0) {
+            xResolution = 0;
+        }
+        this.xResolution = xResolution;
+    }
+
+    /**
+     * @return The x extent of one column for decimation or 0 for none.
+     */
+    public double getXResolution() {
+        return xResolution;
+    }
+
+    /**
+     * Gets the series, decimated for the current resolution.
+     * 
+     * @param series
+     * @return
+     */
+    private Series getSeries(int series) {
+        Series s = seriesList.get(series);
+        s.decimate(xResolution);
+        return s;
+    }
+
+    /**
+     * Notifies the listeners that the dataset has changed. Call this after
+     * adding series.
+     */
+    @Override
+    public void fireDatasetChanged() {
+        super.fireDatasetChanged();
+    }
+
+    @Override
+    public DomainOrder getDomainOrder() {
+        return DomainOrder.ASCENDING;
+    }
+
+    @Override
+    public int getSeriesCount() {
+        return seriesList.size();
+    }
+
+    @Override
+    public Comparable getSeriesKey(int series) {
+        return seriesList.get(series).key;
+    }
+
+    public int getItemCount(int series) {
+        return getSeries(series).getItemCount();
+    }
+
+    @Override
+    public double getXValue(int series, int item) {
+        Series s = getSeries(series);
+        return s.xVals[s.getIndex(item)];
+    }
+
+    @Override
+    public double getYValue(int series, int item) {
+        Series s = getSeries(series);
+        return s.getY(s.getIndex(item));
+    }
+
+    public Number getX(int series, int item) {
+        return getXValue(series, item);
+    }
+
+    public Number getY(int series, int item) {
+        double y = getYValue(series, item);
+        return Double.isNaN(y) ? null : y;
+    }
+
+}
@@ -1,4 +1,4 @@
-package net.kenevans.ecg.md100a.model;
+package net.kenevans.ecg.md100a.ui;
 
 import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
@@ -6,7 +6,7 @@ import java.io.FileOutputStream;
 import java.io.OutputStream;
 
 import net.kenevans.core.utils.Utils;
-import net.kenevans.ecg.md100a.ui.EcgStripViewer;
+import net.kenevans.ecg.md100a.model.EcgFileModel;
 
 /*
  * Created on Jun 27, 2012
@@ -0,0 +1,117 @@
+package net.kenevans.ecg.md100a.ui;
+
+import java.awt.BorderLayout;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
+
+import javax.swing.BorderFactory;
+import javax.swing.JButton;
+import javax.swing.JLabel;
+import javax.swing.JPanel;
+import javax.swing.JProgressBar;
+import javax.swing.SwingWorker;
+
+/**
+ * ProgressPanel shows the progress of a SwingWorker with a label, a progress
+ * bar, and a Cancel button. It is hidden when no worker is running. The bar
+ * is indeterminate until the worker sets its progress.
+ */
+public class ProgressPanel extends JPanel
+{
+    private static final long serialVersionUID = 1L;
+
+    private JLabel label = new JLabel();
+    private JProgressBar progressBar = new JProgressBar(0, 100);
+    private JButton cancelButton = new JButton("Cancel");
+    private SwingWorker<?, ?> worker;
+
+    private PropertyChangeListener progressListener =
+        new PropertyChangeListener() {
+            public void propertyChange(PropertyChangeEvent ev) {
+                if(ev.getSource() == worker
+                    && "progress".equals(ev.getPropertyName())) {
+                    progressBar.setIndeterminate(false);
+                    progressBar.setValue((Integer)ev.getNewValue());
+                }
+            }
+        };
+
+    /**
+     * ProgressPanel constructor.
+     */
+    public ProgressPanel() {
+        setLayout(new BorderLayout(5, 0));
+        setBorder(BorderFactory.createEmptyBorder(2, 4, 2, 4));
+        progressBar.setStringPainted(true);
+        add(label, BorderLayout.WEST);
+        add(progressBar, BorderLayout.CENTER);
+        add(cancelButton, BorderLayout.EAST);
+        cancelButton.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent ev) {
+                if(worker != null) {
+                    worker.cancel(false);
+                }
+            }
+        });
+        setVisible(false);
+    }
+
+    /**
+     * Shows the panel for the given worker. Call this on the event dispatch
+     * thread before executing the worker.
+     * 
+     * @param text The text for the label.
+     * @param worker
+     */
+    public void start(String text, SwingWorker<?, ?> worker) {
+        if(this.worker != null) {
+            this.worker.removePropertyChangeListener(progressListener);
+        }
+        this.worker = worker;
+        worker.addPropertyChangeListener(progressListener);
+        label.setText(text);
+        progressBar.setValue(0);
+        progressBar.setString(null);
+        progressBar.setIndeterminate(true);
+        cancelButton.setEnabled(true);
+        setVisible(true);
+        revalidate();
+    }
+
+    /**
+     * Sets the text of the label.
+     * 
+     * @param text
+     */
+    public void setText(String text) {
+        label.setText(text);
+    }
+
+    /**
+     * Sets the text shown in the progress bar. Null shows the percentage.
+     * 
+     * @param text
+     */
+    public void setProgressText(String text) {
+        progressBar.setString(text);
+    }
+
+    /**
+     * Hides the panel if it is showing the given worker. Call this from the
+     * worker's done method.
+     * 
+     * @param worker
+     */
+    public void finish(SwingWorker<?, ?> worker) {
+        if(this.worker != worker) {
+            return;
+        }
+        worker.removePropertyChangeListener(progressListener);
+        this.worker = null;
+        setVisible(false);
+        revalidate();
+    }
+
+}
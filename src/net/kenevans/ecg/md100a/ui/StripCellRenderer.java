@@ -0,0 +1,370 @@
+package net.kenevans.ecg.md100a.ui;
+
+import java.awt.Color;
+import java.awt.Component;
+import java.awt.Graphics;
+import java.awt.Rectangle;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import javax.swing.DefaultListCellRenderer;
+import javax.swing.Icon;
+import javax.swing.JLabel;
+import javax.swing.JList;
+import javax.swing.SwingUtilities;
+
+import net.kenevans.ecg.md100a.model.IConstants;
+import net.kenevans.ecg.md100a.model.Strip;
+import net.kenevans.ecg.md100a.model.StripThumbnail;
+import net.kenevans.ecg.md100a.model.ThumbnailCache;
+
+/**
+ * StripCellRenderer shows a strip in the list with a sparkline of its trace
+ * and its heart rate found from the R peaks, as well as the text from the
+ * strip header. The StripThumbnails are made in the background the first
+ * time a row is shown and kept in an LRU cache and in a ThumbnailCache file
+ * next to the .cEcg file. Until a thumbnail is ready the row is shown with a
+ * blank sparkline. Rows that have been scrolled out of view before their
+ * turn are skipped, so scrolling quickly through a long list does not leave
+ * a backlog.<br>
+ * <br>
+ * The cell height is fixed, and the cell width is the widest row shown so
+ * far, so the list never has to measure every row. The methods should be
+ * called on the event dispatch thread.
+ */
+public class StripCellRenderer extends DefaultListCellRenderer implements
+    IConstants
+{
+    private static final long serialVersionUID = 1L;
+    /** The width of the sparklines, which is the number of columns. */
+    public static final int THUMBNAIL_WIDTH = 120;
+    /** The height of the sparklines. */
+    private static final int THUMBNAIL_HEIGHT = 20;
+    /** The range of the sparkline above and below the center in mm. */
+    private static final double Y_RANGE = 15;
+    /** The maximum number of thumbnails kept in memory. */
+    private static final int MAX_CACHED = 1024;
+    /** How many rows outside the visible ones are still worth making. */
+    private static final int VISIBLE_MARGIN = 10;
+
+    private JList list;
+    private SparklineIcon icon = new SparklineIcon();
+    /** The widest row shown so far. */
+    private int cellWidth;
+    /** The thumbnails made, least recent first. */
+    private Map<Integer, StripThumbnail> cache =
+        new LinkedHashMap<Integer, StripThumbnail>(MAX_CACHED, .75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(
+                Map.Entry<Integer, StripThumbnail> eldest) {
+                return size() > MAX_CACHED;
+            }
+        };
+    /** The rows whose thumbnails are being made. */
+    private Set<Integer> pending = new HashSet<Integer>();
+    private ExecutorService pool;
+    /** Incremented when the file changes, so old work is discarded. */
+    private volatile int generation;
+    private volatile int firstVisible;
+    private volatile int lastVisible;
+    /** The file the strips came from or null. */
+    private File ecgFile;
+    /** The cache file, opened when it is first needed. */
+    private ThumbnailCache diskCache;
+    /** Whether opening the cache file has been tried. */
+    private boolean diskCacheOpened;
+
+    /**
+     * StripCellRenderer constructor. Sets the cell size of the list.
+     * 
+     * @param list The list that uses this renderer.
+     */
+    public StripCellRenderer(JList list) {
+        this.list = list;
+        int nThreads = Math.max(1, Runtime.getRuntime().availableProcessors()
+            - 1);
+        pool = Executors.newFixedThreadPool(nThreads, new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "StripCellRenderer");
+                // Do not keep the application running
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+        list.setFixedCellHeight(Math.max(THUMBNAIL_HEIGHT + 4, list
+            .getFontMetrics(list.getFont()).getHeight() + 4));
+        cellWidth = THUMBNAIL_WIDTH;
+        list.setFixedCellWidth(cellWidth);
+    }
+
+    /**
+     * Sets the file the strips in the list come from, discarding the
+     * thumbnails for the previous one. The strips should be in file order.
+     * 
+     * @param file The file or null if there is none.
+     */
+    public void setFile(File file) {
+        cache.clear();
+        pending.clear();
+        synchronized(this) {
+            generation++;
+            if(diskCache != null) {
+                try {
+                    diskCache.close();
+                } catch(IOException ex) {
+                    // Ignore it, since it is only a cache
+                }
+            }
+            diskCache = null;
+            diskCacheOpened = false;
+            ecgFile = file;
+        }
+    }
+
+    @Override
+    public Component getListCellRendererComponent(JList list, Object value,
+        int index, boolean isSelected, boolean cellHasFocus) {
+        JLabel label = (JLabel)super.getListCellRendererComponent(list,
+            value, index, isSelected, cellHasFocus);
+        Strip strip = (Strip)value;
+        StripThumbnail thumbnail = getThumbnail(index, strip);
+        icon.thumbnail = thumbnail;
+        label.setIcon(icon);
+        String text = (index + 1) + " " + strip.getStringDate() + " "
+            + strip.getStringTime(false) + " " + strip.getHeartRate()
+            + " bpm" + " " + strip.getDiagnosisString();
+        if(thumbnail != null && !Float.isNaN(thumbnail.getBpm())) {
+            text += String.format(" | %.1f BPM", thumbnail.getBpm());
+        }
+        label.setText(text);
+
+        // Widen the cells if this row does not fit
+        int width = label.getPreferredSize().width;
+        if(width > cellWidth) {
+            cellWidth = width;
+            SwingUtilities.invokeLater(new Runnable() {
+                public void run() {
+                    StripCellRenderer.this.list.setFixedCellWidth(cellWidth);
+                }
+            });
+        }
+        return label;
+    }
+
+    /**
+     * Gets the thumbnail for a row, starting to make it if it is not ready.
+     * 
+     * @param index
+     * @param strip
+     * @return The thumbnail or null if it is not ready.
+     */
+    private StripThumbnail getThumbnail(int index, Strip strip) {
+        StripThumbnail thumbnail = cache.get(index);
+        if(thumbnail != null || index < 0) {
+            return thumbnail;
+        }
+        firstVisible = list.getFirstVisibleIndex();
+        lastVisible = list.getLastVisibleIndex();
+        if(pending.add(index)) {
+            pool.execute(new ThumbnailTask(index, strip, generation));
+        }
+        return null;
+    }
+
+    /**
+     * Reads a thumbnail from the cache file. Called from the pool.
+     * 
+     * @param index
+     * @param taskGeneration The generation when the task was started.
+     * @return The thumbnail or null if it is not in the cache file or the
+     *         file has changed.
+     */
+    private synchronized StripThumbnail readThumbnail(int index,
+        int taskGeneration) {
+        if(taskGeneration != generation || getDiskCache() == null) {
+            return null;
+        }
+        try {
+            return diskCache.read(index);
+        } catch(IOException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Writes a thumbnail to the cache file unless the file has changed.
+     * Called from the pool.
+     * 
+     * @param index
+     * @param taskGeneration The generation when the task was started.
+     * @param thumbnail
+     */
+    private synchronized void writeThumbnail(int index, int taskGeneration,
+        StripThumbnail thumbnail) {
+        if(taskGeneration != generation || getDiskCache() == null) {
+            return;
+        }
+        try {
+            diskCache.write(index, thumbnail);
+        } catch(IOException ex) {
+            // Ignore it, since it is only a cache
+        }
+    }
+
+    /**
+     * Gets the cache file, opening it the first time. Called with the lock
+     * held.
+     * 
+     * @return The cache file or null if there is none.
+     */
+    private ThumbnailCache getDiskCache() {
+        if(!diskCacheOpened) {
+            diskCacheOpened = true;
+            if(ecgFile != null && ecgFile.exists()) {
+                try {
+                    diskCache = new ThumbnailCache(ecgFile, THUMBNAIL_WIDTH);
+                } catch(IOException ex) {
+                    // Make the thumbnails without it
+                    diskCache = null;
+                }
+            }
+        }
+        return diskCache;
+    }
+
+    /**
+     * Stores a thumbnail that has been made and shows it. Called on the
+     * event dispatch thread.
+     * 
+     * @param index
+     * @param taskGeneration The generation when the task was started.
+     * @param thumbnail The thumbnail or null if the row was skipped.
+     */
+    private void finish(int index, int taskGeneration,
+        StripThumbnail thumbnail) {
+        if(taskGeneration != generation) {
+            return;
+        }
+        pending.remove(index);
+        if(thumbnail == null) {
+            return;
+        }
+        cache.put(index, thumbnail);
+        if(index < list.getModel().getSize()) {
+            Rectangle bounds = list.getCellBounds(index, index);
+            if(bounds != null) {
+                list.repaint(bounds);
+            }
+        }
+    }
+
+    /**
+     * ThumbnailTask reads or makes the thumbnail for a row unless the row is
+     * no longer near the visible ones.
+     */
+    private class ThumbnailTask implements Runnable
+    {
+        private int index;
+        private Strip strip;
+        private int taskGeneration;
+
+        ThumbnailTask(int index, Strip strip, int taskGeneration) {
+            this.index = index;
+            this.strip = strip;
+            this.taskGeneration = taskGeneration;
+        }
+
+        public void run() {
+            StripThumbnail thumbnail = null;
+            if(taskGeneration == generation
+                && index >= firstVisible - VISIBLE_MARGIN
+                && index <= lastVisible + VISIBLE_MARGIN) {
+                thumbnail = makeThumbnail();
+            }
+            final StripThumbnail result = thumbnail;
+            SwingUtilities.invokeLater(new Runnable() {
+                public void run() {
+                    finish(index, taskGeneration, result);
+                }
+            });
+        }
+
+        /**
+         * @return The thumbnail from the cache file or computed.
+         */
+        private StripThumbnail makeThumbnail() {
+            StripThumbnail thumbnail = readThumbnail(index, taskGeneration);
+            if(thumbnail != null) {
+                return thumbnail;
+            }
+            try {
+                thumbnail = StripThumbnail.compute(strip, THUMBNAIL_WIDTH);
+            } catch(IOException ex) {
+                // Show it without a sparkline and do not try again
+                return new StripThumbnail(new short[0], new short[0],
+                    Float.NaN);
+            }
+            writeThumbnail(index, taskGeneration, thumbnail);
+            return thumbnail;
+        }
+    }
+
+    /**
+     * SparklineIcon draws the minimum and maximum in each column of a
+     * thumbnail, or a line if there is none.
+     */
+    private static class SparklineIcon implements Icon
+    {
+        private static final Color TRACE_COLOR = Color.RED;
+        private static final Color BLANK_COLOR = Color.LIGHT_GRAY;
+        private StripThumbnail thumbnail;
+
+        public int getIconWidth() {
+            return THUMBNAIL_WIDTH;
+        }
+
+        public int getIconHeight() {
+            return THUMBNAIL_HEIGHT;
+        }
+
+        public void paintIcon(Component c, Graphics g, int x, int y) {
+            int mid = y + THUMBNAIL_HEIGHT / 2;
+            if(thumbnail == null || thumbnail.getNColumns() == 0) {
+                g.setColor(BLANK_COLOR);
+                g.drawLine(x, mid, x + THUMBNAIL_WIDTH - 1, mid);
+                return;
+            }
+            g.setColor(TRACE_COLOR);
+            short[] mins = thumbnail.getMins();
+            short[] maxs = thumbnail.getMaxs();
+            int nColumns = Math.min(thumbnail.getNColumns(), THUMBNAIL_WIDTH);
+            for(int col = 0; col < nColumns; col++) {
+                g.drawLine(x + col, getY(maxs[col], y), x + col, getY(
+                    mins[col], y));
+            }
+        }
+
+        /**
+         * @param count
+         * @param y The top of the icon.
+         * @return The y coordinate of a count, clipped to the icon.
+         */
+        private int getY(short count, int y) {
+            double mm = (count - 512) * mmPerUnit;
+            double fraction = .5 - .5 * mm / Y_RANGE;
+            fraction = Math.max(0, Math.min(1, fraction));
+            return y + (int)Math.round(fraction * (THUMBNAIL_HEIGHT - 1));
+        }
+    }
+
+}
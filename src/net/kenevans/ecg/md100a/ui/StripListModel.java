@@ -0,0 +1,54 @@
+package net.kenevans.ecg.md100a.ui;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.swing.AbstractListModel;
+
+import net.kenevans.ecg.md100a.model.Strip;
+
+/**
+ * StripListModel is a list model for Strips that adds them in batches, with
+ * one event per batch rather than one per strip.
+ */
+public class StripListModel extends AbstractListModel
+{
+    private static final long serialVersionUID = 1L;
+
+    private List<Strip> strips = new ArrayList<Strip>();
+
+    public int getSize() {
+        return strips.size();
+    }
+
+    public Strip getElementAt(int index) {
+        return strips.get(index);
+    }
+
+    /**
+     * Adds the given strips at the end.
+     * 
+     * @param batch
+     */
+    public void addAll(List<Strip> batch) {
+        if(batch.isEmpty()) {
+            return;
+        }
+        int start = strips.size();
+        strips.addAll(batch);
+        fireIntervalAdded(this, start, strips.size() - 1);
+    }
+
+    /**
+     * Removes all the strips.
+     */
+    public void clear() {
+        int size = strips.size();
+        if(size == 0) {
+            return;
+        }
+        strips.clear();
+        fireIntervalRemoved(this, 0, size - 1);
+    }
+
+}
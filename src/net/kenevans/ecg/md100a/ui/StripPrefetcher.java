@@ -0,0 +1,237 @@
+package net.kenevans.ecg.md100a.ui;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+
+import javax.swing.ListModel;
+
+import net.kenevans.ecg.md100a.model.Strip;
+
+/**
+ * StripPrefetcher prepares the strips next to the selected one in the
+ * background, so that moving to an adjacent strip only has to show it. The
+ * strips are prepared with EcgPlot.prepare in the order next, previous,
+ * second next, second previous, and so on. When the selection moves, work
+ * that is no longer near it and has not started is cancelled. The prepared
+ * strips are kept in an LRU cache keyed by the strip and the PlotSettings, so
+ * changing the settings does not give stale results.<br>
+ * <br>
+ * The methods should be called on the event dispatch thread.
+ */
+public class StripPrefetcher
+{
+    /** The default number of strips to prepare on each side. */
+    public static final int DEFAULT_N_NEIGHBORS = 3;
+    /** The maximum number of prepared strips kept. */
+    private static final int MAX_CACHED = 32;
+
+    /**
+     * Key identifies a prepared strip. Strips are compared by identity.
+     */
+    private static class Key
+    {
+        private final Strip strip;
+        private final EcgPlot.PlotSettings settings;
+
+        Key(Strip strip, EcgPlot.PlotSettings settings) {
+            this.strip = strip;
+            this.settings = settings;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if(!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key)obj;
+            return strip == other.strip && settings.equals(other.settings);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * System.identityHashCode(strip) + settings.hashCode();
+        }
+    }
+
+    /**
+     * PrepareTask prepares the strip for a key and records whether it has
+     * started.
+     */
+    private static class PrepareTask extends FutureTask<EcgPlot.PreparedStrip>
+    {
+        private volatile boolean started;
+
+        PrepareTask(final Key key) {
+            super(new Callable<EcgPlot.PreparedStrip>() {
+                public EcgPlot.PreparedStrip call() {
+                    return EcgPlot.prepare(key.strip, key.settings);
+                }
+            });
+        }
+
+        @Override
+        public void run() {
+            started = true;
+            super.run();
+        }
+    }
+
+    private int nNeighbors;
+    private ExecutorService pool;
+    /** The prepared or pending strips, least recent first. */
+    private Map<Key, PrepareTask> cache = new LinkedHashMap<Key, PrepareTask>(
+        MAX_CACHED, .75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, PrepareTask> eldest) {
+            if(size() > MAX_CACHED) {
+                eldest.getValue().cancel(false);
+                return true;
+            }
+            return false;
+        }
+    };
+
+    /**
+     * StripPrefetcher constructor.
+     * 
+     * @param nNeighbors The number of strips to prepare on each side of the
+     *            selected one.
+     */
+    public StripPrefetcher(int nNeighbors) {
+        this.nNeighbors = nNeighbors;
+        // Leave a processor for the event dispatch thread
+        int nThreads = Math.max(1, Math.min(nNeighbors, Runtime.getRuntime()
+            .availableProcessors() - 1));
+        pool = Executors.newFixedThreadPool(nThreads, new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "StripPrefetcher");
+                // Do not keep the application running
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Gets the prepared strip for the given strip and settings. If it has
+     * been prepared, it is returned at once. If it is being prepared, this
+     * waits for it. Otherwise it is prepared on the calling thread, and any
+     * pending work for it is cancelled.
+     * 
+     * @param strip
+     * @param settings
+     * @return
+     */
+    public EcgPlot.PreparedStrip get(Strip strip,
+        EcgPlot.PlotSettings settings) {
+        Key key = new Key(strip, settings);
+        PrepareTask task = cache.get(key);
+        if(task == null || task.isCancelled() || !task.started) {
+            if(task != null) {
+                task.cancel(false);
+            }
+            task = new PrepareTask(key);
+            cache.put(key, task);
+            task.run();
+        }
+        try {
+            return task.get();
+        } catch(InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return EcgPlot.prepare(strip, settings);
+        } catch(ExecutionException ex) {
+            // Let the caller handle it as if prepare had been called directly
+            cache.remove(key);
+            Throwable cause = ex.getCause();
+            if(cause instanceof RuntimeException) {
+                throw (RuntimeException)cause;
+            }
+            throw (Error)cause;
+        }
+    }
+
+    /**
+     * Starts preparing the strips near the one at the given index, and
+     * cancels pending work for strips that are no longer near it.
+     * 
+     * @param strips The list of strips.
+     * @param index The index of the selected strip in the list.
+     * @param settings
+     */
+    public void prefetch(ListModel strips, int index,
+        EcgPlot.PlotSettings settings) {
+        int nStrips = strips.getSize();
+        Set<Key> wanted = new HashSet<Key>();
+        for(int i = Math.max(0, index - nNeighbors); i <= index + nNeighbors
+            && i < nStrips; i++) {
+            wanted.add(new Key((Strip)strips.getElementAt(i), settings));
+        }
+
+        // Cancel work that has not started and is no longer wanted. Work that
+        // has started is left to finish, since it will be cached.
+        Iterator<Map.Entry<Key, PrepareTask>> iter = cache.entrySet()
+            .iterator();
+        PrepareTask task;
+        while(iter.hasNext()) {
+            Map.Entry<Key, PrepareTask> entry = iter.next();
+            task = entry.getValue();
+            if(!task.started && !wanted.contains(entry.getKey())) {
+                task.cancel(false);
+                iter.remove();
+            }
+        }
+
+        // Start the work, nearest first
+        for(int d = 1; d <= nNeighbors; d++) {
+            submit(strips, index + d, settings);
+            submit(strips, index - d, settings);
+        }
+    }
+
+    /**
+     * Starts preparing the strip at the given index if it is in the list and
+     * not already in the cache.
+     * 
+     * @param strips
+     * @param index
+     * @param settings
+     */
+    private void submit(ListModel strips, int index,
+        EcgPlot.PlotSettings settings) {
+        if(index < 0 || index >= strips.getSize()) {
+            return;
+        }
+        Key key = new Key((Strip)strips.getElementAt(index), settings);
+        PrepareTask task = cache.get(key);
+        if(task != null && !task.isCancelled()) {
+            return;
+        }
+        task = new PrepareTask(key);
+        cache.put(key, task);
+        pool.execute(task);
+    }
+
+    /**
+     * Cancels all pending work and empties the cache. Call this when the
+     * strips change.
+     */
+    public void clear() {
+        for(PrepareTask task : cache.values()) {
+            task.cancel(false);
+        }
+        cache.clear();
+    }
+
+}
@@ -0,0 +1,474 @@
+package net.kenevans.ecg.md100a.ui;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Paint;
+import java.awt.RenderingHints;
+import java.awt.Shape;
+import java.awt.Stroke;
+import java.awt.geom.Line2D;
+import java.awt.geom.Path2D;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+
+import net.kenevans.ecg.md100a.model.IConstants;
+
+/**
+ * StripRenderer draws a strip prepared by EcgPlot.prepare directly with a
+ * Graphics2D, laid out as EcgPlot shows it: the trace in one or more
+ * sub-plots on an ECG grid, with the RSA values and base lines. It does not
+ * use a ChartPanel or any other component, so it works in headless AWT and
+ * can draw into a BufferedImage or a vector Graphics2D such as the one for a
+ * PDF page.<br>
+ * <br>
+ * The settings should not be changed while it is drawing, but otherwise it
+ * can be used by several threads at once.
+ */
+public class StripRenderer implements IConstants
+{
+    /** The domain maximum in sec. */
+    private static final double XMAX = 30;
+    /** The total height at a data scale of 1 in mm. */
+    private static final double TOTAL_HEIGHT = 60;
+    /** The spacing of the fine grid lines in mm. */
+    private static final double GRID_MM = 1;
+    /** The number of fine grid spacings between the coarse lines. */
+    private static final int GRID_COARSE = 5;
+    /** The paper speed in mm/sec. */
+    private static final double MM_PER_SEC = 25;
+    /** The minimum spacing of the fine grid lines in pixels or points. */
+    private static final double MIN_GRID_SPACING = 2;
+
+    private int nSubPlots = 1;
+    private double dataScale = 1;
+    private double rsaScale = 20;
+    private boolean showRSA = true;
+    private boolean showGrid = true;
+    /** Whether to reduce the trace to the pixel columns of the device. */
+    private boolean decimate = true;
+    /** The width of the trace in user units. */
+    private float lineWidth = 1;
+
+    private Paint stripColor = Color.RED;
+    private Paint rsaColor = new Color(0, 153, 255);
+    private Paint rsaBaseLineColor = new Color(0, 0, 255);
+    private Paint baseLineColor = Color.BLACK;
+    private Paint gridColor = new Color(255, 210, 210);
+    private Paint coarseGridColor = new Color(240, 150, 150);
+    private Paint backgroundColor = Color.WHITE;
+
+    /**
+     * Draws the given strip filling the given area.
+     * 
+     * @param g
+     * @param prepared The strip. Nothing is drawn but the grid if it has no
+     *            data.
+     * @param area The area in user coordinates.
+     */
+    public void draw(Graphics2D g, EcgPlot.PreparedStrip prepared,
+        Rectangle2D area) {
+        Shape oldClip = g.getClip();
+        Paint oldPaint = g.getPaint();
+        Stroke oldStroke = g.getStroke();
+        Object oldAntialias = g
+            .getRenderingHint(RenderingHints.KEY_ANTIALIASING);
+        try {
+            g.clip(area);
+            g.setPaint(backgroundColor);
+            g.fill(area);
+            double totalHeight = TOTAL_HEIGHT / dataScale;
+            double xMax = XMAX / nSubPlots;
+            // Assume there is no rotation
+            double deviceScale = Math.abs(g.getTransform().getScaleX());
+            Mapping map = new Mapping(area, xMax, totalHeight,
+                deviceScale > 0 ? deviceScale : 1);
+            if(showGrid) {
+                drawGrid(g, map, xMax, totalHeight);
+            }
+            g.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
+                RenderingHints.VALUE_ANTIALIAS_ON);
+            g.setStroke(new BasicStroke(lineWidth, BasicStroke.CAP_ROUND,
+                BasicStroke.JOIN_ROUND));
+            double[] data = prepared.getData();
+            if(data == null) {
+                return;
+            }
+            int nPoints = data.length / nSubPlots;
+
+            // Draw in the same order as EcgPlot
+            drawSeries(g, map, stripColor, .5, data, 1, nPoints);
+            double[] rsaVals = prepared.getRsaVals();
+            if(showRSA && rsaVals != null) {
+                drawSeries(g, map, rsaColor, .25, rsaVals, rsaScale, nPoints);
+                drawBaseLines(g, map, rsaBaseLineColor, .25);
+            }
+            drawBaseLines(g, map, baseLineColor, .5);
+        } finally {
+            g.setClip(oldClip);
+            g.setPaint(oldPaint);
+            g.setStroke(oldStroke);
+            if(oldAntialias != null) {
+                g.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
+                    oldAntialias);
+            }
+        }
+    }
+
+    /**
+     * Creates an image of the given strip.
+     * 
+     * @param prepared
+     * @param width
+     * @param height
+     * @return
+     */
+    public BufferedImage createImage(EcgPlot.PreparedStrip prepared,
+        int width, int height) {
+        BufferedImage image = new BufferedImage(width, height,
+            BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = image.createGraphics();
+        try {
+            draw(g, prepared, new Rectangle2D.Double(0, 0, width, height));
+        } finally {
+            g.dispose();
+        }
+        return image;
+    }
+
+    /**
+     * Draws the ECG grid. The fine lines are left out if they would be too
+     * close together.
+     * 
+     * @param g
+     * @param map
+     * @param xMax
+     * @param totalHeight
+     */
+    private void drawGrid(Graphics2D g, Mapping map, double xMax,
+        double totalHeight) {
+        g.setStroke(new BasicStroke(lineWidth / 2));
+        double xStep = GRID_MM / MM_PER_SEC;
+        boolean fine = map.scaleX * map.deviceScale * xStep >= MIN_GRID_SPACING
+            && map.scaleY * map.deviceScale * GRID_MM >= MIN_GRID_SPACING;
+        Line2D line = new Line2D.Double();
+        int nX = (int)Math.floor(xMax / xStep + .5);
+        for(int i = 0; i <= nX; i++) {
+            boolean coarse = i % GRID_COARSE == 0;
+            if(!coarse && !fine) {
+                continue;
+            }
+            double x = map.x(i * xStep);
+            line.setLine(x, map.area.getMinY(), x, map.area.getMaxY());
+            g.setPaint(coarse ? coarseGridColor : gridColor);
+            g.draw(line);
+        }
+        // The lines are symmetric about the middle
+        int nY = (int)Math.floor(.5 * totalHeight / GRID_MM);
+        for(int i = -nY; i <= nY; i++) {
+            boolean coarse = i % GRID_COARSE == 0;
+            if(!coarse && !fine) {
+                continue;
+            }
+            double y = map.y(i * GRID_MM);
+            line.setLine(map.area.getMinX(), y, map.area.getMaxX(), y);
+            g.setPaint(coarse ? coarseGridColor : gridColor);
+            g.draw(line);
+        }
+    }
+
+    /**
+     * Draws a series in each sub-plot as EcgPlot.plot lays it out. Values
+     * that are not finite leave a break in the trace.
+     * 
+     * @param g
+     * @param map
+     * @param paint
+     * @param originFraction What fraction of the sub-plot area to use as the
+     *            origin, measured from the bottom.
+     * @param yVals The values for all the sub-plots.
+     * @param scale The factor to multiply the values by.
+     * @param nPoints The number of values in each sub-plot.
+     */
+    private void drawSeries(Graphics2D g, Mapping map, Paint paint,
+        double originFraction, double[] yVals, double scale, int nPoints) {
+        if(nPoints < 2) {
+            return;
+        }
+        g.setPaint(paint);
+        double xMax = map.xMax;
+        for(int i = 0; i < nSubPlots; i++) {
+            double offset = getOffset(i, map.totalHeight, originFraction);
+            int start = i * nPoints;
+            int end = Math.min(start + nPoints, yVals.length);
+            if(end - start < 2) {
+                break;
+            }
+            Path2D.Float path = new Path2D.Float();
+            double pointsPerColumn = nPoints
+                / (map.scaleX * map.deviceScale * xMax);
+            if(decimate && pointsPerColumn > 2) {
+                addDecimated(path, map, yVals, start, end, nPoints, scale,
+                    offset);
+            } else {
+                boolean drawing = false;
+                for(int n = start; n < end; n++) {
+                    double val = yVals[n] * scale;
+                    if(Double.isNaN(val) || Double.isInfinite(val)) {
+                        drawing = false;
+                        continue;
+                    }
+                    float x = (float)map.x(xMax * (n - start) / (nPoints - 1));
+                    float y = (float)map.y(val + offset);
+                    if(drawing) {
+                        path.lineTo(x, y);
+                    } else {
+                        path.moveTo(x, y);
+                        drawing = true;
+                    }
+                }
+            }
+            g.draw(path);
+        }
+    }
+
+    /**
+     * Adds the values to the path as the minimum and maximum in each pixel
+     * column of the device, so the path has at most four points per column
+     * but looks the same as the full trace.
+     * 
+     * @param path
+     * @param map
+     * @param yVals
+     * @param start The index of the first value.
+     * @param end One past the index of the last value.
+     * @param nPoints The number of values in the sub-plot.
+     * @param scale
+     * @param offset
+     */
+    private void addDecimated(Path2D.Float path, Mapping map, double[] yVals,
+        int start, int end, int nPoints, double scale, double offset) {
+        double x0 = map.area.getMinX();
+        double columnsPerPoint = map.scaleX * map.deviceScale * map.xMax
+            / (nPoints - 1);
+        int column = -1;
+        double first = 0, last = 0, min = 0, max = 0;
+        boolean drawing = false;
+        for(int n = start; n <= end; n++) {
+            double val = n < end ? yVals[n] * scale : Double.NaN;
+            boolean valid = !Double.isNaN(val) && !Double.isInfinite(val);
+            int col = valid ? (int)Math.floor((n - start) * columnsPerPoint)
+                : -1;
+            if(column >= 0 && col != column) {
+                // Finish the column: enter at the first value, cover the
+                // extremes, and leave at the last value
+                float x = (float)(x0 + (column + .5) / map.deviceScale);
+                if(drawing) {
+                    path.lineTo(x, (float)map.y(first + offset));
+                } else {
+                    path.moveTo(x, (float)map.y(first + offset));
+                    drawing = true;
+                }
+                path.lineTo(x, (float)map.y(max + offset));
+                path.lineTo(x, (float)map.y(min + offset));
+                path.lineTo(x, (float)map.y(last + offset));
+                column = -1;
+            }
+            if(!valid) {
+                drawing = false;
+                continue;
+            }
+            if(column < 0) {
+                column = col;
+                first = min = max = val;
+            }
+            last = val;
+            if(val < min) {
+                min = val;
+            } else if(val > max) {
+                max = val;
+            }
+        }
+    }
+
+    /**
+     * Draws a zero line in each sub-plot.
+     * 
+     * @param g
+     * @param map
+     * @param paint
+     * @param originFraction
+     */
+    private void drawBaseLines(Graphics2D g, Mapping map, Paint paint,
+        double originFraction) {
+        g.setPaint(paint);
+        Line2D line = new Line2D.Double();
+        for(int i = 0; i < nSubPlots; i++) {
+            double y = map.y(getOffset(i, map.totalHeight, originFraction));
+            line.setLine(map.area.getMinX(), y, map.area.getMaxX(), y);
+            g.draw(line);
+        }
+    }
+
+    /**
+     * Gets the offset of the origin of a sub-plot in mm, as in EcgPlot.plot.
+     * 
+     * @param i The index of the sub-plot.
+     * @param totalHeight
+     * @param originFraction
+     * @return
+     */
+    private double getOffset(int i, double totalHeight, double originFraction) {
+        return .5 * totalHeight - ((i + 1 - originFraction) * totalHeight)
+            / nSubPlots;
+    }
+
+    /**
+     * Mapping converts from sec and mm to user coordinates in an area.
+     * deviceScale is the number of pixels or points per user unit.
+     */
+    private static class Mapping
+    {
+        private final Rectangle2D area;
+        private final double xMax;
+        private final double totalHeight;
+        private final double scaleX;
+        private final double scaleY;
+        private final double deviceScale;
+
+        Mapping(Rectangle2D area, double xMax, double totalHeight,
+            double deviceScale) {
+            this.area = area;
+            this.xMax = xMax;
+            this.totalHeight = totalHeight;
+            scaleX = area.getWidth() / xMax;
+            scaleY = area.getHeight() / totalHeight;
+            this.deviceScale = deviceScale;
+        }
+
+        double x(double sec) {
+            return area.getMinX() + sec * scaleX;
+        }
+
+        double y(double mm) {
+            return area.getMinY() + (.5 * totalHeight - mm) * scaleY;
+        }
+    }
+
+    /**
+     * @return The value of nSubPlots.
+     */
+    public int getNSubPlots() {
+        return nSubPlots;
+    }
+
+    /**
+     * @param nSubPlots The new value for nSubPlots.
+     */
+    public void setNSubPlots(int nSubPlots) {
+        this.nSubPlots = Math.max(nSubPlots, 1);
+    }
+
+    /**
+     * @return The value of dataScale.
+     */
+    public double getDataScale() {
+        return dataScale;
+    }
+
+    /**
+     * @param dataScale The new value for dataScale.
+     */
+    public void setDataScale(double dataScale) {
+        this.dataScale = dataScale;
+    }
+
+    /**
+     * @return The value of rsaScale.
+     */
+    public double getRsaScale() {
+        return rsaScale;
+    }
+
+    /**
+     * @param rsaScale The new value for rsaScale.
+     */
+    public void setRsaScale(double rsaScale) {
+        this.rsaScale = rsaScale;
+    }
+
+    /**
+     * @return The value of showRSA.
+     */
+    public boolean isShowRSA() {
+        return showRSA;
+    }
+
+    /**
+     * @param showRSA The new value for showRSA.
+     */
+    public void setShowRSA(boolean showRSA) {
+        this.showRSA = showRSA;
+    }
+
+    /**
+     * @return The value of showGrid.
+     */
+    public boolean isShowGrid() {
+        return showGrid;
+    }
+
+    /**
+     * @param showGrid The new value for showGrid.
+     */
+    public void setShowGrid(boolean showGrid) {
+        this.showGrid = showGrid;
+    }
+
+    /**
+     * @return The value of decimate.
+     */
+    public boolean isDecimate() {
+        return decimate;
+    }
+
+    /**
+     * Sets whether to reduce the trace to the pixel columns of the device.
+     * This should be true for images and false for vector output, which does
+     * not have pixels.
+     * 
+     * @param decimate The new value for decimate.
+     */
+    public void setDecimate(boolean decimate) {
+        this.decimate = decimate;
+    }
+
+    /**
+     * @return The value of lineWidth.
+     */
+    public float getLineWidth() {
+        return lineWidth;
+    }
+
+    /**
+     * @param lineWidth The new value for lineWidth.
+     */
+    public void setLineWidth(float lineWidth) {
+        this.lineWidth = lineWidth;
+    }
+
+    /**
+     * Sets the colors used by EcgPlot.
+     * 
+     * @param stripColor
+     * @param rsaColor
+     * @param rsaBaseLineColor
+     */
+    public void setColors(Paint stripColor, Paint rsaColor,
+        Paint rsaBaseLineColor) {
+        this.stripColor = stripColor;
+        this.rsaColor = rsaColor;
+        this.rsaBaseLineColor = rsaBaseLineColor;
+    }
+
+}
@@ -0,0 +1,624 @@
+package net.kenevans.ecg.md100a.ui;
+
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.FontMetrics;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.ImageIO;
+
+import net.kenevans.ecg.md100a.cli.FileGlob;
+import net.kenevans.ecg.md100a.model.BeatStatistics;
+import net.kenevans.ecg.md100a.model.EcgFileModel;
+import net.kenevans.ecg.md100a.model.EcgFilterModel;
+import net.kenevans.ecg.md100a.model.IConstants;
+import net.kenevans.ecg.md100a.model.Strip;
+
+import com.lowagie.text.Document;
+import com.lowagie.text.DocumentException;
+import com.lowagie.text.Rectangle;
+import com.lowagie.text.pdf.PdfContentByte;
+import com.lowagie.text.pdf.PdfWriter;
+
+/**
+ * StripReport writes a printable report of a list of strips, several to a
+ * landscape letter page, each with its time and beat statistics. The report
+ * is written as a PDF with vector graphics or as one PNG image per page. The
+ * strips are drawn with a StripRenderer, so no display is needed, and the
+ * pages are prepared on a pool of threads. For PNG output the pages are also
+ * drawn and encoded on the pool. For PDF output they are drawn in order by
+ * the calling thread, since the document can only be written by one thread.
+ * At most PAGES_IN_FLIGHT_PER_THREAD * nThreads pages are in memory at
+ * once.<br>
+ * <br>
+ * The main method writes a report without a display.
+ */
+public class StripReport implements IConstants
+{
+    /**
+     * ReportListener is an interface for following the progress of a report.
+     */
+    public static interface ReportListener
+    {
+        /**
+         * Called after pages have been written, from the thread doing the
+         * writing.
+         * 
+         * @param nWritten The number of pages written so far.
+         * @param nTotal The number of pages to write.
+         * @return Whether to continue. Returning false cancels the report.
+         */
+        boolean pagesWritten(int nWritten, int nTotal);
+    }
+
+    /** The default number of strips on a page. */
+    public static final int DEFAULT_STRIPS_PER_PAGE = 4;
+    /** The default resolution of PNG pages in dots per inch. */
+    public static final int DEFAULT_DPI = 150;
+    /** The number of pages being prepared at once for each thread. */
+    private static final int PAGES_IN_FLIGHT_PER_THREAD = 2;
+    /** The page width in points (landscape letter). */
+    private static final float PAGE_WIDTH = 792;
+    /** The page height in points. */
+    private static final float PAGE_HEIGHT = 612;
+    /** The page margin in points. */
+    private static final float MARGIN = 36;
+    /** The width of the traces in points. */
+    private static final float LINE_WIDTH = .75f;
+    private static final Font TITLE_FONT = new Font(Font.SANS_SERIF,
+        Font.BOLD, 10);
+    private static final Font STRIP_FONT = new Font(Font.SANS_SERIF,
+        Font.PLAIN, 8);
+
+    private static final String USAGE = "Usage: java "
+        + StripReport.class.getName()
+        + " [options] output.pdf|output.png files..."
+        + LS
+        + "Options:"
+        + LS
+        + "  -j N              Number of threads (default number of"
+        + " processors)"
+        + LS
+        + "  --mode MODE       Data mode (default DEFAULT)"
+        + LS
+        + "  --per-page N      Strips per page (default "
+        + DEFAULT_STRIPS_PER_PAGE
+        + ")"
+        + LS
+        + "  --sub-plots N     Sub-plots per strip (default 3)"
+        + LS
+        + "  --dpi N           Resolution of PNG pages (default "
+        + DEFAULT_DPI
+        + ")"
+        + LS
+        + "PNG pages after the first are written to output-NNN.png.";
+
+    private String title;
+    private List<Strip> strips;
+    private EcgPlot.PlotSettings settings;
+    private StripRenderer renderer;
+    private int stripsPerPage = DEFAULT_STRIPS_PER_PAGE;
+    private int dpi = DEFAULT_DPI;
+
+    /**
+     * StripReport constructor.
+     * 
+     * @param title The title for the top of each page.
+     * @param strips The strips in the order they should appear.
+     * @param settings The settings used to prepare the strips.
+     * @param renderer The renderer used to draw the strips. Its width and
+     *            decimation are set for each kind of output.
+     */
+    public StripReport(String title, List<Strip> strips,
+        EcgPlot.PlotSettings settings, StripRenderer renderer) {
+        this.title = title;
+        this.strips = strips;
+        this.settings = settings;
+        this.renderer = renderer;
+    }
+
+    /**
+     * @return The number of pages in the report.
+     */
+    public int getNPages() {
+        return (strips.size() + stripsPerPage - 1) / stripsPerPage;
+    }
+
+    /**
+     * Writes the report as a PDF if the file name ends in .pdf and as PNG
+     * images otherwise.
+     * 
+     * @param file
+     * @param nThreads The number of threads to use.
+     * @param listener The listener or null.
+     * @throws IOException
+     * @throws InterruptedIOException If the listener cancelled the report.
+     */
+    public void write(File file, int nThreads, ReportListener listener)
+        throws IOException {
+        if(file.getName().toLowerCase().endsWith(".pdf")) {
+            writePdf(file, nThreads, listener);
+        } else {
+            writePng(file, nThreads, listener);
+        }
+    }
+
+    /**
+     * Writes the report as a PDF. The file is deleted if the report is not
+     * finished.
+     * 
+     * @param file
+     * @param nThreads The number of threads to use.
+     * @param listener The listener or null.
+     * @throws IOException
+     * @throws InterruptedIOException If the listener cancelled the report.
+     */
+    public void writePdf(File file, int nThreads, ReportListener listener)
+        throws IOException {
+        int nPages = getNPages();
+        if(nPages == 0) {
+            throw new IOException("There are no strips in the report");
+        }
+        renderer.setDecimate(false);
+        renderer.setLineWidth(LINE_WIDTH);
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(
+            nThreads, 1));
+        int maxInFlight = PAGES_IN_FLIGHT_PER_THREAD * Math.max(nThreads, 1);
+        FileOutputStream out = new FileOutputStream(file);
+        Document document = new Document(new Rectangle(PAGE_WIDTH,
+            PAGE_HEIGHT));
+        boolean done = false;
+        boolean cancelled = false;
+        try {
+            PdfWriter writer = PdfWriter.getInstance(document, out);
+            document.addTitle(title);
+            document.open();
+            PdfContentByte content = writer.getDirectContent();
+            LinkedList<Future<EcgPlot.PreparedStrip[]>> inFlight =
+                new LinkedList<Future<EcgPlot.PreparedStrip[]>>();
+            int nSubmitted = 0;
+            for(int page = 0; page < nPages; page++) {
+                while(inFlight.size() < maxInFlight && nSubmitted < nPages) {
+                    final int n = nSubmitted++;
+                    inFlight.add(pool.submit(
+                        new Callable<EcgPlot.PreparedStrip[]>() {
+                            public EcgPlot.PreparedStrip[] call() {
+                                return preparePage(n);
+                            }
+                        }));
+                }
+                EcgPlot.PreparedStrip[] prepared = waitFor(inFlight
+                    .removeFirst());
+                if(page > 0) {
+                    document.newPage();
+                }
+                Graphics2D g = content.createGraphics(PAGE_WIDTH,
+                    PAGE_HEIGHT);
+                try {
+                    drawPage(g, page, prepared);
+                } finally {
+                    g.dispose();
+                }
+                if(listener != null
+                    && !listener.pagesWritten(page + 1, nPages)) {
+                    cancelled = true;
+                    break;
+                }
+            }
+            done = !cancelled;
+        } catch(DocumentException ex) {
+            IOException ioEx = new IOException(ex.getMessage());
+            ioEx.initCause(ex);
+            throw ioEx;
+        } finally {
+            pool.shutdownNow();
+            if(document.isOpen()) {
+                document.close();
+            }
+            out.close();
+            if(!done) {
+                file.delete();
+            }
+        }
+        if(cancelled) {
+            throw new InterruptedIOException("The report was cancelled");
+        }
+    }
+
+    /**
+     * Writes the report as PNG images, one per page. The first page is
+     * written to the given file and the others to files with the page number
+     * added, as given by getPageFile. The pages written are deleted if the
+     * report is not finished.
+     * 
+     * @param file
+     * @param nThreads The number of threads to use.
+     * @param listener The listener or null.
+     * @throws IOException
+     * @throws InterruptedIOException If the listener cancelled the report.
+     */
+    public void writePng(final File file, int nThreads,
+        ReportListener listener) throws IOException {
+        int nPages = getNPages();
+        if(nPages == 0) {
+            throw new IOException("There are no strips in the report");
+        }
+        renderer.setDecimate(true);
+        renderer.setLineWidth(LINE_WIDTH);
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(
+            nThreads, 1));
+        int maxInFlight = PAGES_IN_FLIGHT_PER_THREAD * Math.max(nThreads, 1);
+        boolean done = false;
+        boolean cancelled = false;
+        try {
+            LinkedList<Future<Void>> inFlight = new LinkedList<Future<Void>>();
+            int nSubmitted = 0;
+            for(int page = 0; page < nPages; page++) {
+                while(inFlight.size() < maxInFlight && nSubmitted < nPages) {
+                    final int n = nSubmitted++;
+                    inFlight.add(pool.submit(new Callable<Void>() {
+                        public Void call() throws IOException {
+                            writePngPage(getPageFile(file, n), n);
+                            return null;
+                        }
+                    }));
+                }
+                waitFor(inFlight.removeFirst());
+                if(listener != null
+                    && !listener.pagesWritten(page + 1, nPages)) {
+                    cancelled = true;
+                    break;
+                }
+            }
+            done = !cancelled;
+        } finally {
+            pool.shutdownNow();
+            if(!done) {
+                // Wait for the pages being written so they can be deleted
+                try {
+                    pool.awaitTermination(10, TimeUnit.SECONDS);
+                } catch(InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+                for(int page = 0; page < nPages; page++) {
+                    getPageFile(file, page).delete();
+                }
+            }
+        }
+        if(cancelled) {
+            throw new InterruptedIOException("The report was cancelled");
+        }
+    }
+
+    /**
+     * Gets the file for a page of a PNG report. The first page uses the given
+     * file. The others have the page number added before the extension, as
+     * in report-002.png.
+     * 
+     * @param file The file given for the report.
+     * @param page The page, starting at 0.
+     * @return
+     */
+    public static File getPageFile(File file, int page) {
+        if(page == 0) {
+            return file;
+        }
+        String name = file.getName();
+        int dot = name.lastIndexOf('.');
+        String number = String.format("-%03d", page + 1);
+        if(dot > 0) {
+            name = name.substring(0, dot) + number + name.substring(dot);
+        } else {
+            name += number;
+        }
+        return new File(file.getParentFile(), name);
+    }
+
+    /**
+     * Prepares the strips for a page.
+     * 
+     * @param page
+     * @return
+     */
+    private EcgPlot.PreparedStrip[] preparePage(int page) {
+        int start = page * stripsPerPage;
+        int end = Math.min(start + stripsPerPage, strips.size());
+        EcgPlot.PreparedStrip[] prepared = new EcgPlot.PreparedStrip[end
+            - start];
+        for(int i = start; i < end; i++) {
+            prepared[i - start] = EcgPlot.prepare(strips.get(i), settings);
+        }
+        return prepared;
+    }
+
+    /**
+     * Prepares, draws, and writes a page as a PNG image.
+     * 
+     * @param file
+     * @param page
+     * @throws IOException
+     */
+    private void writePngPage(File file, int page) throws IOException {
+        EcgPlot.PreparedStrip[] prepared = preparePage(page);
+        double scale = dpi / 72.;
+        BufferedImage image = new BufferedImage((int)Math.round(PAGE_WIDTH
+            * scale), (int)Math.round(PAGE_HEIGHT * scale),
+            BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = image.createGraphics();
+        try {
+            g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING,
+                RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+            g.scale(scale, scale);
+            drawPage(g, page, prepared);
+        } finally {
+            g.dispose();
+        }
+        if(!ImageIO.write(image, "png", file)) {
+            throw new IOException("Cannot write PNG images");
+        }
+    }
+
+    /**
+     * Draws a page in points.
+     * 
+     * @param g
+     * @param page
+     * @param prepared The strips on the page.
+     */
+    private void drawPage(Graphics2D g, int page,
+        EcgPlot.PreparedStrip[] prepared) {
+        g.setPaint(Color.WHITE);
+        g.fill(new Rectangle2D.Float(0, 0, PAGE_WIDTH, PAGE_HEIGHT));
+
+        // Title
+        g.setPaint(Color.BLACK);
+        g.setFont(TITLE_FONT);
+        FontMetrics fm = g.getFontMetrics();
+        float y = MARGIN + fm.getAscent();
+        g.drawString(title, MARGIN, y);
+        String text = settings.getFilterModel().getDataMode().getName()
+            + "   Page " + (page + 1) + " of " + getNPages();
+        g.drawString(text, PAGE_WIDTH - MARGIN - fm.stringWidth(text), y);
+        float top = MARGIN + fm.getHeight() + 4;
+
+        // Strips, each with a line of text above it
+        g.setFont(STRIP_FONT);
+        fm = g.getFontMetrics();
+        float width = PAGE_WIDTH - 2 * MARGIN;
+        float blockHeight = (PAGE_HEIGHT - MARGIN - top) / stripsPerPage;
+        float chartHeight = blockHeight - fm.getHeight() - 8;
+        for(int i = 0; i < prepared.length; i++) {
+            float blockTop = top + i * blockHeight;
+            g.setPaint(Color.BLACK);
+            g.drawString(getStripText(prepared[i]), MARGIN, blockTop
+                + fm.getAscent());
+            Rectangle2D area = new Rectangle2D.Float(MARGIN, blockTop
+                + fm.getHeight() + 2, width, chartHeight);
+            renderer.draw(g, prepared[i], area);
+            g.setPaint(Color.GRAY);
+            g.draw(area);
+        }
+    }
+
+    /**
+     * Gets the text shown above a strip.
+     * 
+     * @param prepared
+     * @return
+     */
+    private static String getStripText(EcgPlot.PreparedStrip prepared) {
+        Strip strip = prepared.getStrip();
+        String text = strip.getStringDate() + " " + strip.getStringTime(false)
+            + "   " + strip.getHeartRate() + " bpm   "
+            + strip.getDiagnosisString();
+        BeatStatistics stats = prepared.getBeatStatistics();
+        if(stats == null) {
+            text += "   Cannot get the data for the strip";
+        } else if(stats.getNPeaks() < 2) {
+            text += "   R peaks: " + stats.getNPeaks();
+        } else {
+            text += String.format(
+                "   R peaks: %d   Mean: %.1f BPM   SD: %.1f BPM"
+                    + "   Range: %.1f - %.1f BPM", stats.getNPeaks(), stats
+                    .getMeanBpm(), stats.getSigmaBpm(), stats.getMinBpm(),
+                stats.getMaxBpm());
+        }
+        return text;
+    }
+
+    /**
+     * Waits for the result of a task, converting its exceptions to an
+     * IOException.
+     * 
+     * @param future
+     * @return
+     * @throws IOException
+     */
+    private static <T> T waitFor(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch(InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted");
+        } catch(ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if(cause instanceof IOException) {
+                throw (IOException)cause;
+            }
+            IOException ioEx = new IOException(cause.getMessage());
+            ioEx.initCause(cause);
+            throw ioEx;
+        }
+    }
+
+    /**
+     * @return The value of stripsPerPage.
+     */
+    public int getStripsPerPage() {
+        return stripsPerPage;
+    }
+
+    /**
+     * @param stripsPerPage The new value for stripsPerPage.
+     */
+    public void setStripsPerPage(int stripsPerPage) {
+        this.stripsPerPage = Math.max(stripsPerPage, 1);
+    }
+
+    /**
+     * @return The value of dpi.
+     */
+    public int getDpi() {
+        return dpi;
+    }
+
+    /**
+     * @param dpi The resolution of PNG pages in dots per inch.
+     */
+    public void setDpi(int dpi) {
+        this.dpi = dpi;
+    }
+
+    /**
+     * Parses a positive integer option.
+     * 
+     * @param args
+     * @param i
+     * @param option
+     * @return
+     */
+    private static int getPositiveInt(String[] args, int i, String option) {
+        if(i >= args.length) {
+            throw new IllegalArgumentException("No value for " + option);
+        }
+        int value;
+        try {
+            value = Integer.parseInt(args[i]);
+        } catch(NumberFormatException ex) {
+            value = 0;
+        }
+        if(value < 1) {
+            throw new IllegalArgumentException("Invalid value for " + option);
+        }
+        return value;
+    }
+
+    /**
+     * Writes a report of all the strips in the given files without a
+     * display.
+     * 
+     * @param args
+     */
+    public static void main(String[] args) {
+        System.setProperty("java.awt.headless", "true");
+        int nThreads = Runtime.getRuntime().availableProcessors();
+        EcgFilterModel.DataMode dataMode = EcgFilterModel.DataMode.DEFAULT;
+        int stripsPerPage = DEFAULT_STRIPS_PER_PAGE;
+        int nSubPlots = 3;
+        int dpi = DEFAULT_DPI;
+        List<String> fileArgs = new ArrayList<String>();
+        List<File> files;
+        try {
+            String arg;
+            for(int i = 0; i < args.length; i++) {
+                arg = args[i];
+                if(arg.equals("-j")) {
+                    nThreads = getPositiveInt(args, ++i, arg);
+                } else if(arg.equals("--per-page")) {
+                    stripsPerPage = getPositiveInt(args, ++i, arg);
+                } else if(arg.equals("--sub-plots")) {
+                    nSubPlots = getPositiveInt(args, ++i, arg);
+                } else if(arg.equals("--dpi")) {
+                    dpi = getPositiveInt(args, ++i, arg);
+                } else if(arg.equals("--mode")) {
+                    if(++i >= args.length) {
+                        throw new IllegalArgumentException("No value for "
+                            + arg);
+                    }
+                    try {
+                        dataMode = EcgFilterModel.DataMode.valueOf(args[i]
+                            .toUpperCase());
+                    } catch(IllegalArgumentException ex) {
+                        throw new IllegalArgumentException("Invalid mode: "
+                            + args[i]);
+                    }
+                } else if(arg.startsWith("-") && arg.length() > 1) {
+                    throw new IllegalArgumentException("Invalid option: "
+                        + arg);
+                } else {
+                    fileArgs.add(arg);
+                }
+            }
+            if(fileArgs.size() < 2) {
+                throw new IllegalArgumentException(
+                    "An output file and at least one input file are required");
+            }
+            files = FileGlob.expand(fileArgs.subList(1, fileArgs.size()));
+            if(files.isEmpty()) {
+                throw new IllegalArgumentException("No files found");
+            }
+        } catch(IllegalArgumentException ex) {
+            System.err.println(ex.getMessage());
+            System.err.println(USAGE);
+            System.exit(2);
+            return;
+        } catch(IOException ex) {
+            System.err.println(ex.getMessage());
+            System.exit(2);
+            return;
+        }
+
+        List<Strip> strips = new ArrayList<Strip>();
+        for(File file : files) {
+            EcgFileModel model = new EcgFileModel(file.getPath());
+            if(model.getStrips() == null) {
+                System.err.println("Cannot read " + file.getPath());
+                System.exit(1);
+                return;
+            }
+            for(Strip strip : model.getStrips()) {
+                strips.add(strip);
+            }
+        }
+        EcgFilterModel filterModel = new EcgFilterModel();
+        filterModel.setDataMode(dataMode);
+        StripRenderer renderer = new StripRenderer();
+        renderer.setNSubPlots(nSubPlots);
+        String title = files.size() == 1 ? files.get(0).getName() : files
+            .size() + " files";
+        StripReport report = new StripReport(title, strips,
+            new EcgPlot.PlotSettings(filterModel, true), renderer);
+        report.setStripsPerPage(stripsPerPage);
+        report.setDpi(dpi);
+        File output = new File(fileArgs.get(0));
+        long start = System.nanoTime();
+        try {
+            report.write(output, nThreads, null);
+        } catch(IOException ex) {
+            System.err.println("Error writing " + output.getPath() + ": "
+                + ex.getMessage());
+            System.exit(1);
+            return;
+        }
+        System.err.println(String.format(
+            "Wrote %d strips on %d pages in %.1f sec", strips.size(), report
+                .getNPages(), (System.nanoTime() - start) * 1e-9));
+    }
+
+}
@@ -0,0 +1,467 @@
+package net.kenevans.ecg.md100a.ui;
+
+import java.awt.BorderLayout;
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.FontMetrics;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.event.AdjustmentEvent;
+import java.awt.event.AdjustmentListener;
+import java.awt.event.ComponentAdapter;
+import java.awt.event.ComponentEvent;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.awt.event.MouseWheelEvent;
+import java.awt.image.BufferedImage;
+import java.text.SimpleDateFormat;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import javax.swing.JComponent;
+import javax.swing.JPanel;
+import javax.swing.JScrollBar;
+import javax.swing.SwingWorker;
+
+import net.kenevans.core.utils.Utils;
+import net.kenevans.ecg.md100a.model.IConstants;
+import net.kenevans.ecg.md100a.model.TimelinePyramid;
+
+/**
+ * TimelinePanel shows all the strips of a file as one continuous trace, using
+ * a TimelinePyramid. It scrolls with the scroll bar or by dragging and zooms
+ * about the mouse with the mouse wheel.<br>
+ * <br>
+ * The trace is drawn in tiles of TILE_WIDTH columns, each of which is an
+ * image rendered in the background the first time it is needed. Until then
+ * the tile is left blank. The tiles are rendered on their own pool, and a
+ * tile that is no longer visible when its turn comes is skipped, so zooming
+ * or scrolling quickly does not leave a backlog. The most recently used
+ * tiles are kept, so scrolling back and forth only draws images. The gaps
+ * between strips that are not contiguous are shaded, and the strip times are
+ * drawn over the tiles.
+ */
+public class TimelinePanel extends JPanel implements IConstants
+{
+    private static final long serialVersionUID = 1L;
+
+    /** The width of a tile in pixels. */
+    private static final int TILE_WIDTH = 256;
+    /** The maximum number of tiles kept. */
+    private static final int MAX_TILES = 64;
+    /** The number of samples per pixel at zoom 0. */
+    private static final double MIN_SAMPLES_PER_PIXEL = .25;
+    /** The range of the trace above and below the center in mm. */
+    private static final double Y_RANGE = 25;
+    /** The minimum space between time labels in pixels. */
+    private static final int LABEL_SPACING = 20;
+    /** The length of the ticks marking the strips in pixels. */
+    private static final int TICK_LENGTH = 8;
+    private static final Color TRACE_COLOR = Color.BLACK;
+    private static final Color GAP_COLOR = new Color(220, 220, 220);
+    private static final Color STRIP_COLOR = new Color(0, 0, 200);
+    private static final Color GRID_COLOR = new Color(255, 200, 200);
+
+    private TimelinePyramid pyramid;
+    /** The zoom. The samples per pixel are MIN_SAMPLES_PER_PIXEL * 2^zoom. */
+    private int zoom;
+    /** The smallest zoom, which keeps the width in pixels within an int. */
+    private int minZoom;
+    private int maxZoom;
+    /** The position in pixels of the left edge at the current zoom. */
+    private long offset;
+    private TimelineCanvas canvas = new TimelineCanvas();
+    private JScrollBar scrollBar = new JScrollBar(JScrollBar.HORIZONTAL);
+    /** Set while the scroll bar is being set from the offset. */
+    private boolean settingScrollBar;
+    /** The tiles for the current height, least recent first. */
+    private Map<Long, BufferedImage> tiles =
+        new LinkedHashMap<Long, BufferedImage>(MAX_TILES, .75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(
+                Map.Entry<Long, BufferedImage> eldest) {
+                return size() > MAX_TILES;
+            }
+        };
+    /** The keys of the tiles being rendered. */
+    private Set<Long> pending = new HashSet<Long>();
+    /** The height of the tiles. */
+    private int tileHeight;
+    /** Incremented when the tiles are cleared, so old ones are discarded. */
+    private volatile int tileGeneration;
+    /** The zoom and range of tiles last painted. */
+    private volatile int visibleZoom;
+    private volatile long firstVisibleTile;
+    private volatile long lastVisibleTile;
+    private ExecutorService tilePool;
+    private SimpleDateFormat timeFormat = new SimpleDateFormat(
+        "MM/dd HH:mm:ss");
+
+    /**
+     * TimelinePanel constructor.
+     */
+    public TimelinePanel() {
+        // The times from StripMetadata are in UTC
+        timeFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+        int nThreads = Math.max(1, Runtime.getRuntime().availableProcessors()
+            - 1);
+        tilePool = Executors.newFixedThreadPool(nThreads, new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "TimelinePanel");
+                // Do not keep the application running
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        setLayout(new BorderLayout());
+        canvas.setPreferredSize(new Dimension(800, 300));
+        add(canvas, BorderLayout.CENTER);
+        add(scrollBar, BorderLayout.SOUTH);
+
+        scrollBar.addAdjustmentListener(new AdjustmentListener() {
+            public void adjustmentValueChanged(AdjustmentEvent ev) {
+                if(!settingScrollBar) {
+                    offset = ev.getValue();
+                    canvas.repaint();
+                }
+            }
+        });
+        canvas.addComponentListener(new ComponentAdapter() {
+            @Override
+            public void componentResized(ComponentEvent ev) {
+                if(canvas.getHeight() != tileHeight) {
+                    clearTiles();
+                }
+                setOffset(offset);
+            }
+        });
+        MouseAdapter mouseAdapter = new MouseAdapter() {
+            private int lastX;
+
+            @Override
+            public void mousePressed(MouseEvent ev) {
+                lastX = ev.getX();
+            }
+
+            @Override
+            public void mouseDragged(MouseEvent ev) {
+                setOffset(offset - (ev.getX() - lastX));
+                lastX = ev.getX();
+            }
+
+            @Override
+            public void mouseWheelMoved(MouseWheelEvent ev) {
+                setZoom(zoom + ev.getWheelRotation(), ev.getX());
+            }
+        };
+        canvas.addMouseListener(mouseAdapter);
+        canvas.addMouseMotionListener(mouseAdapter);
+        canvas.addMouseWheelListener(mouseAdapter);
+    }
+
+    /**
+     * Sets the pyramid to show and zooms out to show all of it.
+     * 
+     * @param pyramid The pyramid or null for none.
+     */
+    public void setPyramid(TimelinePyramid pyramid) {
+        this.pyramid = pyramid;
+        clearTiles();
+        minZoom = 0;
+        maxZoom = 0;
+        if(pyramid != null) {
+            while(pyramid.getLength() / getSamplesPerPixel(minZoom)
+                > Integer.MAX_VALUE / 2) {
+                minZoom++;
+            }
+            maxZoom = minZoom;
+            // Allow zooming out until the whole timeline fits in a tile
+            while(pyramid.getLength() / getSamplesPerPixel(maxZoom)
+                > TILE_WIDTH) {
+                maxZoom++;
+            }
+        }
+        zoomToFit();
+    }
+
+    /**
+     * Zooms to the smallest zoom that shows the whole timeline.
+     */
+    public void zoomToFit() {
+        if(pyramid == null) {
+            zoom = 0;
+            setOffset(0);
+            return;
+        }
+        int width = Math.max(canvas.getWidth(), 1);
+        int newZoom = minZoom;
+        while(newZoom < maxZoom
+            && pyramid.getLength() / getSamplesPerPixel(newZoom) > width) {
+            newZoom++;
+        }
+        zoom = newZoom;
+        setOffset(0);
+    }
+
+    /**
+     * Stops rendering tiles and releases the threads. Call it when the panel
+     * is no longer used.
+     */
+    public void dispose() {
+        tilePool.shutdownNow();
+        clearTiles();
+    }
+
+    /**
+     * @param zoom
+     * @return The number of samples per pixel at the given zoom.
+     */
+    private static double getSamplesPerPixel(int zoom) {
+        return MIN_SAMPLES_PER_PIXEL * Math.pow(2, zoom);
+    }
+
+    /**
+     * Sets the zoom, keeping the sample at the given x fixed.
+     * 
+     * @param newZoom
+     * @param x
+     */
+    private void setZoom(int newZoom, int x) {
+        newZoom = Math.max(minZoom, Math.min(newZoom, maxZoom));
+        if(pyramid == null || newZoom == zoom) {
+            return;
+        }
+        double sample = (offset + x) * getSamplesPerPixel(zoom);
+        zoom = newZoom;
+        setOffset(Math.round(sample / getSamplesPerPixel(zoom)) - x);
+    }
+
+    /**
+     * Sets the offset, limited to the timeline, updates the scroll bar, and
+     * repaints.
+     * 
+     * @param newOffset
+     */
+    private void setOffset(long newOffset) {
+        long width = pyramid == null ? 0 : (long)Math.ceil(pyramid
+            .getLength() / getSamplesPerPixel(zoom));
+        int visible = canvas.getWidth();
+        offset = Math.max(0, Math.min(newOffset, width - visible));
+        settingScrollBar = true;
+        try {
+            scrollBar.setValues((int)offset, visible, 0,
+                (int)Math.max(width, visible));
+            scrollBar.setUnitIncrement(Math.max(visible / 20, 1));
+            scrollBar.setBlockIncrement(Math.max(visible - visible / 10, 1));
+        } finally {
+            settingScrollBar = false;
+        }
+        canvas.repaint();
+    }
+
+    /**
+     * Removes all the tiles. Tiles still being rendered are discarded when
+     * they are done.
+     */
+    private void clearTiles() {
+        tiles.clear();
+        pending.clear();
+        tileGeneration++;
+        tileHeight = canvas.getHeight();
+    }
+
+    /**
+     * Gets the tile for the given zoom and index, starting to render it if it
+     * is not available.
+     * 
+     * @param tileIndex
+     * @return The tile or null if it is not available yet.
+     */
+    private BufferedImage getTile(final long tileIndex) {
+        final Long key = ((long)zoom << 48) | tileIndex;
+        BufferedImage tile = tiles.get(key);
+        if(tile != null || pending.contains(key) || tileHeight <= 0
+            || tilePool.isShutdown()) {
+            return tile;
+        }
+        pending.add(key);
+        final TimelinePyramid tilePyramid = pyramid;
+        final int tileZoom = zoom;
+        final double samplesPerPixel = getSamplesPerPixel(zoom);
+        final double first = tileIndex * TILE_WIDTH * samplesPerPixel;
+        final int height = tileHeight;
+        final int generation = tileGeneration;
+        tilePool.execute(new SwingWorker<BufferedImage, Void>() {
+            @Override
+            protected BufferedImage doInBackground() throws Exception {
+                // Skip it if it has been scrolled or zoomed out of view
+                if(generation != tileGeneration || tileZoom != visibleZoom
+                    || tileIndex < firstVisibleTile
+                    || tileIndex > lastVisibleTile) {
+                    return null;
+                }
+                return renderTile(tilePyramid, first, samplesPerPixel,
+                    height);
+            }
+
+            @Override
+            protected void done() {
+                // Discard it if the tiles have been cleared since, even if
+                // a new one with the same key is pending
+                if(generation != tileGeneration) {
+                    return;
+                }
+                pending.remove(key);
+                BufferedImage tile;
+                try {
+                    tile = get();
+                } catch(InterruptedException ex) {
+                    return;
+                } catch(ExecutionException ex) {
+                    Utils.excMsg("Error drawing the timeline", ex);
+                    return;
+                }
+                if(tile != null) {
+                    tiles.put(key, tile);
+                }
+                // Also asks for a skipped tile again if it is visible now
+                canvas.repaint();
+            }
+        });
+        return null;
+    }
+
+    /**
+     * Renders a tile. Called in the background.
+     * 
+     * @param pyramid
+     * @param first The position of the left edge in samples.
+     * @param samplesPerPixel
+     * @param height
+     * @return
+     */
+    private static BufferedImage renderTile(TimelinePyramid pyramid,
+        double first, double samplesPerPixel, int height) {
+        float[] mins = new float[TILE_WIDTH];
+        float[] maxs = new float[TILE_WIDTH];
+        pyramid.getMinMax(first, samplesPerPixel, mins, maxs);
+
+        BufferedImage tile = new BufferedImage(TILE_WIDTH, height,
+            BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = tile.createGraphics();
+        try {
+            g.setColor(Color.WHITE);
+            g.fillRect(0, 0, TILE_WIDTH, height);
+            double center = .5 * height;
+            double scale = center / Y_RANGE;
+            // 10 mm (1 mV) grid lines
+            g.setColor(GRID_COLOR);
+            for(int mm = -20; mm <= 20; mm += 10) {
+                int y = (int)Math.round(center - mm * scale);
+                g.drawLine(0, y, TILE_WIDTH - 1, y);
+            }
+            g.setColor(TRACE_COLOR);
+            int lastMin = 0, lastMax = 0;
+            boolean haveLast = false;
+            for(int c = 0; c < TILE_WIDTH; c++) {
+                if(first + c * samplesPerPixel >= pyramid.getLength()) {
+                    break;
+                }
+                if(Float.isNaN(mins[c])) {
+                    g.setColor(GAP_COLOR);
+                    g.drawLine(c, 0, c, height - 1);
+                    g.setColor(TRACE_COLOR);
+                    haveLast = false;
+                    continue;
+                }
+                int yMin = (int)Math.round(center - maxs[c] * scale);
+                int yMax = (int)Math.round(center - mins[c] * scale);
+                // Join the column to the previous one
+                int y0 = haveLast ? Math.min(yMin, lastMax) : yMin;
+                int y1 = haveLast ? Math.max(yMax, lastMin) : yMax;
+                g.drawLine(c, y0, c, y1);
+                lastMin = yMin;
+                lastMax = yMax;
+                haveLast = true;
+            }
+        } finally {
+            g.dispose();
+        }
+        return tile;
+    }
+
+    /**
+     * Draws ticks at the bottom at the start of each strip and the times of
+     * as many strips as fit at the top.
+     * 
+     * @param g
+     * @param width
+     * @param height
+     */
+    private void drawStripLabels(Graphics g, int width, int height) {
+        double samplesPerPixel = getSamplesPerPixel(zoom);
+        FontMetrics fm = g.getFontMetrics();
+        int lastLabelEnd = Integer.MIN_VALUE;
+        int n = Math.max(pyramid.findStrip((long)(offset * samplesPerPixel)),
+            0);
+        for(; n < pyramid.getNStrips(); n++) {
+            int x = (int)(Math.round(pyramid.getStart(n) / samplesPerPixel)
+                - offset);
+            if(x >= width) {
+                break;
+            }
+            g.setColor(STRIP_COLOR);
+            g.drawLine(x, height - TICK_LENGTH, x, height - 1);
+            String label = timeFormat.format(pyramid.getTime(n));
+            if(x >= lastLabelEnd) {
+                g.drawString(label, x + 2, fm.getAscent());
+                lastLabelEnd = x + fm.stringWidth(label) + LABEL_SPACING;
+            }
+        }
+    }
+
+    /**
+     * TimelineCanvas draws the tiles and labels.
+     */
+    private class TimelineCanvas extends JComponent
+    {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected void paintComponent(Graphics g) {
+            int width = getWidth();
+            int height = getHeight();
+            g.setColor(Color.WHITE);
+            g.fillRect(0, 0, width, height);
+            if(pyramid == null) {
+                return;
+            }
+            if(height != tileHeight) {
+                clearTiles();
+            }
+            long firstTile = offset / TILE_WIDTH;
+            long lastTile = (offset + width - 1) / TILE_WIDTH;
+            visibleZoom = zoom;
+            firstVisibleTile = firstTile;
+            lastVisibleTile = lastTile;
+            for(long t = firstTile; t <= lastTile; t++) {
+                BufferedImage tile = getTile(t);
+                if(tile != null) {
+                    g.drawImage(tile, (int)(t * TILE_WIDTH - offset), 0,
+                        null);
+                }
+            }
+            drawStripLabels(g, width, height);
+        }
+    }
+
+}
@@ -0,0 +1,136 @@
+package net.kenevans.ecg.md100a.ui;
+
+import java.awt.BorderLayout;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+import java.io.File;
+import java.io.InterruptedIOException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+
+import javax.swing.JButton;
+import javax.swing.JFrame;
+import javax.swing.JPanel;
+import javax.swing.SwingWorker;
+
+import net.kenevans.core.utils.ImageUtils;
+import net.kenevans.core.utils.Utils;
+import net.kenevans.ecg.md100a.model.EcgFileModel;
+import net.kenevans.ecg.md100a.model.IConstants;
+import net.kenevans.ecg.md100a.model.TimelinePyramid;
+
+/**
+ * TimelineViewer is a frame that shows all the strips of a file in a
+ * TimelinePanel. The pyramid is read from its cache or computed in the
+ * background when the frame is created.
+ */
+public class TimelineViewer extends JFrame implements IConstants
+{
+    private static final long serialVersionUID = 1L;
+    private static final int WIDTH = 1200;
+    private static final int HEIGHT = 400;
+
+    private TimelinePanel timelinePanel = new TimelinePanel();
+    private ProgressPanel progressPanel = new ProgressPanel();
+    private PyramidBuilder builder;
+
+    /**
+     * TimelineViewer constructor.
+     * 
+     * @param model The model with the strips to show.
+     */
+    public TimelineViewer(EcgFileModel model) {
+        File file = new File(model.getFileName());
+        setTitle("Timeline - " + file.getName());
+        setDefaultCloseOperation(JFrame.DISPOSE_ON_CLOSE);
+        ImageUtils.setIconImageFromResource(this,
+            "/resources/HeartMonitor.36x36.png");
+
+        JPanel buttonPanel = new JPanel();
+        JButton button = new JButton();
+        button.setText("Fit");
+        button.setToolTipText("Zoom to show the whole file.");
+        button.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent ae) {
+                timelinePanel.zoomToFit();
+            }
+        });
+        buttonPanel.add(button);
+
+        JPanel southPanel = new JPanel(new BorderLayout());
+        southPanel.add(progressPanel, BorderLayout.NORTH);
+        southPanel.add(buttonPanel, BorderLayout.SOUTH);
+        getContentPane().add(timelinePanel, BorderLayout.CENTER);
+        getContentPane().add(southPanel, BorderLayout.SOUTH);
+        setSize(WIDTH, HEIGHT);
+
+        addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowClosed(WindowEvent ev) {
+                if(builder != null) {
+                    builder.cancel(false);
+                }
+                timelinePanel.dispose();
+            }
+        });
+
+        builder = new PyramidBuilder(model, file.exists() ? file : null);
+        progressPanel.start("Preparing the timeline", builder);
+        builder.execute();
+    }
+
+    /**
+     * PyramidBuilder gets the TimelinePyramid in the background.
+     */
+    private class PyramidBuilder extends SwingWorker<TimelinePyramid, Void>
+        implements TimelinePyramid.ProgressListener
+    {
+        private EcgFileModel model;
+        private File file;
+
+        /**
+         * PyramidBuilder constructor.
+         * 
+         * @param model
+         * @param file The file for the cache or null.
+         */
+        PyramidBuilder(EcgFileModel model, File file) {
+            this.model = model;
+            this.file = file;
+        }
+
+        @Override
+        protected TimelinePyramid doInBackground() throws Exception {
+            return TimelinePyramid.create(model.getStrips(), file, Runtime
+                .getRuntime().availableProcessors(), this);
+        }
+
+        public boolean stripsDone(int nDone, int nTotal) {
+            setProgress((int)(100L * nDone / Math.max(nTotal, 1)));
+            return !isCancelled();
+        }
+
+        @Override
+        protected void done() {
+            progressPanel.finish(this);
+            if(builder == this) {
+                builder = null;
+            }
+            try {
+                timelinePanel.setPyramid(get());
+            } catch(CancellationException ex) {
+                // Cancelled by closing the frame
+            } catch(InterruptedException ex) {
+                // Cancelled by closing the frame
+            } catch(ExecutionException ex) {
+                Throwable cause = ex.getCause();
+                if(!(cause instanceof InterruptedIOException)) {
+                    Utils.excMsg("Error preparing the timeline", ex);
+                }
+            }
+        }
+    }
+
+}